@@ -0,0 +1,159 @@
+/*
+ * @(#) BTCounts.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTCounts reads and writes the entry counts of a tree that counts its
+ * entries: every index entry carries the number of leaf entries in the
+ * subtree of its child, and every index page that of its leftmost child,
+ * in its BTLink trailer. The entries below a page add up to the sum of its
+ * counts, so the number of entries left of a key, or the entry at a given
+ * position, is found on one page per level.
+ * <p>
+ * On a plain index page the count follows the record as BT writes it,
+ * [key][child page][count]; on a packed page the data array holds the
+ * child page and the count of each entry. The counts of a page without
+ * them read as 0, and writing them does nothing.
+ */
+class BTCounts implements GlobalConst {
+
+	/**
+	 * @param page
+	 *            an index page. Input parameter.
+	 * @param slotno
+	 *            the slot number, -1 for the leftmost child. Input parameter.
+	 * @return the number of entries in the subtree of the child.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int count(BTSortedPage page, int slotno) throws IOException {
+		if (!BTLink.counted(page))
+			return 0;
+		if (slotno < 0)
+			return BTLink.getLeftCount(page);
+		if (BTIntArrays.packed(page))
+			return BTIntArrays.countAt(page, slotno);
+		return BTKeyBytes.getInt(page.getpage(), countPosition(page, slotno));
+	}
+
+	/**
+	 * Set the number of entries in the subtree of a child.
+	 *
+	 * @param page
+	 *            an index page. Input parameter.
+	 * @param slotno
+	 *            the slot number, -1 for the leftmost child. Input parameter.
+	 * @param count
+	 *            the number of entries. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void setCount(BTSortedPage page, int slotno, int count)
+			throws IOException {
+		if (!BTLink.counted(page))
+			return;
+		if (slotno < 0)
+			BTLink.setLeftCount(page, count);
+		else if (BTIntArrays.packed(page))
+			BTIntArrays.setCountAt(page, slotno, count);
+		else
+			Convert.setIntValue(count, countPosition(page, slotno), page
+					.getpage());
+	}
+
+	/**
+	 * Add to the number of entries in the subtree of a child.
+	 *
+	 * @param page
+	 *            an index page. Input parameter.
+	 * @param slotno
+	 *            the slot number, -1 for the leftmost child. Input parameter.
+	 * @param delta
+	 *            the entries added, negative for entries taken away. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void add(BTSortedPage page, int slotno, int delta)
+			throws IOException {
+		setCount(page, slotno, count(page, slotno) + delta);
+	}
+
+	/**
+	 * @param page
+	 *            a page of a tree that counts its entries. Input parameter.
+	 * @return the number of entries in its subtree: those of a leaf, the
+	 *         counts of an index page added up.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int total(BTSortedPage page) throws IOException {
+		if (page.getType() == NodeType.LEAF)
+			return page.getSlotCnt();
+		return before(page, page.getSlotCnt());
+	}
+
+	/**
+	 * @param page
+	 *            an index page. Input parameter.
+	 * @param slotno
+	 *            a slot number, -1 <= slotno <= getSlotCnt(). Input
+	 *            parameter.
+	 * @return the number of entries in the subtrees of the children left of
+	 *         the child in the slot.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int before(BTSortedPage page, int slotno) throws IOException {
+		if (!BTLink.counted(page))
+			return 0;
+		int count = 0;
+		for (int slot = -1; slot < slotno; slot++)
+			count += count(page, slot);
+		return count;
+	}
+
+	/**
+	 * @param entry
+	 *            an index entry. Input parameter.
+	 * @return its count, 0 for an entry without one.
+	 */
+	static int count(KeyDataEntry entry) {
+		if (entry.data instanceof CountedIndexData)
+			return ((CountedIndexData) entry.data).getCount();
+		return 0;
+	}
+
+	/**
+	 * @param entries
+	 *            index entries. Input parameter.
+	 * @param from
+	 *            the first entry counted. Input parameter.
+	 * @param to
+	 *            the entry after the last one counted. Input parameter.
+	 * @return the counts of entries [from, to) added up.
+	 */
+	static int sum(List<KeyDataEntry> entries, int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; i++)
+			count += count(entries.get(i));
+		return count;
+	}
+
+	/*
+	 * Where the count of an entry of a plain index page is: in the last 4
+	 * bytes of its record.
+	 */
+	private static int countPosition(BTSortedPage page, int slotno)
+			throws IOException {
+		return page.getSlotOffset(slotno) + page.getSlotLength(slotno) - 4;
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * @(#) BTIntArrays.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTIntArrays keeps the entries of a BTIntLeafPage or a BTIntIndexPage, the
+ * pages of an integer key tree of LeafFormat.PACKED_INT. Such a page has no
+ * slot directory and no records: below the HFPage header, which keeps the
+ * number of entries in slotCnt, it holds an array of the int keys and, after
+ * it, a parallel array of their data, a rid (page and slot number) on a
+ * leaf, a child page number on an index page. Both arrays have room for as
+ * many entries as fit between the header and the BTLink trailer, so the
+ * page holds 12 (leaf) or 8 (index) bytes per entry, against 16 and 12 with
+ * a record and a slot, and entry i is at a fixed place. An index page of a
+ * tree that counts its entries keeps the child page number and the count
+ * of each entry, in 12 bytes.
+ *
+ * <pre>
+ *   [0, DPFIXED)                     HFPage header
+ *   [DPFIXED, DPFIXED + 4 c)         keys, c = capacity of the page
+ *   [DPFIXED + 4 c, ...)             rids or child page numbers
+ *   [MAX_SPACE - len, MAX_SPACE)     BTLink trailer
+ * </pre>
+ *
+ * Keys are compared by difference, as BT.keyCompare compares IntegerKeys,
+ * so that a tree of either format is in the same order.
+ */
+class BTIntArrays implements GlobalConst {
+
+	/**
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @return true if the page keeps its entries in arrays.
+	 */
+	static boolean packed(BTSortedPage page) {
+		return page instanceof BTIntLeafPage || page instanceof BTIntIndexPage;
+	}
+
+	/**
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @return the bytes an entry takes, key and data.
+	 */
+	static int width(BTSortedPage page) {
+		return page instanceof BTIntLeafPage || BTLink.counted(page) ? 12 : 8;
+	}
+
+	/**
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @return the number of entries the page has room for.
+	 */
+	static int capacity(BTSortedPage page) {
+		byte[] data = page.getpage();
+		int end = MAX_SPACE - BTKeyBytes.getShort(data, MAX_SPACE - 2);
+		return (end - HFPage.DPFIXED) / width(page);
+	}
+
+	/**
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @return the number of entries on the page.
+	 */
+	static int count(BTSortedPage page) {
+		return BTKeyBytes.getShort(page.getpage(), HFPage.SLOT_CNT);
+	}
+
+	/**
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @return the space left, in bytes: the page takes another entry as
+	 *         long as it is at least width(page).
+	 */
+	static int available(BTSortedPage page) {
+		return (capacity(page) - count(page)) * width(page);
+	}
+
+	/**
+	 * @param slotno
+	 *            an entry of a packed page. Input parameter.
+	 * @return where its key is.
+	 */
+	static int keyPosition(int slotno) {
+		return HFPage.DPFIXED + 4 * slotno;
+	}
+
+	/*
+	 * Where the data of an entry is, on a page of a given capacity.
+	 */
+	private static int dataPosition(BTSortedPage page, int capacity,
+			int slotno) {
+		return HFPage.DPFIXED + 4 * capacity + (width(page) - 4) * slotno;
+	}
+
+	/**
+	 * Find the first entry whose key is greater than or equal to `key'. The
+	 * search halves the range without a branch on the keys, so it runs the
+	 * same steps for every key.
+	 *
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, the number of entries if every key is smaller.
+	 */
+	static int lowerBound(BTSortedPage page, int key) {
+		byte[] data = page.getpage();
+		int n = count(page);
+		if (n == 0)
+			return 0;
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			int probe = BTKeyBytes.getInt(data, keyPosition(base + half));
+			base = probe - key < 0 ? base + half : base;
+			n -= half;
+		}
+		int probe = BTKeyBytes.getInt(data, keyPosition(base));
+		return probe - key < 0 ? base + 1 : base;
+	}
+
+	/**
+	 * Find the first entry whose key is strictly greater than `key', the way
+	 * lowerBound does.
+	 *
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, the number of entries if no key is greater.
+	 */
+	static int upperBound(BTSortedPage page, int key) {
+		byte[] data = page.getpage();
+		int n = count(page);
+		if (n == 0)
+			return 0;
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			int probe = BTKeyBytes.getInt(data, keyPosition(base + half));
+			base = probe - key <= 0 ? base + half : base;
+			n -= half;
+		}
+		int probe = BTKeyBytes.getInt(data, keyPosition(base));
+		return probe - key <= 0 ? base + 1 : base;
+	}
+
+	/**
+	 * @param page
+	 *            a packed index page. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < count(page). Input parameter.
+	 * @return the child page number of the entry.
+	 */
+	static int child(BTSortedPage page, int slotno) {
+		return BTKeyBytes.getInt(page.getpage(), dataPosition(page,
+				capacity(page), slotno));
+	}
+
+	/**
+	 * @param page
+	 *            a packed index page with entry counts. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < count(page). Input parameter.
+	 * @return the count of the entry.
+	 */
+	static int countAt(BTSortedPage page, int slotno) {
+		return BTKeyBytes.getInt(page.getpage(), dataPosition(page,
+				capacity(page), slotno) + 4);
+	}
+
+	/**
+	 * Set the count of an entry.
+	 *
+	 * @param page
+	 *            a packed index page with entry counts. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < count(page). Input parameter.
+	 * @param count
+	 *            the count. Input parameter.
+	 */
+	static void setCountAt(BTSortedPage page, int slotno, int count) {
+		putInt(page.getpage(), dataPosition(page, capacity(page), slotno) + 4,
+				count);
+	}
+
+	/**
+	 * Decode the entry in a given slot.
+	 *
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < count(page). Input parameter.
+	 * @return the entry.
+	 */
+	static KeyDataEntry entryAt(BTSortedPage page, int slotno) {
+		byte[] data = page.getpage();
+		IntegerKey key = new IntegerKey(BTKeyBytes.getInt(data,
+				keyPosition(slotno)));
+		int position = dataPosition(page, capacity(page), slotno);
+		if (page instanceof BTIntIndexPage && BTLink.counted(page))
+			return CountedIndexData.entry(key, new PageId(BTKeyBytes.getInt(
+					data, position)), BTKeyBytes.getInt(data, position + 4));
+		if (page instanceof BTIntIndexPage)
+			return new KeyDataEntry(key, new PageId(BTKeyBytes.getInt(data,
+					position)));
+		return new KeyDataEntry(key, new RID(new PageId(BTKeyBytes.getInt(
+				data, position)), BTKeyBytes.getInt(data, position + 4)));
+	}
+
+	/**
+	 * Insert an entry into a given slot, shifting the entries from there on
+	 * one position up in both arrays.
+	 *
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @param entry
+	 *            the entry, with an IntegerKey. Input parameter.
+	 * @param position
+	 *            the slot the entry goes to, 0 <= position <= count(page).
+	 *            Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception InsertRecException
+	 *                the entry is not one of the page
+	 */
+	static RID insert(BTSortedPage page, KeyDataEntry entry, int position)
+			throws InsertRecException {
+		check(page, entry);
+		int capacity = capacity(page);
+		int count = count(page);
+		if (count == capacity)
+			return null;
+
+		byte[] data = page.getpage();
+		int width = width(page) - 4;
+		System.arraycopy(data, keyPosition(position), data,
+				keyPosition(position + 1), 4 * (count - position));
+		System.arraycopy(data, dataPosition(page, capacity, position), data,
+				dataPosition(page, capacity, position + 1), width
+						* (count - position));
+		put(page, capacity, position, entry);
+		setCount(data, count + 1);
+		try {
+			return new RID(page.getCurPage(), position);
+		} catch (IOException e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	/**
+	 * Delete the entry in a given slot, shifting the entries after it one
+	 * position down.
+	 *
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < count(page). Input parameter.
+	 */
+	static void delete(BTSortedPage page, int slotno) {
+		int capacity = capacity(page);
+		int count = count(page);
+		byte[] data = page.getpage();
+		int width = width(page) - 4;
+		System.arraycopy(data, keyPosition(slotno + 1), data,
+				keyPosition(slotno), 4 * (count - slotno - 1));
+		System.arraycopy(data, dataPosition(page, capacity, slotno + 1), data,
+				dataPosition(page, capacity, slotno), width
+						* (count - slotno - 1));
+		setCount(data, count - 1);
+	}
+
+	/**
+	 * Replace all entries of a page with `entries', which are sorted.
+	 *
+	 * @param page
+	 *            a packed page. Input parameter.
+	 * @param entries
+	 *            the new entries of the page. Input parameter.
+	 * @exception InsertRecException
+	 *                the entries do not fit on the page
+	 */
+	static void rebuild(BTSortedPage page, List<KeyDataEntry> entries)
+			throws InsertRecException {
+		int capacity = capacity(page);
+		if (entries.size() > capacity)
+			throw new InsertRecException(null, "entries do not fit");
+		for (int i = 0; i < entries.size(); i++) {
+			check(page, entries.get(i));
+			put(page, capacity, i, entries.get(i));
+		}
+		setCount(page.getpage(), entries.size());
+	}
+
+	/**
+	 * Split a page as BTSplit.split does: `page' keeps slots [0, keep) and
+	 * the empty page `newPage' receives slots [first, count(page)).
+	 *
+	 * @param page
+	 *            the packed page to split. Input parameter.
+	 * @param newPage
+	 *            an empty packed page of the same kind. Input parameter.
+	 * @param keep
+	 *            number of slots `page' keeps. Input parameter.
+	 * @param first
+	 *            first slot moved to `newPage', first >= keep. Input
+	 *            parameter.
+	 */
+	static void split(BTSortedPage page, BTSortedPage newPage, int keep,
+			int first) {
+		int capacity = capacity(page);
+		int count = count(page);
+		int width = width(page) - 4;
+		byte[] data = page.getpage();
+		byte[] newData = newPage.getpage();
+		System.arraycopy(data, keyPosition(first), newData, keyPosition(0),
+				4 * (count - first));
+		System.arraycopy(data, dataPosition(page, capacity, first), newData,
+				dataPosition(newPage, capacity, 0), width * (count - first));
+		setCount(newData, count - first);
+		setCount(data, keep);
+	}
+
+	private static void check(BTSortedPage page, KeyDataEntry entry)
+			throws InsertRecException {
+		if (!(entry.key instanceof IntegerKey))
+			throw new InsertRecException(null, "key is no IntegerKey");
+		if (BTLink.counted(page) && !(entry.data instanceof CountedIndexData))
+			throw new InsertRecException(null, "index entry has no count");
+	}
+
+	/*
+	 * Write an entry into a slot.
+	 */
+	private static void put(BTSortedPage page, int capacity, int slotno,
+			KeyDataEntry entry) {
+		byte[] data = page.getpage();
+		int position = dataPosition(page, capacity, slotno);
+		putInt(data, keyPosition(slotno), ((IntegerKey) entry.key).getKey()
+				.intValue());
+		if (entry.data instanceof IndexData) {
+			putInt(data, position, ((IndexData) entry.data).getData().pid);
+			if (BTLink.counted(page))
+				putInt(data, position + 4, ((CountedIndexData) entry.data)
+						.getCount());
+		} else {
+			RID rid = ((LeafData) entry.data).getData();
+			putInt(data, position, rid.pageNo.pid);
+			putInt(data, position + 4, rid.slotNo);
+		}
+	}
+
+	private static void setCount(byte[] data, int count) {
+		data[HFPage.SLOT_CNT] = (byte) (count >> 8);
+		data[HFPage.SLOT_CNT + 1] = (byte) count;
+	}
+
+	private static void putInt(byte[] data, int position, int value) {
+		data[position] = (byte) (value >> 24);
+		data[position + 1] = (byte) (value >> 16);
+		data[position + 2] = (byte) (value >> 8);
+		data[position + 3] = (byte) value;
+	}
+}
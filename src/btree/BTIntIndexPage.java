@@ -0,0 +1,184 @@
+/*
+ * @(#) BTIntIndexPage.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTIntIndexPage is an index page of IntegerKey entries kept in an array
+ * of keys and a parallel array of child page numbers, by BTIntArrays,
+ * instead of records in the slot directory of an HFPage. It has no records,
+ * so getSlotOffset and the record methods of HFPage fail; getSlotLength
+ * gives the size of an entry, and available_space the space left for
+ * entries.
+ * <p>
+ * getFirst, getNext, insertKey and deleteSortedRecord work on entries as
+ * those of BTIndexPage do, and the leftmost child is in the prev page
+ * pointer, as there.
+ */
+public class BTIntIndexPage extends BTIndexPage {
+
+	/**
+	 * pin an existing packed index page.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntIndexPage(PageId pageno, int keyType) throws IOException,
+			ConstructPageException {
+		super(pageno, keyType);
+	}
+
+	/**
+	 * associate the object with a pinned packed index page.
+	 *
+	 * @param page
+	 *            the pinned page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntIndexPage(Page page, int keyType) throws IOException,
+			ConstructPageException {
+		super(page, keyType);
+	}
+
+	/**
+	 * format a new, pinned page as an empty packed index page.
+	 *
+	 * @param page
+	 *            the new page. Input parameter.
+	 * @param pageno
+	 *            the page id of the new page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @param maxKeySize
+	 *            the largest key size of the tree, which the high key of
+	 *            the page is given room for. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntIndexPage(Page page, PageId pageno, int keyType, int maxKeySize)
+			throws IOException, ConstructPageException {
+		this(page, pageno, keyType, maxKeySize, false);
+	}
+
+	/**
+	 * format a new, pinned page as an empty packed index page, with entry
+	 * counts if `counted'.
+	 *
+	 * @param page
+	 *            the new page. Input parameter.
+	 * @param pageno
+	 *            the page id of the new page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @param maxKeySize
+	 *            the largest key size of the tree, which the high key of
+	 *            the page is given room for. Input parameter.
+	 * @param counted
+	 *            true for a page of a tree that counts its entries. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntIndexPage(Page page, PageId pageno, int keyType,
+			int maxKeySize, boolean counted) throws IOException,
+			ConstructPageException {
+		super(page, keyType);
+		init(pageno, page);
+		setType(NodeType.INDEX);
+		BTLink.format(this, maxKeySize, counted);
+	}
+
+	public RID insertKey(KeyClass key, PageId pageNo)
+			throws IndexInsertRecException {
+		try {
+			return insertRecord(new KeyDataEntry(key, pageNo));
+		} catch (InsertRecException e) {
+			throw new IndexInsertRecException(e, "Insert failed");
+		}
+	}
+
+	protected RID insertRecord(KeyDataEntry entry) throws InsertRecException {
+		try {
+			return BTIntArrays.insert(this, entry, BTSearch.upperBound(this,
+					entry.key));
+		} catch (IteratorException e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	public boolean deleteSortedRecord(RID rid) throws DeleteRecException {
+		if (rid.slotNo < 0 || rid.slotNo >= BTIntArrays.count(this))
+			throw new DeleteRecException(null, "no entry in slot " + rid.slotNo);
+		BTIntArrays.delete(this, rid.slotNo);
+		return true;
+	}
+
+	public KeyDataEntry getFirst(RID rid) throws IteratorException {
+		try {
+			rid.pageNo = getCurPage();
+			rid.slotNo = 0;
+			if (BTIntArrays.count(this) <= 0)
+				return null;
+			return BTIntArrays.entryAt(this, 0);
+		} catch (IOException e) {
+			throw new IteratorException(e, "Get first entry failed");
+		}
+	}
+
+	public KeyDataEntry getNext(RID rid) throws IteratorException {
+		rid.slotNo++;
+		if (rid.slotNo >= BTIntArrays.count(this))
+			return null;
+		return BTIntArrays.entryAt(this, rid.slotNo);
+	}
+
+	/**
+	 * @return the size of an entry, key and child page number, and count on
+	 *         a page with entry counts.
+	 */
+	public short getSlotLength(int slotno) {
+		return (short) BTIntArrays.width(this);
+	}
+
+	public short getSlotOffset(int slotno) throws IOException {
+		throw new IOException("a packed page has no records");
+	}
+
+	public RID insertRecord(byte[] record) throws IOException {
+		throw new IOException("a packed page has no records");
+	}
+
+	public void deleteRecord(RID rid) throws IOException {
+		throw new IOException("a packed page has no records");
+	}
+
+	public int available_space() {
+		return BTIntArrays.available(this);
+	}
+
+	public boolean empty() {
+		return BTIntArrays.count(this) == 0;
+	}
+}
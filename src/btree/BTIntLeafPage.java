@@ -0,0 +1,168 @@
+/*
+ * @(#) BTIntLeafPage.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTIntLeafPage is a leaf page of IntegerKey entries kept in an array of
+ * keys and a parallel array of rids, by BTIntArrays, instead of records in
+ * the slot directory of an HFPage. It has no records, so getSlotOffset and
+ * the record methods of HFPage fail; getSlotLength gives the size of an
+ * entry, and available_space the space left for entries.
+ * <p>
+ * getFirst, getNext, getCurrent, insertRecord and delEntry work on entries
+ * as those of BTLeafPage do, so the page can stand in for a BTLeafPage in
+ * BTFileScan and everywhere else.
+ */
+public class BTIntLeafPage extends BTLeafPage {
+
+	/**
+	 * pin an existing packed leaf page.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntLeafPage(PageId pageno, int keyType) throws IOException,
+			ConstructPageException {
+		super(pageno, keyType);
+	}
+
+	/**
+	 * associate the object with a pinned packed leaf page.
+	 *
+	 * @param page
+	 *            the pinned page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntLeafPage(Page page, int keyType) throws IOException,
+			ConstructPageException {
+		super(page, keyType);
+	}
+
+	/**
+	 * format a new, pinned page as an empty packed leaf page.
+	 *
+	 * @param page
+	 *            the new page. Input parameter.
+	 * @param pageno
+	 *            the page id of the new page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrInteger. Input parameter.
+	 * @param maxKeySize
+	 *            the largest key size of the tree, which the high key of
+	 *            the page is given room for. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTIntLeafPage(Page page, PageId pageno, int keyType, int maxKeySize)
+			throws IOException, ConstructPageException {
+		super(page, keyType);
+		init(pageno, page);
+		setType(NodeType.LEAF);
+		BTLink.format(this, maxKeySize);
+	}
+
+	public RID insertRecord(KeyClass key, RID dataRid)
+			throws LeafInsertRecException {
+		try {
+			return insertRecord(new KeyDataEntry(key, dataRid));
+		} catch (InsertRecException e) {
+			throw new LeafInsertRecException(e, "insert record failed");
+		}
+	}
+
+	protected RID insertRecord(KeyDataEntry entry) throws InsertRecException {
+		try {
+			return BTIntArrays.insert(this, entry, BTSearch.upperBound(this,
+					entry.key));
+		} catch (IteratorException e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	public boolean deleteSortedRecord(RID rid) throws DeleteRecException {
+		if (rid.slotNo < 0 || rid.slotNo >= BTIntArrays.count(this))
+			throw new DeleteRecException(null, "no entry in slot " + rid.slotNo);
+		BTIntArrays.delete(this, rid.slotNo);
+		return true;
+	}
+
+	public boolean delEntry(KeyDataEntry dEntry) throws LeafDeleteException {
+		try {
+			RID rid = new RID();
+			for (KeyDataEntry entry = getFirst(rid); entry != null; entry =
+					getNext(rid))
+				if (entry.equals(dEntry))
+					return deleteSortedRecord(rid);
+			return false;
+		} catch (Exception e) {
+			throw new LeafDeleteException(e, "delete entry failed");
+		}
+	}
+
+	public KeyDataEntry getFirst(RID rid) throws IteratorException {
+		try {
+			rid.pageNo = getCurPage();
+			rid.slotNo = 0;
+			if (BTIntArrays.count(this) <= 0)
+				return null;
+			return BTIntArrays.entryAt(this, 0);
+		} catch (IOException e) {
+			throw new IteratorException(e, "Get first entry failed");
+		}
+	}
+
+	public KeyDataEntry getNext(RID rid) throws IteratorException {
+		rid.slotNo++;
+		if (rid.slotNo >= BTIntArrays.count(this))
+			return null;
+		return BTIntArrays.entryAt(this, rid.slotNo);
+	}
+
+	/**
+	 * @return the size of an entry, key and rid.
+	 */
+	public short getSlotLength(int slotno) {
+		return (short) BTIntArrays.width(this);
+	}
+
+	public short getSlotOffset(int slotno) throws IOException {
+		throw new IOException("a packed page has no records");
+	}
+
+	public RID insertRecord(byte[] record) throws IOException {
+		throw new IOException("a packed page has no records");
+	}
+
+	public void deleteRecord(RID rid) throws IOException {
+		throw new IOException("a packed page has no records");
+	}
+
+	public int available_space() {
+		return BTIntArrays.available(this);
+	}
+
+	public boolean empty() {
+		return BTIntArrays.count(this) == 0;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * @(#) BTKeyBytes.java
+ *
+ */
+
+package btree;
+
+import global.*;
+
+/**
+ * BTKeyBytes compares a search key with a key as BT writes it into a page,
+ * without decoding the key: an integer key is the four bytes of the int,
+ * high byte first, and a string key the two byte length and the modified
+ * UTF-8 bytes of the string, as written by DataOutputStream.writeUTF. The
+ * comparisons have the sign BT.keyCompare has on the decoded keys, so that
+ * searches by bytes and by objects agree on the order of a tree.
+ * <p>
+ * Convert decodes through a new stream for every value, so the page header
+ * and the slot directory are read here as well, with getShort.
+ */
+class BTKeyBytes implements GlobalConst {
+
+	/**
+	 * @param data
+	 *            a page. Input parameter.
+	 * @param position
+	 *            a byte position on the page. Input parameter.
+	 * @return the short at the position, as Convert.getShortValue reads it.
+	 */
+	static int getShort(byte[] data, int position) {
+		return (short) ((data[position] << 8) | (data[position + 1] & 0xff));
+	}
+
+	/**
+	 * @param data
+	 *            a page. Input parameter.
+	 * @param position
+	 *            a byte position on the page. Input parameter.
+	 * @return the int at the position, as Convert.getIntValue reads it.
+	 */
+	static int getInt(byte[] data, int position) {
+		return (data[position] << 24) | ((data[position + 1] & 0xff) << 16)
+				| ((data[position + 2] & 0xff) << 8)
+				| (data[position + 3] & 0xff);
+	}
+
+	/**
+	 * Compare the key written at a position of a page with a search key.
+	 *
+	 * @param data
+	 *            the page. Input parameter.
+	 * @param position
+	 *            where the key starts. Input parameter.
+	 * @param keyType
+	 *            the key type of the page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return less than, equal to or greater than 0 as the key on the page
+	 *         is less than, equal to or greater than `key'.
+	 * @exception KeyNotMatchException
+	 *                key is not of the key type of the page
+	 */
+	static int compare(byte[] data, int position, int keyType, KeyClass key)
+			throws KeyNotMatchException {
+		if (keyType == AttrType.attrInteger && key instanceof IntegerKey)
+			// a difference, as BT.keyCompare takes it, overflow included
+			return getInt(data, position)
+					- ((IntegerKey) key).getKey().intValue();
+		if (keyType == AttrType.attrString && key instanceof StringKey)
+			return compare(data, -1, position, ((StringKey) key).getKey());
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * Compare a string key made of a prefix and a suffix, both written as
+	 * string keys on a page, with a search key, as String.compareTo compares
+	 * the whole key with it.
+	 *
+	 * @param data
+	 *            the page. Input parameter.
+	 * @param prefix
+	 *            where the prefix starts, -1 for none. Input parameter.
+	 * @param suffix
+	 *            where the suffix starts. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return less than, equal to or greater than 0 as the key on the page
+	 *         is less than, equal to or greater than `key'.
+	 */
+	static int compare(byte[] data, int prefix, int suffix, String key) {
+		int k = 0;
+		int n = key.length();
+		for (int run = prefix < 0 ? 1 : 0; run < 2; run++) {
+			int position = run == 0 ? prefix : suffix;
+			int end = position + 2 + (getShort(data, position) & 0xffff);
+			position += 2;
+			while (position < end) {
+				// one UTF-16 unit, in one to three bytes
+				int c = data[position] & 0xff;
+				if (c < 0x80)
+					position++;
+				else if (c < 0xe0) {
+					c = ((c & 0x1f) << 6) | (data[position + 1] & 0x3f);
+					position += 2;
+				} else {
+					c = ((c & 0x0f) << 12) | ((data[position + 1] & 0x3f) << 6)
+							| (data[position + 2] & 0x3f);
+					position += 3;
+				}
+				if (k == n)
+					return 1;
+				int cmp = c - key.charAt(k++);
+				if (cmp != 0)
+					return cmp;
+			}
+		}
+		return k - n;
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * @(#) BTLink.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTLink keeps the right link and the high key of a B+ tree page, as in the
+ * B-link tree of Lehman and Yao. Every page of a level points to its right
+ * neighbour through its next page pointer, index pages as well as leaves,
+ * and carries the greatest key its subtree may hold. A page splits to the
+ * right only, and the half that moves out stays reachable through the right
+ * link, so a thread that reaches a page after it was split, by a child
+ * pointer it read before the split, finds a key past the high key on its
+ * right and follows the link there.
+ * <p>
+ * Keys on a page are at most its high key, and keys on its right neighbour
+ * at least that high key; a run of duplicates may end on one page and go on
+ * on the next. The last page of a level has no high key.
+ * <p>
+ * A page that has split keeps a mark until the separator of the new page is
+ * in its parent. It does not split again before: the entry of its second
+ * new page would go in right of it first, and that of the first one after
+ * it, out of the order of the level when the two separators are equal.
+ * <p>
+ * The high key is kept in a trailer at the end of the page, with room for
+ * the largest key of the tree, so that setting it never moves a record.
+ * Layout of the trailer, which the records (and the trailer of a
+ * BTPrefixLeafPage) are kept below:
+ *
+ * <pre>
+ *   [MAX_SPACE - len, MAX_SPACE - 4)   high key, as BT writes keys
+ *   [MAX_SPACE - 4, MAX_SPACE - 2)     flags: HAS_HIGH_KEY, SPLIT_PENDING,
+ *                                      COUNTED
+ *   [MAX_SPACE - 2, MAX_SPACE)         len, the size of the trailer
+ * </pre>
+ *
+ * An index page of a tree that counts its entries (see BTCounts) has the
+ * COUNTED flag, and the entry count of its leftmost child in the last 4
+ * bytes before the flags, after the room for the high key.
+ */
+class BTLink implements GlobalConst {
+
+	private final static short HAS_HIGH_KEY = 1;
+	private final static short SPLIT_PENDING = 2;
+	private final static short COUNTED = 4;
+
+	/**
+	 * @param maxKeySize
+	 *            the largest key size of the tree. Input parameter.
+	 * @return the size of the trailer of the pages of a tree.
+	 */
+	static int trailerLength(int maxKeySize) {
+		return trailerLength(maxKeySize, false);
+	}
+
+	/**
+	 * @param maxKeySize
+	 *            the largest key size of the tree. Input parameter.
+	 * @param counted
+	 *            true for an index page of a tree that counts its entries.
+	 *            Input parameter.
+	 * @return the size of the trailer of such a page.
+	 */
+	static int trailerLength(int maxKeySize, boolean counted) {
+		return maxKeySize + (counted ? 8 : 4);
+	}
+
+	/**
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @return the size of the trailer of the page.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int trailerLength(BTSortedPage page) throws IOException {
+		return Convert.getShortValue(MAX_SPACE - 2, page.getpage());
+	}
+
+	/**
+	 * Write the trailer of a new, empty page: no high key, and no right
+	 * link.
+	 *
+	 * @param page
+	 *            the new page. Input parameter.
+	 * @param maxKeySize
+	 *            the largest key size of the tree. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void format(BTSortedPage page, int maxKeySize) throws IOException {
+		format(page, maxKeySize, false);
+	}
+
+	/**
+	 * Write the trailer of a new, empty page, with room for the count of
+	 * the leftmost child if `counted'.
+	 *
+	 * @param page
+	 *            the new page. Input parameter.
+	 * @param maxKeySize
+	 *            the largest key size of the tree. Input parameter.
+	 * @param counted
+	 *            true for an index page of a tree that counts its entries.
+	 *            Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void format(BTSortedPage page, int maxKeySize, boolean counted)
+			throws IOException {
+		int length = trailerLength(maxKeySize, counted);
+		byte[] data = page.getpage();
+		Convert.setShortValue((short) length, MAX_SPACE - 2, data);
+		Convert.setShortValue(counted ? COUNTED : 0, MAX_SPACE - 4, data);
+		if (counted)
+			Convert.setIntValue(0, MAX_SPACE - 8, data);
+		BTSplit.setHeader(data, 0, MAX_SPACE - length);
+		page.setNextPage(new PageId(INVALID_PAGE));
+	}
+
+	/**
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @return true if the page is an index page with entry counts.
+	 */
+	static boolean counted(BTSortedPage page) {
+		return (BTKeyBytes.getShort(page.getpage(), MAX_SPACE - 4) & COUNTED) != 0;
+	}
+
+	/**
+	 * @param page
+	 *            an index page with entry counts. Input parameter.
+	 * @return the number of entries in the subtree of its leftmost child.
+	 */
+	static int getLeftCount(BTSortedPage page) {
+		return BTKeyBytes.getInt(page.getpage(), MAX_SPACE - 8);
+	}
+
+	/**
+	 * Set the number of entries in the subtree of the leftmost child.
+	 *
+	 * @param page
+	 *            an index page with entry counts. Input parameter.
+	 * @param count
+	 *            the number of entries. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void setLeftCount(BTSortedPage page, int count) throws IOException {
+		Convert.setIntValue(count, MAX_SPACE - 8, page.getpage());
+	}
+
+	/**
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @return the high key of the page, null for the last page of a level.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static KeyClass getHighKey(BTSortedPage page) throws IOException {
+		byte[] data = page.getpage();
+		if ((Convert.getShortValue(MAX_SPACE - 4, data) & HAS_HIGH_KEY) == 0)
+			return null;
+		int position = MAX_SPACE - trailerLength(page);
+		if (page.keyType == AttrType.attrInteger)
+			return new IntegerKey(Convert.getIntValue(position, data));
+		return new StringKey(Convert.getStrValue(position, data, 2 + Convert
+				.getShortValue(position, data)));
+	}
+
+	/**
+	 * Set the high key of a page.
+	 *
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @param key
+	 *            the high key, null for the last page of a level. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void setHighKey(BTSortedPage page, KeyClass key) throws IOException {
+		setFlag(page, HAS_HIGH_KEY, key != null);
+		if (key == null)
+			return;
+		byte[] data = page.getpage();
+		int position = MAX_SPACE - trailerLength(page);
+		if (key instanceof IntegerKey)
+			Convert.setIntValue(((IntegerKey) key).getKey(), position, data);
+		else
+			Convert.setStrValue(((StringKey) key).getKey(), position, data);
+	}
+
+	/**
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @return true if the page has split, and the separator of the new page
+	 *         is not in the parent yet.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static boolean splitPending(BTSortedPage page) throws IOException {
+		byte[] data = page.getpage();
+		return (Convert.getShortValue(MAX_SPACE - 4, data) & SPLIT_PENDING) != 0;
+	}
+
+	/**
+	 * Mark a page that has split, or clear the mark once the separator of
+	 * the new page is in the parent.
+	 *
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @param pending
+	 *            true when the page splits, false once the separator is
+	 *            posted. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void setSplitPending(BTSortedPage page, boolean pending)
+			throws IOException {
+		setFlag(page, SPLIT_PENDING, pending);
+	}
+
+	/**
+	 * Whether a key lies right of a page, so that a search for it goes on
+	 * with the right neighbour.
+	 *
+	 * @param page
+	 *            a page of a tree. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @param last
+	 *            true to look for the last place key may go, where a new
+	 *            duplicate is inserted: a key equal to the high key then
+	 *            lies right of the page. false to look for the first
+	 *            occurrence of key. Input parameter.
+	 * @return true if the search goes on right of the page.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 */
+	static boolean beyond(BTSortedPage page, KeyClass key, boolean last)
+			throws IOException, KeyNotMatchException {
+		byte[] data = page.getpage();
+		if ((BTKeyBytes.getShort(data, MAX_SPACE - 4) & HAS_HIGH_KEY) == 0)
+			return false;
+		int position = MAX_SPACE - BTKeyBytes.getShort(data, MAX_SPACE - 2);
+		int cmp = BTKeyBytes.compare(data, position, page.keyType, key);
+		return last ? cmp <= 0 : cmp < 0;
+	}
+
+	private static void setFlag(BTSortedPage page, short flag, boolean on)
+			throws IOException {
+		byte[] data = page.getpage();
+		int flags = Convert.getShortValue(MAX_SPACE - 4, data);
+		flags = on ? flags | flag : flags & ~flag;
+		Convert.setShortValue((short) flags, MAX_SPACE - 4, data);
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * @(#) BTPrefixLeafPage.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTPrefixLeafPage is a leaf page of StringKey entries that stores the prefix
+ * all its keys share once, in a trailer at the end of the page, and only the
+ * rest of each key in the slots. The record of an entry is the leaf entry of
+ * its key suffix, so it decodes with BT.getEntryFromBytes as usual and the
+ * prefix is put back in front of the key.
+ * <p>
+ * Layout of the trailer, which the records are kept below, and which is
+ * itself kept below the BTLink trailer ending at MAX_SPACE:
+ *
+ * <pre>
+ *   [end - len, end - 2)   prefix, as written by writeUTF
+ *   [end - 2, end)         len, the size of the trailer
+ * </pre>
+ *
+ * The prefix is the longest common prefix of the first and last key of the
+ * page, set whenever the page is rebuilt. A key inserted outside of it makes
+ * the page rebuild with a shorter prefix. Deletes leave it as it is, since it
+ * is still common to the keys that remain.
+ * <p>
+ * getFirst, getNext, getCurrent and delEntry work on whole keys, so the page
+ * can stand in for a BTLeafPage in BTFileScan and everywhere else.
+ */
+public class BTPrefixLeafPage extends BTLeafPage {
+
+	/**
+	 * pin an existing prefix leaf page.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrString. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTPrefixLeafPage(PageId pageno, int keyType) throws IOException,
+			ConstructPageException {
+		super(pageno, keyType);
+	}
+
+	/**
+	 * associate the object with a pinned prefix leaf page.
+	 *
+	 * @param page
+	 *            the pinned page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrString. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTPrefixLeafPage(Page page, int keyType) throws IOException,
+			ConstructPageException {
+		super(page, keyType);
+	}
+
+	/**
+	 * format a new, pinned page as an empty prefix leaf page.
+	 *
+	 * @param page
+	 *            the new page. Input parameter.
+	 * @param pageno
+	 *            the page id of the new page. Input parameter.
+	 * @param keyType
+	 *            the key type, AttrType.attrString. Input parameter.
+	 * @param maxKeySize
+	 *            the largest key size of the tree, which the high key of
+	 *            the page is given room for. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public BTPrefixLeafPage(Page page, PageId pageno, int keyType,
+			int maxKeySize) throws IOException, ConstructPageException {
+		super(page, keyType);
+		init(pageno, page);
+		setType(NodeType.LEAF);
+		BTLink.format(this, maxKeySize);
+		try {
+			rebuild(new ArrayList<KeyDataEntry>(0));
+		} catch (InsertRecException e) {
+			throw new ConstructPageException(e, "format trailer failed");
+		}
+	}
+
+	/**
+	 * @return the prefix shared by the keys of the page.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public String getPrefix() throws IOException {
+		byte[] data = getpage();
+		int end = end();
+		int length = Convert.getShortValue(end - 2, data);
+		return Convert.getStrValue(end - length, data, length - 2);
+	}
+
+	/*
+	 * Where the prefix is written on the page, read without Convert for
+	 * BTSearch.compareAt.
+	 */
+	int prefixPosition() {
+		byte[] data = getpage();
+		int end = MAX_SPACE - BTKeyBytes.getShort(data, MAX_SPACE - 2);
+		return end - BTKeyBytes.getShort(data, end - 2);
+	}
+
+	/*
+	 * End of the prefix trailer, where the BTLink trailer starts.
+	 */
+	private int end() throws IOException {
+		return MAX_SPACE - BTLink.trailerLength(this);
+	}
+
+	/**
+	 * Insert <key, dataRid> at its sorted position.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param dataRid
+	 *            the rid of the data record. Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception LeafInsertRecException
+	 *                error when inserting the entry
+	 */
+	public RID insertRecord(KeyClass key, RID dataRid)
+			throws LeafInsertRecException {
+		try {
+			return insertRecord(new KeyDataEntry(key, dataRid));
+		} catch (InsertRecException e) {
+			throw new LeafInsertRecException(e, "insert record failed");
+		}
+	}
+
+	protected RID insertRecord(KeyDataEntry entry) throws InsertRecException {
+		try {
+			return insertEntry(entry, BTSearch.upperBound(this, entry.key));
+		} catch (IteratorException e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	public KeyDataEntry getFirst(RID rid) throws IteratorException {
+		try {
+			rid.pageNo = getCurPage();
+			rid.slotNo = 0;
+			if (getSlotCnt() <= 0)
+				return null;
+			return entryAt(0);
+		} catch (IOException e) {
+			throw new IteratorException(e, "Get first entry failed");
+		}
+	}
+
+	public KeyDataEntry getNext(RID rid) throws IteratorException {
+		try {
+			rid.slotNo++;
+			if (rid.slotNo >= getSlotCnt())
+				return null;
+			return entryAt(rid.slotNo);
+		} catch (IOException e) {
+			throw new IteratorException(e, "Get next entry failed");
+		}
+	}
+
+	/**
+	 * Decode the entry in a given slot, with its whole key.
+	 *
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < getSlotCnt(). Input parameter.
+	 * @return the entry.
+	 * @exception IteratorException
+	 *                error when decoding the entry
+	 */
+	KeyDataEntry entryAt(int slotno) throws IteratorException {
+		try {
+			KeyDataEntry entry = BT.getEntryFromBytes(getpage(),
+					getSlotOffset(slotno), getSlotLength(slotno), keyType,
+					NodeType.LEAF);
+			StringKey key = (StringKey) entry.key;
+			key.setKey(getPrefix() + key.getKey());
+			return entry;
+		} catch (Exception e) {
+			throw new IteratorException(e, "Get entry failed");
+		}
+	}
+
+	/**
+	 * Insert an entry into a given slot. If its key does not start with the
+	 * prefix of the page, the page is rebuilt with a shorter prefix.
+	 *
+	 * @param entry
+	 *            the entry. Input parameter.
+	 * @param position
+	 *            the slot the entry goes to, 0 <= position <= getSlotCnt().
+	 *            Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception InsertRecException
+	 *                error when inserting the entry
+	 */
+	RID insertEntry(KeyDataEntry entry, int position)
+			throws InsertRecException {
+		try {
+			String prefix = getPrefix();
+			if (((StringKey) entry.key).getKey().startsWith(prefix)) {
+				RID rid = insertRecord(encode(entry, prefix));
+				if (rid == null)
+					return null;
+				BTSearch.moveSlot(getpage(), rid.slotNo, position);
+				rid.slotNo = position;
+				return rid;
+			}
+
+			ArrayList<KeyDataEntry> entries = BTSplit.entries(this);
+			entries.add(position, entry);
+			if (BTSplit.space(this, entries, 0, entries.size()) > end()
+					- HFPage.DPFIXED)
+				return null;
+			rebuild(entries);
+			return new RID(getCurPage(), position);
+		} catch (InsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	/**
+	 * Replace all entries of the page with `entries', which are sorted, and
+	 * make the common prefix of their first and last key the prefix of the
+	 * page.
+	 *
+	 * @param entries
+	 *            the new entries of the page. Input parameter.
+	 * @exception InsertRecException
+	 *                the entries do not fit on the page
+	 */
+	void rebuild(List<KeyDataEntry> entries) throws InsertRecException {
+		try {
+			String prefix = entries.isEmpty() ? "" : commonPrefix(
+					((StringKey) entries.get(0).key).getKey(),
+					((StringKey) entries.get(entries.size() - 1).key)
+							.getKey());
+
+			byte[] data = getpage();
+			int end = end();
+			int length = trailerLength(prefix);
+			BTSplit.setHeader(data, 0, end - length);
+			Convert.setStrValue(prefix, end - length, data);
+			Convert.setShortValue((short) length, end - 2, data);
+
+			for (int i = 0; i < entries.size(); i++) {
+				if (insertRecord(encode(entries.get(i), prefix)) == null)
+					throw new InsertRecException(null, "entries do not fit");
+			}
+		} catch (InsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InsertRecException(e, "rebuild page failed");
+		}
+	}
+
+	/*
+	 * The record of an entry on a page with the given prefix.
+	 */
+	private static byte[] encode(KeyDataEntry entry, String prefix)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		String key = ((StringKey) entry.key).getKey();
+		return BT.getBytesFromEntry(new KeyDataEntry(new StringKey(key
+				.substring(prefix.length())), ((LeafData) entry.data)
+				.getData()));
+	}
+
+	/**
+	 * @return the longest common prefix of two strings.
+	 */
+	static String commonPrefix(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < length && a.charAt(i) == b.charAt(i))
+			i++;
+		return a.substring(0, i);
+	}
+
+	/**
+	 * @return the size of the trailer holding a given prefix.
+	 */
+	static int trailerLength(String prefix) {
+		return 2 + 2 + utfLength(prefix);
+	}
+
+	/**
+	 * @return the number of bytes writeUTF takes for a string, without its
+	 *         two byte length.
+	 */
+	static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				length++;
+			else if (c > 0x07FF)
+				length += 3;
+			else
+				length += 2;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * @(#) BTSearch.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTSearch provides binary search over the slot directory of a BTSortedPage.
+ * The slots of a sorted page are kept in key order (BTSortedPage inserts by
+ * shifting slots and deleteSortedRecord compacts the directory), so slot i
+ * always holds the i-th smallest key and no slot is empty. Only the slots
+ * visited by the search are decoded, instead of every entry in front of the
+ * position we are looking for, and they are compared with the search key
+ * where they lie on the page, by BTKeyBytes: a key is decoded only for an
+ * entry handed back.
+ */
+class BTSearch implements GlobalConst {
+
+	/*
+	 * Byte position of slot `slotno' in the slot directory of an HFPage.
+	 */
+	private static int slotPosition(int slotno) {
+		return HFPage.DPFIXED + slotno * HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Decode the entry stored in a given slot. Keys on a BTPrefixLeafPage
+	 * come back whole; entries of a packed page are read from its arrays.
+	 * The entries of an index page with entry counts come with their count,
+	 * as CountedIndexData.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < getSlotCnt(). Input parameter.
+	 * @return the entry in the slot.
+	 * @exception IteratorException
+	 *                error when decoding the entry
+	 */
+	static KeyDataEntry entryAt(BTSortedPage page, int slotno)
+			throws IteratorException {
+		if (page instanceof BTPrefixLeafPage)
+			return ((BTPrefixLeafPage) page).entryAt(slotno);
+		if (BTIntArrays.packed(page))
+			return BTIntArrays.entryAt(page, slotno);
+		try {
+			if (BTLink.counted(page)) {
+				int offset = page.getSlotOffset(slotno);
+				int length = page.getSlotLength(slotno) - 4;
+				KeyDataEntry entry = BT.getEntryFromBytes(page.getpage(),
+						offset, length, page.keyType, NodeType.INDEX);
+				return CountedIndexData.entry(entry.key,
+						((IndexData) entry.data).getData(), BTKeyBytes.getInt(
+								page.getpage(), offset + length));
+			}
+			return BT.getEntryFromBytes(page.getpage(),
+					page.getSlotOffset(slotno), page.getSlotLength(slotno),
+					page.keyType, page.getType());
+		} catch (Exception e) {
+			throw new IteratorException(e, "Get entry failed");
+		}
+	}
+
+	/*
+	 * Number of slots of the page, read without Convert.
+	 */
+	private static int slotCount(BTSortedPage page) {
+		return BTKeyBytes.getShort(page.getpage(), HFPage.SLOT_CNT);
+	}
+
+	/**
+	 * Compare the key in a given slot with a search key, without decoding
+	 * it.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param slotno
+	 *            the slot number, 0 <= slotno < getSlotCnt(). Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return less than, equal to or greater than 0 as the key in the slot is
+	 *         less than, equal to or greater than `key'.
+	 * @exception KeyNotMatchException
+	 *                key is not of the key type of the page
+	 */
+	static int compareAt(BTSortedPage page, int slotno, KeyClass key)
+			throws KeyNotMatchException {
+		byte[] data = page.getpage();
+		if (BTIntArrays.packed(page))
+			return BTKeyBytes.compare(data, BTIntArrays.keyPosition(slotno),
+					page.keyType, key);
+		int offset = BTKeyBytes.getShort(data, slotPosition(slotno) + 2);
+		if (page instanceof BTPrefixLeafPage && key instanceof StringKey)
+			return BTKeyBytes.compare(data, ((BTPrefixLeafPage) page)
+					.prefixPosition(), offset, ((StringKey) key).getKey());
+		return BTKeyBytes.compare(data, offset, page.keyType, key);
+	}
+
+	/**
+	 * Find the first slot whose key is greater than or equal to `key'.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, getSlotCnt() if every key is smaller.
+	 * @exception IteratorException
+	 *                error when comparing a key
+	 */
+	static int lowerBound(BTSortedPage page, KeyClass key)
+			throws IteratorException {
+		if (BTIntArrays.packed(page) && key instanceof IntegerKey)
+			return BTIntArrays.lowerBound(page, ((IntegerKey) key).getKey()
+					.intValue());
+		try {
+			int lo = 0;
+			int hi = slotCount(page);
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compareAt(page, mid, key) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		} catch (Exception e) {
+			throw new IteratorException(e, "Search page failed");
+		}
+	}
+
+	/**
+	 * Find the first slot whose key is strictly greater than `key'.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, getSlotCnt() if no key is greater.
+	 * @exception IteratorException
+	 *                error when comparing a key
+	 */
+	static int upperBound(BTSortedPage page, KeyClass key)
+			throws IteratorException {
+		if (BTIntArrays.packed(page) && key instanceof IntegerKey)
+			return BTIntArrays.upperBound(page, ((IntegerKey) key).getKey()
+					.intValue());
+		try {
+			int lo = 0;
+			int hi = slotCount(page);
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compareAt(page, mid, key) <= 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		} catch (Exception e) {
+			throw new IteratorException(e, "Search page failed");
+		}
+	}
+
+	/**
+	 * The child page an index slot points to. Slot -1 stands for the
+	 * leftmost child, which is kept in the prev page pointer.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param slotno
+	 *            the slot number, -1 <= slotno < getSlotCnt(). Input
+	 *            parameter.
+	 * @return the child page id.
+	 * @exception IteratorException
+	 *                error when decoding the entry
+	 */
+	static PageId childAt(BTIndexPage page, int slotno)
+			throws IteratorException {
+		if (slotno >= 0 && BTIntArrays.packed(page))
+			return new PageId(BTIntArrays.child(page, slotno));
+		if (slotno >= 0)
+			return ((IndexData) entryAt(page, slotno).data).getData();
+		try {
+			return page.getPrevPage();
+		} catch (IOException e) {
+			throw new IteratorException(e, "Get left link failed");
+		}
+	}
+
+	/**
+	 * Binary search counterpart of BTIndexPage.getPageNoByKey: the child
+	 * whose subtree holds `key', i.e. the child of the last entry with a key
+	 * less than or equal to `key', or the leftmost child if there is none.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the child page id.
+	 * @exception IndexSearchException
+	 *                error when searching the page
+	 */
+	static PageId getPageNoByKey(BTIndexPage page, KeyClass key)
+			throws IndexSearchException {
+		try {
+			return childAt(page, upperBound(page, key) - 1);
+		} catch (Exception e) {
+			throw new IndexSearchException(e, "Get entry failed");
+		}
+	}
+
+	/**
+	 * Insert an entry at its sorted position. Equal keys keep their insertion
+	 * order, as with BTSortedPage.insertRecord.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param entry
+	 *            the entry to insert. Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception InsertRecException
+	 *                error when inserting the entry
+	 */
+	static RID insertRecord(BTSortedPage page, KeyDataEntry entry)
+			throws InsertRecException {
+		try {
+			return insertRecord(page, entry, upperBound(page, entry.key));
+		} catch (IteratorException e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	/**
+	 * Insert an entry into a given slot, shifting the slots from there on
+	 * one position up. The record is added by HFPage.insertRecord, which
+	 * puts it in a new last slot, and its slot is then moved into place with
+	 * one copy of the slot directory. A BTPrefixLeafPage encodes the entry
+	 * itself, and a packed page writes it into its arrays. An index page
+	 * with entry counts takes CountedIndexData only, and writes the count
+	 * after the record as BT encodes it.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param entry
+	 *            the entry to insert. Input parameter.
+	 * @param position
+	 *            the slot the entry goes to, 0 <= position <= getSlotCnt().
+	 *            Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception InsertRecException
+	 *                error when inserting the entry
+	 */
+	static RID insertRecord(BTSortedPage page, KeyDataEntry entry, int position)
+			throws InsertRecException {
+		if (page instanceof BTPrefixLeafPage)
+			return ((BTPrefixLeafPage) page).insertEntry(entry, position);
+		if (BTIntArrays.packed(page))
+			return BTIntArrays.insert(page, entry, position);
+		if (BTLink.counted(page) && !(entry.data instanceof CountedIndexData))
+			throw new InsertRecException(null, "index entry has no count");
+		try {
+			byte[] record = BT.getBytesFromEntry(entry);
+			if (BTLink.counted(page)) {
+				record = Arrays.copyOf(record, record.length + 4);
+				Convert.setIntValue(BTCounts.count(entry), record.length - 4,
+						record);
+			}
+			RID rid = page.insertRecord(record);
+			if (rid == null)
+				return null;
+
+			moveSlot(page.getpage(), rid.slotNo, position);
+			rid.slotNo = position;
+			return rid;
+		} catch (Exception e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+	}
+
+	/**
+	 * Insert <key, rid> into a leaf page at its sorted position.
+	 *
+	 * @param page
+	 *            the leaf page. Input parameter.
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param dataRid
+	 *            the rid of the data record. Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception LeafInsertRecException
+	 *                error when inserting the entry
+	 */
+	static RID insertRecord(BTLeafPage page, KeyClass key, RID dataRid)
+			throws LeafInsertRecException {
+		try {
+			return insertRecord(page, new KeyDataEntry(key, dataRid));
+		} catch (Exception e) {
+			throw new LeafInsertRecException(e, "insert record failed");
+		}
+	}
+
+	/**
+	 * Insert <key, pageNo> into an index page at its sorted position.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param pageNo
+	 *            the child page. Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception IndexInsertRecException
+	 *                error when inserting the entry
+	 */
+	static RID insertKey(BTIndexPage page, KeyClass key, PageId pageNo)
+			throws IndexInsertRecException {
+		try {
+			return insertRecord(page, new KeyDataEntry(key, pageNo));
+		} catch (Exception e) {
+			throw new IndexInsertRecException(e, "Insert failed");
+		}
+	}
+
+	/**
+	 * Insert <key, pageNo> into a given slot of an index page. Used when the
+	 * entry has to go right after the entry of a child that was split, which
+	 * keeps children with duplicate separator keys in leaf order.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param pageNo
+	 *            the child page. Input parameter.
+	 * @param count
+	 *            the number of entries in the subtree of the child, kept on
+	 *            a page with entry counts only. Input parameter.
+	 * @param position
+	 *            the slot the entry goes to. Input parameter.
+	 * @return the rid of the new entry, null if the page has no room.
+	 * @exception IndexInsertRecException
+	 *                error when inserting the entry
+	 */
+	static RID insertKey(BTIndexPage page, KeyClass key, PageId pageNo,
+			int count, int position) throws IndexInsertRecException {
+		try {
+			return insertRecord(page, indexEntry(page, key, pageNo, count),
+					position);
+		} catch (Exception e) {
+			throw new IndexInsertRecException(e, "Insert failed");
+		}
+	}
+
+	/**
+	 * An index entry in the format of a page: with its count on a page with
+	 * entry counts, without elsewhere.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param pageNo
+	 *            the child page. Input parameter.
+	 * @param count
+	 *            the number of entries in the subtree of the child. Input
+	 *            parameter.
+	 * @return the entry.
+	 */
+	static KeyDataEntry indexEntry(BTSortedPage page, KeyClass key,
+			PageId pageNo, int count) {
+		if (BTLink.counted(page))
+			return CountedIndexData.entry(key, pageNo, count);
+		return new KeyDataEntry(key, pageNo);
+	}
+
+	/*
+	 * Move the slot at `from' to `to', shifting the slots in between by one
+	 * position.
+	 */
+	static void moveSlot(byte[] data, int from, int to) {
+		if (from == to)
+			return;
+
+		byte[] slot = new byte[HFPage.SIZE_OF_SLOT];
+		System.arraycopy(data, slotPosition(from), slot, 0, slot.length);
+		if (from > to)
+			System.arraycopy(data, slotPosition(to), data, slotPosition(to + 1),
+					(from - to) * HFPage.SIZE_OF_SLOT);
+		else
+			System.arraycopy(data, slotPosition(from + 1), data,
+					slotPosition(from), (to - from) * HFPage.SIZE_OF_SLOT);
+		System.arraycopy(slot, 0, data, slotPosition(to), slot.length);
+	}
+}
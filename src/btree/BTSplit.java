@@ -0,0 +1,429 @@
+/*
+ * @(#) BTSplit.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTSplit splits a full BTSortedPage by copying byte ranges. The upper part
+ * of the slot directory and its records go to an empty page, and the records
+ * the old page keeps are packed again, in one pass over each page. Neither
+ * page goes through insertRecord or deleteSortedRecord, so no entry is
+ * decoded and the slot directory is not compacted once per moved entry.
+ * <p>
+ * For merging and redistributing underfull pages it can also rewrite a page
+ * with a given list of entries. The keys of a BTPrefixLeafPage change their
+ * encoding with the page prefix, so those pages are always split that way,
+ * and sized with Run. Packed pages have no records, and BTIntArrays copies
+ * their arrays instead.
+ */
+class BTSplit implements GlobalConst {
+
+	/**
+	 * Pick the slot where the upper half of a page starts, so that both
+	 * halves hold about the same number of bytes (records and slots).
+	 *
+	 * @param page
+	 *            the page to split, holding at least two entries. Input
+	 *            parameter.
+	 * @return the first slot of the upper half, 0 < slot < getSlotCnt().
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int splitPoint(BTSortedPage page) throws IOException {
+		int slotCnt = page.getSlotCnt();
+		int[] sizes = new int[slotCnt];
+		for (int i = 0; i < slotCnt; i++)
+			sizes[i] = size(page, i);
+		return splitPoint(sizes);
+	}
+
+	/**
+	 * @param page
+	 *            a sorted page. Input parameter.
+	 * @param slotno
+	 *            an entry of the page. Input parameter.
+	 * @return the bytes the entry takes on the page, with its slot, if the
+	 *         page has slots.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int size(BTSortedPage page, int slotno) throws IOException {
+		if (BTIntArrays.packed(page))
+			return page.getSlotLength(slotno);
+		return page.getSlotLength(slotno) + HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Pick where to cut a run of entries so that both parts hold about the
+	 * same number of bytes.
+	 *
+	 * @param sizes
+	 *            the size of each entry, record and slot, at least two
+	 *            entries. Input parameter.
+	 * @return the first entry of the upper part, 0 < cut < sizes.length.
+	 */
+	static int splitPoint(int[] sizes) {
+		int total = 0;
+		for (int i = 0; i < sizes.length; i++)
+			total += sizes[i];
+
+		int lower = 0;
+		int cut = 0;
+		while (cut < sizes.length - 1 && 2 * lower < total) {
+			lower += sizes[cut];
+			cut++;
+		}
+		return Math.max(cut, 1);
+	}
+
+	/**
+	 * Split a page. `page' keeps slots [0, keep) and the empty page `newPage'
+	 * receives slots [first, getSlotCnt()) in the same order. Slots in
+	 * between (the middle entry of an index page, which moves up into the
+	 * parent) are dropped. Page links are left to the caller.
+	 *
+	 * @param page
+	 *            the page to split. Input parameter.
+	 * @param newPage
+	 *            an empty page of the same type. Input parameter.
+	 * @param keep
+	 *            number of slots `page' keeps. Input parameter.
+	 * @param first
+	 *            first slot moved to `newPage', first >= keep. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void split(BTSortedPage page, BTSortedPage newPage, int keep,
+			int first) throws IOException {
+		if (BTIntArrays.packed(page)) {
+			BTIntArrays.split(page, newPage, keep, first);
+			return;
+		}
+		byte[] data = page.getpage();
+		int slotCnt = page.getSlotCnt();
+		int usedPtr = Convert.getShortValue(HFPage.USED_PTR, data);
+		int dataEnd = dataEnd(page);
+
+		// upper part: copy each record to the new page and write its slot
+		byte[] newData = newPage.getpage();
+		int newPtr = Convert.getShortValue(HFPage.USED_PTR, newData);
+		for (int i = first; i < slotCnt; i++) {
+			int length = page.getSlotLength(i);
+			newPtr -= length;
+			System.arraycopy(data, page.getSlotOffset(i), newData, newPtr,
+					length);
+			newPage.setSlot(i - first, length, newPtr);
+		}
+		setHeader(newData, slotCnt - first, newPtr);
+
+		// lower part: pack the records we keep from a copy of the data area
+		byte[] records = new byte[dataEnd - usedPtr];
+		System.arraycopy(data, usedPtr, records, 0, records.length);
+		int ptr = dataEnd;
+		for (int i = 0; i < keep; i++) {
+			int length = page.getSlotLength(i);
+			ptr -= length;
+			System.arraycopy(records, page.getSlotOffset(i) - usedPtr, data,
+					ptr, length);
+			page.setSlot(i, length, ptr);
+		}
+		setHeader(data, keep, ptr);
+	}
+
+	/**
+	 * Split a full leaf and insert an entry that did not fit. `page' keeps the
+	 * lower part of the entries and the empty page `newPage' gets the upper
+	 * part. Plain leaves are split by byte ranges. Prefix leaves are rebuilt
+	 * from their entries, cut where the fuller page is least full, since the
+	 * prefix of each half and so the size of its entries changes.
+	 *
+	 * @param page
+	 *            the full leaf. Input parameter.
+	 * @param newPage
+	 *            an empty leaf of the same kind. Input parameter.
+	 * @param entry
+	 *            the entry to insert. Input parameter.
+	 * @param position
+	 *            the slot of `page' the entry goes to. Input parameter.
+	 * @exception LeafInsertRecException
+	 *                error when writing the pages
+	 * @exception IteratorException
+	 *                error when decoding an entry
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void splitLeaf(BTLeafPage page, BTLeafPage newPage,
+			KeyDataEntry entry, int position) throws LeafInsertRecException,
+			IteratorException, KeyNotMatchException, IOException {
+		try {
+			if (page instanceof BTPrefixLeafPage) {
+				ArrayList<KeyDataEntry> entries = entries(page);
+				entries.add(position, entry);
+				int cut = splitPoint(page, entries);
+				rebuild(page, entries.subList(0, cut));
+				rebuild(newPage, entries.subList(cut, entries.size()));
+				return;
+			}
+
+			int splitSlot = splitPoint(page);
+			split(page, newPage, splitSlot, splitSlot);
+			if (position <= splitSlot)
+				BTSearch.insertRecord(page, entry, position);
+			else
+				BTSearch.insertRecord(newPage, entry, position - splitSlot);
+		} catch (InsertRecException e) {
+			throw new LeafInsertRecException(e, "split leaf failed");
+		}
+	}
+
+	/**
+	 * Pick where to cut a run of entries into two pages of the kind of
+	 * `page', so that the fuller of the two holds as few bytes as possible.
+	 *
+	 * @param page
+	 *            a page of the kind the entries go to. Input parameter.
+	 * @param entries
+	 *            at least two sorted entries. Input parameter.
+	 * @return the first entry of the upper part, 0 < cut < entries.size().
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int splitPoint(BTSortedPage page, List<KeyDataEntry> entries)
+			throws KeyNotMatchException, IOException {
+		int count = entries.size();
+		int[] lower = new int[count];
+		Run run = new Run(page);
+		for (int i = 0; i < count - 1; i++) {
+			run.add(entries.get(i));
+			lower[i + 1] = run.space();
+		}
+
+		int cut = 1;
+		int best = Integer.MAX_VALUE;
+		run = new Run(page);
+		for (int i = count - 1; i > 0; i--) {
+			run.add(entries.get(i));
+			int fuller = Math.max(lower[i], run.space());
+			if (fuller < best) {
+				best = fuller;
+				cut = i;
+			}
+		}
+		return cut;
+	}
+
+	/**
+	 * The bytes entries[from, to) take on a page of the kind of `page',
+	 * records, slots and trailer.
+	 *
+	 * @param page
+	 *            a page of the kind the entries go to. Input parameter.
+	 * @param entries
+	 *            the sorted entries. Input parameter.
+	 * @param from
+	 *            the first entry. Input parameter.
+	 * @param to
+	 *            the end of the run. Input parameter.
+	 * @return the space needed.
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int space(BTSortedPage page, List<KeyDataEntry> entries, int from,
+			int to) throws KeyNotMatchException, IOException {
+		Run run = new Run(page);
+		for (int i = from; i < to; i++)
+			run.add(entries.get(i));
+		return run.space();
+	}
+
+	/**
+	 * The space a run of sorted entries takes on a page, counted as entries
+	 * are added at either end. On a BTPrefixLeafPage each entry is shorter by
+	 * the common prefix of the run, which is stored once in the trailer.
+	 */
+	static class Run {
+
+		private final int dataLength;
+		private final boolean prefixed;
+		private final int slotLength; // of each entry, none on packed pages
+		private int count;
+		private int bytes; // records with their whole key, and slots
+		private String prefix;
+
+		Run(BTSortedPage page) throws IOException {
+			try {
+				// with the count of an index entry, on a page that has them
+				dataLength = BT.getDataLength(page.getType())
+						+ (BTLink.counted(page) ? 4 : 0);
+			} catch (NodeNotMatchException e) {
+				throw new IOException("not a B+ tree page: " + e);
+			}
+			prefixed = page instanceof BTPrefixLeafPage;
+			slotLength = BTIntArrays.packed(page) ? 0 : HFPage.SIZE_OF_SLOT;
+		}
+
+		void add(KeyDataEntry entry) throws KeyNotMatchException, IOException {
+			bytes += length(entry);
+			if (prefixed) {
+				String key = ((StringKey) entry.key).getKey();
+				prefix = count == 0 ? key : BTPrefixLeafPage.commonPrefix(
+						prefix, key);
+			}
+			count++;
+		}
+
+		int space() {
+			if (!prefixed)
+				return bytes;
+			String p = count == 0 ? "" : prefix;
+			return bytes - count * BTPrefixLeafPage.utfLength(p)
+					+ BTPrefixLeafPage.trailerLength(p);
+		}
+
+		/*
+		 * The space the run would take with one more entry.
+		 */
+		int spaceWith(KeyDataEntry entry) throws KeyNotMatchException,
+				IOException {
+			if (!prefixed)
+				return bytes + length(entry);
+			String key = ((StringKey) entry.key).getKey();
+			String p = count == 0 ? key : BTPrefixLeafPage.commonPrefix(
+					prefix, key);
+			return bytes + length(entry) - (count + 1)
+					* BTPrefixLeafPage.utfLength(p)
+					+ BTPrefixLeafPage.trailerLength(p);
+		}
+
+		private int length(KeyDataEntry entry) throws KeyNotMatchException,
+				IOException {
+			return BT.getKeyLength(entry.key) + dataLength + slotLength;
+		}
+	}
+
+	/**
+	 * The separator to put into the parent between two neighbouring leaves.
+	 * For string keys it is the shortest prefix of `rightKey' that is still
+	 * greater than `leftKey' (suffix truncation), which keeps the entries of
+	 * index pages short and their fanout high. Every key of the left leaf is
+	 * smaller than it, and every key of the right leaf at least as great.
+	 * Integer keys, and a run of duplicates split over both leaves, keep
+	 * `rightKey'.
+	 *
+	 * @param leftKey
+	 *            the last key of the left leaf. Input parameter.
+	 * @param rightKey
+	 *            the first key of the right leaf. Input parameter.
+	 * @return the separator key.
+	 */
+	static KeyClass separator(KeyClass leftKey, KeyClass rightKey) {
+		if (!(leftKey instanceof StringKey) || !(rightKey instanceof StringKey))
+			return rightKey;
+
+		String left = ((StringKey) leftKey).getKey();
+		String right = ((StringKey) rightKey).getKey();
+		int common = 0;
+		int length = Math.min(left.length(), right.length());
+		while (common < length && left.charAt(common) == right.charAt(common))
+			common++;
+
+		// equal keys, or no shorter prefix of right is greater than left
+		if (common + 1 >= right.length())
+			return rightKey;
+		return new StringKey(right.substring(0, common + 1));
+	}
+
+	/**
+	 * Decode all entries of a page, in slot order.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @return the entries.
+	 * @exception IteratorException
+	 *                error when decoding an entry
+	 */
+	static ArrayList<KeyDataEntry> entries(BTSortedPage page)
+			throws IteratorException {
+		try {
+			int slotCnt = page.getSlotCnt();
+			ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>(slotCnt);
+			for (int i = 0; i < slotCnt; i++)
+				entries.add(BTSearch.entryAt(page, i));
+			return entries;
+		} catch (IOException e) {
+			throw new IteratorException(e, "Get entries failed");
+		}
+	}
+
+	/**
+	 * Replace all entries of a page with `entries', which are already in
+	 * sorted order. The page header and links are kept.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param entries
+	 *            the new entries of the page. Input parameter.
+	 * @exception InsertRecException
+	 *                the entries do not fit on the page
+	 */
+	static void rebuild(BTSortedPage page, List<KeyDataEntry> entries)
+			throws InsertRecException {
+		if (page instanceof BTPrefixLeafPage) {
+			((BTPrefixLeafPage) page).rebuild(entries);
+			return;
+		}
+		if (BTIntArrays.packed(page)) {
+			BTIntArrays.rebuild(page, entries);
+			return;
+		}
+		try {
+			setHeader(page.getpage(), 0, dataEnd(page));
+			for (int i = 0; i < entries.size(); i++) {
+				if (BTSearch.insertRecord(page, entries.get(i), i) == null)
+					throw new InsertRecException(null, "entries do not fit");
+			}
+		} catch (IOException e) {
+			throw new InsertRecException(e, "rebuild page failed");
+		}
+	}
+
+	/*
+	 * End of the record area of a page. HFPage keeps the records packed at
+	 * the end of the page (deleteRecord closes the gap it leaves), so they
+	 * fill [usedPtr, dataEnd) exactly.
+	 */
+	private static int dataEnd(BTSortedPage page) throws IOException {
+		int dataEnd = Convert.getShortValue(HFPage.USED_PTR, page.getpage());
+		int slotCnt = page.getSlotCnt();
+		for (int i = 0; i < slotCnt; i++)
+			dataEnd += page.getSlotLength(i);
+		return dataEnd;
+	}
+
+	/*
+	 * Write slotCnt, usedPtr and freeSpace of an HFPage whose slots
+	 * [0, slotCnt) are all in use and whose records start at usedPtr.
+	 */
+	static void setHeader(byte[] data, int slotCnt, int usedPtr)
+			throws IOException {
+		Convert.setShortValue((short) slotCnt, HFPage.SLOT_CNT, data);
+		Convert.setShortValue((short) usedPtr, HFPage.USED_PTR, data);
+		Convert.setShortValue((short) (usedPtr - HFPage.DPFIXED - slotCnt
+				* HFPage.SIZE_OF_SLOT), HFPage.FREE_SPACE, data);
+	}
+}
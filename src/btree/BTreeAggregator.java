@@ -0,0 +1,92 @@
+/*
+ * @(#) BTreeAggregator.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+/**
+ * An aggregation over the entries of a key range, for
+ * BTreeFile.aggregate: each part of the range is folded into a partial
+ * result of its own, on a thread of its own, and the partial results are
+ * combined in key order at the end.
+ *
+ * @param <A>
+ *            the type of a partial result and of the result
+ */
+public abstract class BTreeAggregator<A> {
+
+	/**
+	 * @return a new partial result, of no entries.
+	 */
+	public abstract A start();
+
+	/**
+	 * Add an entry to a partial result.
+	 *
+	 * @param partial
+	 *            the partial result, of the entries before `entry' in its
+	 *            part. Input parameter.
+	 * @param entry
+	 *            the next entry of the part. Input parameter.
+	 * @return the partial result with the entry, `partial' itself or a new
+	 *         one.
+	 */
+	public abstract A add(A partial, KeyDataEntry entry);
+
+	/**
+	 * Combine the partial results of two neighbouring parts.
+	 *
+	 * @param left
+	 *            the partial result of the part with the smaller keys. Input
+	 *            parameter.
+	 * @param right
+	 *            the partial result of the part right of it. Input
+	 *            parameter.
+	 * @return the partial result of both parts, `left' itself or a new one.
+	 */
+	public abstract A combine(A left, A right);
+
+	/**
+	 * @return an aggregator counting the entries.
+	 */
+	public static BTreeAggregator<Long> count() {
+		return new BTreeAggregator<Long>() {
+			public Long start() {
+				return 0L;
+			}
+
+			public Long add(Long partial, KeyDataEntry entry) {
+				return partial + 1;
+			}
+
+			public Long combine(Long left, Long right) {
+				return left + right;
+			}
+		};
+	}
+
+	/**
+	 * @return an aggregator collecting the page numbers of the rids of the
+	 *         entries, the data pages they point into.
+	 */
+	public static BTreeAggregator<Set<Integer>> distinctPages() {
+		return new BTreeAggregator<Set<Integer>>() {
+			public Set<Integer> start() {
+				return new HashSet<Integer>();
+			}
+
+			public Set<Integer> add(Set<Integer> partial, KeyDataEntry entry) {
+				partial.add(((LeafData) entry.data).getData().pageNo.pid);
+				return partial;
+			}
+
+			public Set<Integer> combine(Set<Integer> left, Set<Integer> right) {
+				left.addAll(right);
+				return left;
+			}
+		};
+	}
+}
@@ -8,6 +8,15 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -17,13 +26,32 @@ import btree.*;
 /**
  * btfile.java This is the main definition of class BTreeFile, which derives
  * from abstract base class IndexFile. It provides an insert/delete interface.
+ * <p>
+ * Several threads may insert, delete and scan at once. The tree is a B-link
+ * tree (see BTLink): every page links to its right neighbour and knows its
+ * high key, and pages only ever split to the right, so an operation goes
+ * down holding the latch of one page at a time, and moves right along a
+ * level where a split got ahead of it. Index pages are not even latched on
+ * the way down, but read optimistically against their version (see
+ * PageLatches). A split latches one page at a time as well, on its way up.
+ * Merges and redistributions, insertAll and bulkLoad take the whole tree for
+ * themselves instead. close and destroyFile must not overlap with other
+ * calls.
  */
 public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
+	/** frames in the ring of a ScanHint.SEQUENTIAL_BULK scan */
+	public final static int SCAN_RING_SIZE = 16;
+
 	private final static String lineSep = System.getProperty("line.separator");
 
+	/**
+	 * Fill factor used by bulkLoad when the caller does not choose one.
+	 */
+	public final static float DEFAULT_FILL_FACTOR = 0.9f;
+
 	private static FileOutputStream fos;
 	private static DataOutputStream trace;
 
@@ -37,7 +65,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception IOException
 	 *                error from the lower layer
 	 */
-	public static void traceFilename(String filename) throws IOException {
+	public static synchronized void traceFilename(String filename)
+			throws IOException {
 
 		fos = new FileOutputStream(filename);
 		trace = new DataOutputStream(fos);
@@ -49,7 +78,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception IOException
 	 *                error from the lower layer
 	 */
-	public static void destroyTrace() throws IOException {
+	public static synchronized void destroyTrace() throws IOException {
 		if (trace != null)
 			trace.close();
 		if (fos != null)
@@ -58,10 +87,136 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		trace = null;
 	}
 
+	private BufferPool pool; // where the pages of the tree are pinned
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
 
+	private final BTreeMetrics metrics = new BTreeMetrics();
+	private boolean prefixLeaves; // leaf pages are BTPrefixLeafPage
+	private boolean packed; // pages are BTIntLeafPage and BTIntIndexPage
+	private boolean counted; // index entries carry entry counts (BTCounts)
+	private volatile boolean countsStale; // counts off since an insert failed
+	private volatile boolean splitsLeft; // failed inserts left splits unposted
+
+	// pages pinned so far by each thread, for the per-operation counts
+	private final ThreadLocal<int[]> pins = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/*
+	 * Threads latch the pages of the tree as they go, and the header page
+	 * for the root id. Pins go through the buffer manager one at a time.
+	 */
+	private final PageLatches latches = new PageLatches();
+
+	/*
+	 * The pids of the pages whose split a thread is posting to the parent.
+	 * A page marked split-pending that is not here was split by an insert
+	 * that failed before the separator went up; the next insert in its way
+	 * posts it. Pages are added and removed under their latch.
+	 */
+	private final Set<Integer> posting = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/*
+	 * Held shared by inserts, deletes that leave their leaf at least half
+	 * full, and scans, and exclusively by the operations that move entries
+	 * left or free pages: merges and redistributions, insertAll and
+	 * bulkLoad. These latch no pages.
+	 */
+	private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+
+	/*
+	 * Counts the times the tree was held exclusively. A page id taken while
+	 * it stays the same still names a page at the same level of the tree,
+	 * holding keys no smaller than it did.
+	 */
+	private final AtomicLong structureVersion = new AtomicLong();
+
+	/*
+	 * The root-to-leaf path of the last insert of each thread: the first
+	 * entry is the root, the last one the leaf the insert went to. It is
+	 * stale once the structure version has moved on.
+	 */
+	private final ThreadLocal<Path> path = new ThreadLocal<Path>();
+
+	private static class Path {
+		final ArrayList<PathEntry> entries = new ArrayList<PathEntry>();
+		final long version; // structure version the path was taken at
+
+		Path(long version) {
+			this.version = version;
+		}
+	}
+
+	/*
+	 * A page on the path, with the bounds of the keys of its subtree as they
+	 * were when it was visited: low <= key < high, a null bound meaning there
+	 * is none. Its low bound never changes while the structure version stays
+	 * the same, but a split may since have lowered its high bound.
+	 */
+	private static class PathEntry {
+		final PageId pageId;
+		final KeyClass low;
+		final KeyClass high;
+
+		PathEntry(PageId pageId, KeyClass low, KeyClass high) {
+			this.pageId = pageId;
+			this.low = low;
+			this.high = high;
+		}
+
+		boolean holds(KeyClass key) throws KeyNotMatchException {
+			return (low == null || BT.keyCompare(key, low) >= 0)
+					&& (high == null || BT.keyCompare(key, high) < 0);
+		}
+	}
+
+	/*
+	 * A split whose separator is still to go up: rightId was split off
+	 * leftId, and separates from it at `separator'. The entry of the insert
+	 * that made it is in, unless it is a split an insert that failed left
+	 * behind, found in the way of another one.
+	 */
+	private static class Split {
+		final KeyClass separator;
+		final PageId rightId;
+		final PageId leftId;
+		final boolean inserted;
+
+		Split(KeyClass separator, PageId rightId, PageId leftId,
+				boolean inserted) {
+			this.separator = separator;
+			this.rightId = rightId;
+			this.leftId = leftId;
+			this.inserted = inserted;
+		}
+	}
+
+	/*
+	 * Space for records and slots on a page of this tree, below the BTLink
+	 * trailer. The longer trailer of the index pages of a counted tree
+	 * leaves its leaves 4 bytes more than that.
+	 */
+	private int capacity;
+
+	/*
+	 * Leaves new scans read ahead of themselves, 0 for none.
+	 */
+	private volatile int readAheadLeaves;
+
+	/**
+	 * Access method to data member.
+	 *
+	 * @return Return the metrics of the operations on this btree file.
+	 */
+	public BTreeMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -72,9 +227,43 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return headerPage;
 	}
 
+	/**
+	 * Access method to data member.
+	 *
+	 * @return Return the buffer pool the pages of this btree file are pinned
+	 *         in.
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Set how many leaves the scans made from now on read into the buffer
+	 * pool ahead of the leaf they copy, on a background thread. A
+	 * ScanHint.SEQUENTIAL_BULK scan reads at most SCAN_RING_SIZE / 2 leaves
+	 * ahead, so that its ring keeps them until it gets to them.
+	 *
+	 * @param leaves
+	 *            the number of leaves, 0 for no read-ahead. Input parameter.
+	 */
+	public void setReadAhead(int leaves) {
+		readAheadLeaves = Math.max(0, leaves);
+	}
+
+	/**
+	 * Access method to data member.
+	 *
+	 * @return Return how many leaves new scans read ahead.
+	 */
+	public int getReadAhead() {
+		return readAheadLeaves;
+	}
+
 	private PageId get_file_entry(String filename) throws GetFileEntryException {
 		try {
-			return SystemDefs.JavabaseDB.get_file_entry(filename);
+			synchronized (SystemDefs.JavabaseBM) {
+				return SystemDefs.JavabaseDB.get_file_entry(filename);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new GetFileEntryException(e, "");
@@ -82,9 +271,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private Page pinPage(PageId pageno) throws PinPageException {
+		return pinPage(pageno, null);
+	}
+
+	/*
+	 * Pin a page, reading it into a frame of the ring if one is given.
+	 */
+	private Page pinPage(PageId pageno, BufferRing ring)
+			throws PinPageException {
 		try {
-			Page page = new Page();
-			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			Page page = new Page(null); // the pool sets it to the frame
+			if (ring != null)
+				pool.pinPage(pageno, page, ring);
+			else
+				pool.pinPage(pageno, page, false/* Rdisk */);
+			pins.get()[0]++;
+			metrics.pinned();
 			return page;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -95,7 +297,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private void add_file_entry(String fileName, PageId pageno)
 			throws AddFileEntryException {
 		try {
-			SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new AddFileEntryException(e, "");
@@ -104,7 +308,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void unpinPage(PageId pageno) throws UnpinPageException {
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			pool.unpinPage(pageno, false /* = not DIRTY */);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
@@ -113,7 +317,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void freePage(PageId pageno) throws FreePageException {
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			pool.freePage(pageno);
+			latches.forget(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new FreePageException(e, "");
@@ -121,20 +326,34 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/*
+	 * Allocate a page and pin it, for a page constructor.
+	 */
+	private PageId newPage(Page page) throws ConstructPageException {
+		try {
+			return pool.newPage(page, 1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+	}
+
 	private void delete_file_entry(String filename)
 			throws DeleteFileEntryException {
 		try {
-			SystemDefs.JavabaseDB.delete_file_entry(filename);
+			synchronized (SystemDefs.JavabaseBM) {
+				SystemDefs.JavabaseDB.delete_file_entry(filename);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DeleteFileEntryException(e, "");
 		}
 	}
 
-	private void unpinPage(PageId pageno, boolean dirty)
+	void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			pool.unpinPage(pageno, dirty);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
@@ -156,11 +375,39 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTreeFile(String filename) throws GetFileEntryException,
 			PinPageException, ConstructPageException {
+		this(new SystemBufferPool(), filename);
+	}
 
+	/**
+	 * BTreeFile class an index file with given filename should already exist;
+	 * this opens it, with its pages in a buffer pool of its own.
+	 *
+	 * @param pool
+	 *            the buffer pool to pin the pages of the file in. Input
+	 *            parameter.
+	 * @param filename
+	 *            the B+ tree file name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not ger the file from DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception ConstructPageException
+	 *                BT page constructor failed
+	 */
+	public BTreeFile(BufferPool pool, String filename)
+			throws GetFileEntryException, PinPageException,
+			ConstructPageException {
+		this.pool = pool;
 		headerPageId = get_file_entry(filename);
 
-		headerPage = new BTreeHeaderPage(headerPageId);
+		headerPage = new BTreeHeaderPage(pinPage(headerPageId));
 		dbname = new String(filename);
+		try {
+			open();
+		} catch (IOException e) {
+			throw new ConstructPageException(e, "get leaf format failed");
+		}
+		metrics.setTreeHeight(treeHeight());
 		/*
 		 * 
 		 * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -170,7 +417,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	/**
-	 * if index file exists, open it; else create it.
+	 * if index file exists, open it; else create it with plain leaf pages.
 	 *
 	 * @param filename
 	 *            file name. Input parameter.
@@ -193,139 +440,1815 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, LeafFormat.PLAIN);
+	}
+
+	/**
+	 * if index file exists, open it; else create it.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param leaf_format
+	 *            the format of the leaf pages, LeafFormat.PLAIN,
+	 *            LeafFormat.PREFIX_COMPRESSED (string keys only) or
+	 *            LeafFormat.PACKED_INT (integer keys only). Input parameter.
+	 *            A format that does not go with the key type is taken as
+	 *            PLAIN. An existing file keeps its own format.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int leaf_format) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
+		this(new SystemBufferPool(), filename, keytype, keysize,
+				delete_fashion, leaf_format);
+	}
+
+	/**
+	 * if index file exists, open it; else create it. Its pages are pinned in
+	 * a buffer pool of its own, such as a LocalBufferPool.
+	 *
+	 * @param pool
+	 *            the buffer pool to pin the pages of the file in. Input
+	 *            parameter.
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param leaf_format
+	 *            the format of the leaf pages, LeafFormat.PLAIN,
+	 *            LeafFormat.PREFIX_COMPRESSED (string keys only) or
+	 *            LeafFormat.PACKED_INT (integer keys only). Input parameter.
+	 *            A format that does not go with the key type is taken as
+	 *            PLAIN. An existing file keeps its own format.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(BufferPool pool, String filename, int keytype,
+			int keysize, int delete_fashion, int leaf_format)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this(pool, filename, keytype, keysize, delete_fashion, leaf_format,
+				false);
+	}
 
+	/**
+	 * if index file exists, open it; else create it, with entry counts in
+	 * its index pages if `counted'. The index entries of such a tree carry
+	 * the number of entries in the subtree of their child, which count,
+	 * rank and select read in logarithmic time; inserts and deletes then
+	 * hold the tree to themselves, as they change the counts along their
+	 * path.
+	 *
+	 * @param pool
+	 *            the buffer pool to pin the pages of the file in. Input
+	 *            parameter.
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param leaf_format
+	 *            the format of the leaf pages, LeafFormat.PLAIN,
+	 *            LeafFormat.PREFIX_COMPRESSED (string keys only) or
+	 *            LeafFormat.PACKED_INT (integer keys only). Input parameter.
+	 *            A format that does not go with the key type is taken as
+	 *            PLAIN. An existing file keeps its own format.
+	 * @param counted
+	 *            true to keep entry counts in the index pages. Input
+	 *            parameter. An existing file keeps counts if it has them.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(BufferPool pool, String filename, int keytype,
+			int keysize, int delete_fashion, int leaf_format, boolean counted)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this.pool = pool;
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
-			headerPage = new BTreeHeaderPage();
-			headerPageId = headerPage.getPageId();
+			Page page = new Page();
+			headerPageId = newPage(page);
+			headerPage = new BTreeHeaderPage(page);
+			headerPage.init(headerPageId, page);
 			add_file_entry(filename, headerPageId);
 			headerPage.set_magic0(MAGIC0);
 			headerPage.set_rootId(new PageId(INVALID_PAGE));
 			headerPage.set_keyType((short) keytype);
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
+			set_leafFormat(leaf_format == LeafFormat.PREFIX_COMPRESSED
+					&& keytype == AttrType.attrString
+					|| leaf_format == LeafFormat.PACKED_INT
+					&& keytype == AttrType.attrInteger ? leaf_format
+					: LeafFormat.PLAIN);
+			set_linkFormat();
+			set_pageSize();
+			set_leftLinks();
+			set_counted(counted);
 			headerPage.setType(NodeType.BTHEAD);
 		} else {
-			headerPage = new BTreeHeaderPage(headerPageId);
+			try {
+				headerPage = new BTreeHeaderPage(pinPage(headerPageId));
+			} catch (PinPageException e) {
+				throw new ConstructPageException(e, "pin header page failed");
+			}
 		}
 
 		dbname = new String(filename);
+		open();
+		metrics.setTreeHeight(treeHeight());
 
 	}
 
-	/**
-	 * Close the B+ tree file. Unpin header page.
-	 *
-	 * @exception PageUnpinnedException
-	 *                error from the lower layer
-	 * @exception InvalidFrameNumberException
-	 *                error from the lower layer
-	 * @exception HashEntryNotFoundException
-	 *                error from the lower layer
-	 * @exception ReplacerException
-	 *                error from the lower layer
+	/*
+	 * The leaf format is kept in slot 4 of the header page, next to the key
+	 * type, key size and delete fashion of BTreeHeaderPage. Header pages
+	 * written before it existed may hold anything there, so the slot offset
+	 * carries MAGIC0 as a check, and anything else reads as PLAIN.
 	 */
-	public void close() throws PageUnpinnedException,
-			InvalidFrameNumberException, HashEntryNotFoundException,
-			ReplacerException {
-		if (headerPage != null) {
-			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
-			headerPage = null;
-		}
+	private void set_leafFormat(int leafFormat) throws IOException {
+		headerPage.setSlot(4, leafFormat, MAGIC0);
 	}
 
-	/**
-	 * Destroy entire B+ tree file.
-	 *
-	 * @exception IOException
-	 *                error from the lower layer
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception UnpinPageException
-	 *                error when unpin a page
-	 * @exception FreePageException
-	 *                error when free a page
-	 * @exception DeleteFileEntryException
-	 *                failed when delete a file from DM
-	 * @exception ConstructPageException
-	 *                error in BT page constructor
-	 * @exception PinPageException
-	 *                failed when pin a page
-	 */
-	public void destroyFile() throws IOException, IteratorException,
-			UnpinPageException, FreePageException, DeleteFileEntryException,
-			ConstructPageException, PinPageException {
-		if (headerPage != null) {
-			PageId pgId = headerPage.get_rootId();
-			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
-			unpinPage(headerPageId);
-			freePage(headerPageId);
-			delete_file_entry(dbname);
-			headerPage = null;
-		}
+	private int get_leafFormat() throws IOException {
+		if (headerPage.getSlotOffset(4) != MAGIC0)
+			return LeafFormat.PLAIN;
+		return headerPage.getSlotLength(4);
 	}
 
-	private void _destroyFile(PageId pageno) throws IOException,
-			IteratorException, PinPageException, ConstructPageException,
-			UnpinPageException, FreePageException {
+	/*
+	 * Slot 5 of the header page, checked the same way, marks a tree whose
+	 * pages carry a BTLink trailer. Trees written before have pages full up
+	 * to the end, with no room to add it, and are not opened.
+	 */
+	private void set_linkFormat() throws IOException {
+		headerPage.setSlot(5, 1, MAGIC0);
+	}
 
-		BTSortedPage sortedPage;
-		Page page = pinPage(pageno);
-		sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+	private boolean get_linkFormat() throws IOException {
+		return headerPage.getSlotOffset(5) == MAGIC0
+				&& headerPage.getSlotLength(5) == 1;
+	}
 
-		if (sortedPage.getType() == NodeType.INDEX) {
-			BTIndexPage indexPage = new BTIndexPage(page,
-					headerPage.get_keyType());
-			RID rid = new RID();
-			PageId childId;
-			KeyDataEntry entry;
-			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
-					.getNext(rid)) {
-				childId = ((IndexData) (entry.data)).getData();
-				_destroyFile(childId);
-			}
-		} else { // BTLeafPage
+	/*
+	 * Slot 6, checked the same way, holds the page size the tree was
+	 * written with, as its base 2 logarithm. The page size is that of
+	 * GlobalConst, which diskmgr, HFPage and BTSortedPage are compiled
+	 * with; a tree written by a build with other pages is not opened.
+	 * Trees written before the slot existed are taken to have pages of
+	 * this build.
+	 */
+	private void set_pageSize() throws IOException {
+		headerPage.setSlot(6, Integer.numberOfTrailingZeros(MINIBASE_PAGESIZE),
+				MAGIC0);
+	}
 
-			unpinPage(pageno);
-			freePage(pageno);
-		}
+	private int get_pageSize() throws IOException {
+		if (headerPage.getSlotOffset(6) != MAGIC0)
+			return MINIBASE_PAGESIZE;
+		return 1 << headerPage.getSlotLength(6);
+	}
 
+	/*
+	 * Slot 7, checked the same way, marks a tree whose leaves carry left
+	 * links, which descending scans follow. Leaves of trees written before
+	 * have INVALID_PAGE there, and get their links when the tree is opened.
+	 */
+	private void set_leftLinks() throws IOException {
+		headerPage.setSlot(7, 1, MAGIC0);
 	}
 
-	private void updateHeader(PageId newRoot) throws IOException,
-			PinPageException, UnpinPageException {
+	private boolean get_leftLinks() throws IOException {
+		return headerPage.getSlotOffset(7) == MAGIC0
+				&& headerPage.getSlotLength(7) == 1;
+	}
 
-		BTreeHeaderPage header;
-		PageId old_data;
+	/*
+	 * Slot 8, checked the same way, marks a tree whose index pages carry
+	 * entry counts, with length 1, or with length 2 once the counts may be
+	 * off, after an insert failed and could not take its counts back.
+	 * Trees written before it existed have none.
+	 */
+	private void set_counted(boolean counted) throws IOException {
+		headerPage.setSlot(8, counted ? 1 : 0, MAGIC0);
+	}
 
-		header = new BTreeHeaderPage(pinPage(headerPageId));
+	private boolean get_counted() throws IOException {
+		return headerPage.getSlotOffset(8) == MAGIC0
+				&& (headerPage.getSlotLength(8) == 1 || get_countsStale());
+	}
 
-		old_data = headerPage.get_rootId();
-		header.set_rootId(newRoot);
+	private void set_countsStale() throws IOException {
+		headerPage.setSlot(8, 2, MAGIC0);
+	}
 
-		// clock in dirty bit to bm so our dtor needn't have to worry about it
-		unpinPage(headerPageId, true /* = DIRTY */);
+	private boolean get_countsStale() throws IOException {
+		return headerPage.getSlotOffset(8) == MAGIC0
+				&& headerPage.getSlotLength(8) == 2;
+	}
 
-		// ASSERTIONS:
-		// - headerPage, headerPageId valid, pinned and marked as dirty
+	/*
+	 * Slot 9, checked the same way, marks a tree with page splits that
+	 * failed inserts left behind, not posted to the parent yet.
+	 */
+	private void set_splitsLeft(boolean left) throws IOException {
+		headerPage.setSlot(9, left ? 1 : 0, MAGIC0);
+	}
 
+	private boolean get_splitsLeft() throws IOException {
+		return headerPage.getSlotOffset(9) == MAGIC0
+				&& headerPage.getSlotLength(9) == 1;
 	}
 
-	/**
-	 * insert record with the given key and rid
-	 *
-	 * @param key
-	 *            the key of the record. Input parameter.
-	 * @param rid
+	/*
+	 * Give every leaf the left link to its neighbour in the leaf chain, in
+	 * one walk along the chain from the leftmost leaf.
+	 */
+	private void linkLeaves() throws IOException, ConstructPageException {
+		try {
+			PageId pageno = headerPage.get_rootId();
+			PageId leftId = new PageId(INVALID_PAGE);
+			while (pageno.pid != INVALID_PAGE) {
+				BTSortedPage page = new BTSortedPage(pinPage(pageno),
+						headerPage.get_keyType());
+				PageId nextId;
+				if (page.getType() == NodeType.INDEX)
+					nextId = page.getPrevPage(); // leftmost child
+				else {
+					page.setPrevPage(leftId);
+					leftId = pageno;
+					nextId = page.getNextPage();
+				}
+				unpinPage(pageno, page.getType() == NodeType.LEAF);
+				pageno = nextId;
+			}
+		} catch (PinPageException e) {
+			throw new ConstructPageException(e, "link leaves failed");
+		} catch (UnpinPageException e) {
+			throw new ConstructPageException(e, "link leaves failed");
+		}
+		set_leftLinks();
+	}
+
+	/*
+	 * Read the formats of an open file.
+	 */
+	private void open() throws IOException, ConstructPageException {
+		if (!get_linkFormat())
+			throw new ConstructPageException(null,
+					"index file has no right links, rebuild it");
+		if (get_pageSize() != MINIBASE_PAGESIZE)
+			throw new ConstructPageException(null, "index file has pages of "
+					+ get_pageSize() + " bytes, not " + MINIBASE_PAGESIZE);
+		prefixLeaves = get_leafFormat() == LeafFormat.PREFIX_COMPRESSED;
+		packed = get_leafFormat() == LeafFormat.PACKED_INT;
+		counted = get_counted();
+		countsStale = get_countsStale();
+		splitsLeft = get_splitsLeft();
+		capacity = MAX_SPACE - HFPage.DPFIXED
+				- BTLink.trailerLength(headerPage.get_maxKeySize(), counted);
+		if (!get_leftLinks())
+			linkLeaves();
+	}
+
+	/**
+	 * @return true if the index pages carry entry counts.
+	 */
+	public boolean isCounted() {
+		return counted;
+	}
+
+	/**
+	 * @return the format of the leaf pages, LeafFormat.PLAIN,
+	 *         LeafFormat.PREFIX_COMPRESSED or LeafFormat.PACKED_INT.
+	 */
+	public int getLeafFormat() {
+		if (packed)
+			return LeafFormat.PACKED_INT;
+		return prefixLeaves ? LeafFormat.PREFIX_COMPRESSED : LeafFormat.PLAIN;
+	}
+
+	/*
+	 * Leaf page objects in the format of the tree: for a pinned page, for a
+	 * page to pin, and for a new page.
+	 */
+	private BTLeafPage leafPage(Page page) throws IOException,
+			ConstructPageException {
+		if (prefixLeaves)
+			return new BTPrefixLeafPage(page, headerPage.get_keyType());
+		if (packed)
+			return new BTIntLeafPage(page, headerPage.get_keyType());
+		return new BTLeafPage(page, headerPage.get_keyType());
+	}
+
+	BTLeafPage leafPage(PageId pageno) throws IOException,
+			ConstructPageException, PinPageException {
+		return leafPage(pinPage(pageno));
+	}
+
+	private BTLeafPage newLeafPage() throws IOException,
+			ConstructPageException {
+		Page page = new Page();
+		PageId pageno = newPage(page);
+		int maxKeySize = headerPage.get_maxKeySize();
+		if (prefixLeaves)
+			return new BTPrefixLeafPage(page, pageno, headerPage.get_keyType(),
+					maxKeySize);
+		if (packed)
+			return new BTIntLeafPage(page, pageno, headerPage.get_keyType(),
+					maxKeySize);
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		leafPage.init(pageno, page);
+		leafPage.setType(NodeType.LEAF);
+		BTLink.format(leafPage, maxKeySize);
+		return leafPage;
+	}
+
+	/*
+	 * Index page objects in the format of the tree: for a pinned page, and
+	 * for a new page.
+	 */
+	private BTIndexPage indexPage(Page page) throws IOException,
+			ConstructPageException {
+		if (packed)
+			return new BTIntIndexPage(page, headerPage.get_keyType());
+		return new BTIndexPage(page, headerPage.get_keyType());
+	}
+
+	private BTIndexPage newIndexPage() throws IOException,
+			ConstructPageException {
+		Page page = new Page();
+		PageId pageno = newPage(page);
+		if (packed)
+			return new BTIntIndexPage(page, pageno, headerPage.get_keyType(),
+					headerPage.get_maxKeySize(), counted);
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		indexPage.init(pageno, page);
+		indexPage.setType(NodeType.INDEX);
+		BTLink.format(indexPage, headerPage.get_maxKeySize(), counted);
+		return indexPage;
+	}
+
+	/*
+	 * The tree latch, and the latches of the leaves, for scans. A scan holds
+	 * them within one call only.
+	 */
+	void lockTree() {
+		treeLatch.readLock().lock();
+	}
+
+	void unlockTree() {
+		treeLatch.readLock().unlock();
+	}
+
+	long structureVersion() {
+		return structureVersion.get();
+	}
+
+	BTLeafPage latchLeaf(PageId pageno, BufferRing ring) throws IOException,
+			ConstructPageException, PinPageException {
+		latches.latch(pageno, false);
+		try {
+			return leafPage(pinPage(pageno, ring));
+		} catch (PinPageException e) {
+			latches.unlatch(pageno, false);
+			throw e;
+		}
+	}
+
+	/*
+	 * Latch the leaf left of `pageno' in the chain, from `leftId', the left
+	 * link of pageno read at the structure version the tree still has. The
+	 * leaves split off leftId since are passed on their right links, one
+	 * latch at a time, as the chain is latched from left to right.
+	 */
+	BTLeafPage latchLeftLeaf(PageId leftId, PageId pageno, BufferRing ring)
+			throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		BTLeafPage leaf = latchLeaf(leftId, ring);
+		PageId nextId;
+		while ((nextId = leaf.getNextPage()).pid != pageno.pid) {
+			unlatchLeaf(leaf);
+			leaf = latchLeaf(nextId, ring);
+		}
+		return leaf;
+	}
+
+	void releaseRing(BufferRing ring) {
+		pool.releaseRing(ring);
+	}
+
+	/*
+	 * Bring a leaf into the buffer pool for a scan to come, and return its
+	 * right link; INVALID_PAGE once it is no leaf, or all its keys are
+	 * above endkey.
+	 */
+	PageId readAhead(PageId pageno, BufferRing ring, KeyClass endkey)
+			throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException, IteratorException, KeyNotMatchException {
+		lockTree();
+		try {
+			BTLeafPage leaf = latchLeaf(pageno, ring);
+			try {
+				if (leaf.getType() != NodeType.LEAF
+						|| (endkey != null && leaf.getSlotCnt() > 0 && BTSearch
+								.compareAt(leaf, 0, endkey) > 0))
+					return new PageId(INVALID_PAGE);
+				return leaf.getNextPage();
+			} finally {
+				unlatchLeaf(leaf);
+			}
+		} finally {
+			unlockTree();
+		}
+	}
+
+	void unlatchLeaf(BTLeafPage leafPage) throws IOException,
+			UnpinPageException {
+		PageId pageno = leafPage.getCurPage();
+		unpinPage(pageno);
+		latches.unlatch(pageno, false);
+	}
+
+	/*
+	 * Take the tree for an operation that moves entries left or frees
+	 * pages, once every other operation is out of it.
+	 */
+	private void lockExclusive() {
+		treeLatch.writeLock().lock();
+		structureVersion.incrementAndGet();
+	}
+
+	private void unlockExclusive() {
+		treeLatch.writeLock().unlock();
+	}
+
+	/*
+	 * The hold on the tree of an insert or a delete. On a counted tree it
+	 * changes the counts all along its path, which shared holders may be
+	 * reading, and has the tree to itself; elsewhere it shares the tree.
+	 */
+	private Lock writerLock() {
+		return counted ? treeLatch.writeLock() : treeLatch.readLock();
+	}
+
+	/*
+	 * The pages pinned by the calling thread so far.
+	 */
+	private int pins() {
+		return pins.get()[0];
+	}
+
+	/**
+	 * Close the B+ tree file. Unpin header page.
+	 *
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 */
+	public void close() throws PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		if (headerPage != null) {
+			pool.unpinPage(headerPageId, true);
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * Destroy entire B+ tree file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void destroyFile() throws IOException, IteratorException,
+			UnpinPageException, FreePageException, DeleteFileEntryException,
+			ConstructPageException, PinPageException {
+		if (headerPage != null) {
+			PageId pgId = headerPage.get_rootId();
+			if (pgId.pid != INVALID_PAGE)
+				_destroyFile(pgId);
+			unpinPage(headerPageId);
+			freePage(headerPageId);
+			delete_file_entry(dbname);
+			headerPage = null;
+		}
+	}
+
+	private void _destroyFile(PageId pageno) throws IOException,
+			IteratorException, PinPageException, ConstructPageException,
+			UnpinPageException, FreePageException {
+
+		BTSortedPage sortedPage;
+		Page page = pinPage(pageno);
+		sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (sortedPage.getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = indexPage(page);
+			int slotCnt = indexPage.getSlotCnt();
+			for (int slot = 0; slot < slotCnt; slot++)
+				_destroyFile(BTSearch.childAt(indexPage, slot));
+		} else { // BTLeafPage
+
+			unpinPage(pageno);
+			freePage(pageno);
+		}
+
+	}
+
+	/*
+	 * Number of levels of the tree, counted along its leftmost path.
+	 */
+	private int treeHeight() throws ConstructPageException {
+		try {
+			int height = 0;
+			PageId pageno = headerPage.get_rootId();
+			while (pageno.pid != INVALID_PAGE) {
+				BTSortedPage sortedPage = new BTSortedPage(pinPage(pageno),
+						headerPage.get_keyType());
+				PageId childno = sortedPage.getType() == NodeType.INDEX ? sortedPage
+						.getPrevPage() : new PageId(INVALID_PAGE);
+				unpinPage(pageno);
+				pageno = childno;
+				height++;
+			}
+			return height;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "get tree height failed");
+		}
+	}
+
+	private void updateHeader(PageId newRoot) throws IOException {
+		// the header page stays pinned while the file is open, and close
+		// unpins it dirty
+		headerPage.set_rootId(newRoot);
+	}
+
+	/**
+	 * insert record with the given key and rid. A key that falls between the
+	 * separators of the leaf the last insert went to is inserted there
+	 * without descending from the root.
+	 * An insert that throws after the entry went into its leaf, while the
+	 * split it made goes up, leaves the entry in; the split is finished by
+	 * the next insert that finds it in its way.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
 	 *            the rid of the record. Input parameter.
 	 * @exception KeyTooLongException
 	 *                key size exceeds the max keysize.
 	 * @exception KeyNotMatchException
 	 *                key is not integer key nor string key
-	 * @exception IOException
-	 *                error from the lower layer
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException
+
+	{ 
+		long start = System.nanoTime();
+		int startPins = pins();
+
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+
+		Lock lock = writerLock();
+		lock.lock();
+		try {
+			if (counted) {
+				try {
+					finishLeftSplits();
+				} catch (InsertRecException e) {
+					throw new InsertException(e, "post split failed");
+				}
+			}
+			Path path = pathNear(key);
+			this.path.remove();
+			if (path == null) {
+				PageId rootId = rootId();
+				// Initially if there is no root, the first insert creates it
+				if (rootId.pid == INVALID_PAGE)
+					rootId = createRoot(key, rid);
+				path = new Path(structureVersion.get());
+				if (rootId != null)
+					path.entries.add(new PathEntry(rootId, null, null));
+			}
+			while (!path.entries.isEmpty()) {
+				// the counts go up before the splits of the insert read them,
+				// and back down if the entry does not go in. Once it is in
+				// they hold, whether its split gets up or fails on the way
+				if (counted)
+					countInsert(key, 1);
+				Split split;
+				try {
+					split = _insert(key, rid, path);
+				} catch (Throwable e) {
+					if (counted)
+						uncountInsert(key, e);
+					throw e;
+				}
+				if (split == null || split.inserted) {
+					if (split != null)
+						insertUp(path, key, 1, split.separator, split.rightId,
+								split.leftId);
+					this.path.set(path);
+					break;
+				}
+				// a split left behind by a failed insert is in the way, on a
+				// tree without counts: post it and try again
+				finishSplit(split.leftId, split.separator, split.rightId, 1);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		metrics.record(BTreeMetrics.INSERT, System.nanoTime() - start, pins() - startPins);
+	}
+
+	/*
+	 * The root id, read under the latch of the header page.
+	 */
+	private PageId rootId() throws IOException {
+		latches.latch(headerPageId, false);
+		try {
+			return new PageId(headerPage.get_rootId().pid);
+		} finally {
+			latches.unlatch(headerPageId, false);
+		}
+	}
+
+	/*
+	 * Start an empty tree with a leaf root holding <key, rid>. Returns null,
+	 * or the root another thread created first, without inserting.
+	 */
+	private PageId createRoot(KeyClass key, RID rid) throws IOException,
+			ConstructPageException, LeafInsertRecException, UnpinPageException {
+		latches.latch(headerPageId, true);
+		try {
+			if (headerPage.get_rootId().pid != INVALID_PAGE)
+				return new PageId(headerPage.get_rootId().pid);
+
+			//-------------------All process are replicated as suggestion of Demo PDF provided----------------------//
+			//creating new first new page as the tree is empty
+			BTLeafPage newRootPage = newLeafPage();
+			PageId newRootPageId = null;
+			//assigning the id for identifying the newly created header page(page number of the current page obtained through getCurPage()),replicating the pinnning process of buffer manager //
+			newRootPageId = newRootPage.getCurPage();
+			//Inserting record on the page that is created
+			newRootPage.insertRecord(key,rid);	
+			//unpinning the newRootPage as it is dirty(used when lower index page gets split)//
+			unpinPage(newRootPageId, true);
+			//header page now points to the root page//
+			updateHeader(newRootPageId);
+			metrics.setTreeHeight(1);
+			return null;
+		} finally {
+			latches.unlatch(headerPageId, true);
+		}
+	}
+
+	/**
+	 * insert a batch of records. The batch is sorted, and each leaf the keys
+	 * fall into is visited once: its entries and the keys routed to it are
+	 * merged and written back, spread over as many new pages as needed, and
+	 * the separators of the new pages go up to the parent the same way. A
+	 * leaf that takes n keys costs one descent instead of n.
+	 * <p>
+	 * Duplicates of a key already in the tree go after it, as with insert.
+	 * The batch is recorded in the metrics as one insert.
+	 *
+	 * @param entries
+	 *            the <key, rid> pairs to insert, in any order. Input
+	 *            parameter, not modified.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not of the key type of the tree
+	 * @exception NodeNotMatchException
+	 *                the data of an entry is not a rid
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InsertRecException
+	 *                error when writing a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IteratorException
+	 *                iterator error
+	 */
+	public void insertAll(KeyDataEntry[] entries) throws KeyTooLongException,
+			KeyNotMatchException, NodeNotMatchException, InsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			IteratorException, IOException {
+		long start = System.nanoTime();
+		int startPins = pins();
+
+		int keyType = headerPage.get_keyType();
+		for (int i = 0; i < entries.length; i++) {
+			if (!(entries[i].data instanceof LeafData))
+				throw new NodeNotMatchException(null, "entry data is not a rid");
+			if (!(keyType == AttrType.attrInteger ? entries[i].key instanceof IntegerKey
+					: entries[i].key instanceof StringKey))
+				throw new KeyNotMatchException(null, "key type does not match");
+			if (BT.getKeyLength(entries[i].key) > headerPage.get_maxKeySize())
+				throw new KeyTooLongException(null, "");
+		}
+		if (entries.length == 0)
+			return;
+
+		// stable, so duplicates within the batch keep their order
+		KeyDataEntry[] batch = entries.clone();
+		Arrays.sort(batch, new Comparator<KeyDataEntry>() {
+			public int compare(KeyDataEntry a, KeyDataEntry b) {
+				try {
+					return BT.keyCompare(a.key, b.key);
+				} catch (KeyNotMatchException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}
+		});
+
+		// the whole batch goes in with the tree to itself, as pages are
+		// rewritten whole
+		lockExclusive();
+		try {
+			finishLeftSplits();
+			if (headerPage.get_rootId().pid == INVALID_PAGE) {
+				BTLeafPage rootPage = newLeafPage();
+				PageId rootId = rootPage.getCurPage();
+				unpinPage(rootId, true);
+				updateHeader(rootId);
+				metrics.setTreeHeight(1);
+			}
+
+			// the root was split into several pages: put a new root on top of
+			// them, which may itself take more than one page
+			List<KeyDataEntry> upEntries = _insertAll(batch, 0, batch.length,
+					headerPage.get_rootId());
+			while (!upEntries.isEmpty()) {
+				BTIndexPage rootPage = newIndexPage();
+				PageId rootId = rootPage.getCurPage();
+				rootPage.setPrevPage(headerPage.get_rootId());
+				if (counted)
+					BTCounts.setCount(rootPage, -1, total(headerPage
+							.get_rootId()));
+				upEntries = distribute(rootPage, upEntries);
+				unpinPage(rootId, true);
+				updateHeader(rootId);
+				metrics.setTreeHeight(metrics.getTreeHeight() + 1);
+			}
+		} finally {
+			unlockExclusive();
+		}
+
+		metrics.record(BTreeMetrics.INSERT, System.nanoTime() - start, pins() - startPins);
+	}
+
+	/*
+	 * Insert batch[from, to), which is sorted and belongs to the subtree
+	 * rooted at `currentPageId'. Returns the index entries of the pages the
+	 * root of the subtree was split into, in key order, to be inserted right
+	 * after the entry of the subtree in its parent. On a counted tree the
+	 * entries carry the counts of their pages, and the parent counts the
+	 * entries left on the root of the subtree itself.
+	 */
+	private List<KeyDataEntry> _insertAll(KeyDataEntry[] batch, int from,
+			int to, PageId currentPageId) throws PinPageException,
+			UnpinPageException, ConstructPageException, IteratorException,
+			InsertRecException, KeyNotMatchException, NodeNotMatchException,
+			IOException {
+		Page page = pinPage(currentPageId);
+		BTSortedPage currentPage = new BTSortedPage(page,
+				headerPage.get_keyType());
+		List<KeyDataEntry> upEntries;
+
+		if (currentPage.getType() == NodeType.LEAF) {
+			BTLeafPage leafPage = leafPage(page);
+
+			// merge, with the keys of the page ahead of equal keys of the batch
+			ArrayList<KeyDataEntry> old = BTSplit.entries(leafPage);
+			ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>(old
+					.size()
+					+ to - from);
+			int i = 0;
+			for (int j = from; j < to; j++) {
+				while (i < old.size()
+						&& BT.keyCompare(old.get(i).key, batch[j].key) <= 0)
+					entries.add(old.get(i++));
+				entries.add(batch[j]);
+			}
+			entries.addAll(old.subList(i, old.size()));
+			upEntries = distribute(leafPage, entries);
+		} else {
+			BTIndexPage indexPage = indexPage(page);
+			ArrayList<KeyDataEntry> old = BTSplit.entries(indexPage);
+			ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+
+			// child c takes the keys from its own separator up to the next
+			// one, the child BTSearch.getPageNoByKey would pick for each key
+			int j = from;
+			for (int childSlot = -1; childSlot < old.size(); childSlot++) {
+				if (childSlot >= 0)
+					entries.add(old.get(childSlot));
+				int end = j;
+				if (childSlot + 1 == old.size())
+					end = to;
+				else
+					while (end < to
+							&& BT.keyCompare(batch[end].key, old
+									.get(childSlot + 1).key) < 0)
+						end++;
+				if (end > j) {
+					PageId childId = BTSearch.childAt(indexPage, childSlot);
+					List<KeyDataEntry> childEntries = _insertAll(batch, j, end,
+							childId);
+					if (counted) {
+						BTCounts.setCount(indexPage, childSlot, total(childId));
+						if (childSlot >= 0)
+							entries.set(entries.size() - 1, BTSearch.entryAt(
+									indexPage, childSlot));
+					}
+					entries.addAll(childEntries);
+					j = end;
+				}
+			}
+
+			if (entries.size() == old.size())
+				upEntries = new ArrayList<KeyDataEntry>(0);
+			else
+				upEntries = distribute(indexPage, entries);
+		}
+
+		unpinPage(currentPageId, true /* = DIRTY */);
+		return upEntries;
+	}
+
+	/*
+	 * Write `entries' to `page', and the entries that do not fit to new pages
+	 * to its right, filled evenly. The new pages are linked in right of the
+	 * page on its level, each with the separator of the next page as its
+	 * high key, and the last one with the high key of the page. For index
+	 * pages the entry between two pages goes up, and its child becomes the
+	 * leftmost child of the right page. New leaves get their left links,
+	 * and the right neighbour of the last one its new left neighbour.
+	 * Returns the index entries of the new pages, with their counts on a
+	 * counted tree.
+	 */
+	private List<KeyDataEntry> distribute(BTSortedPage page,
+			List<KeyDataEntry> entries) throws ConstructPageException,
+			PinPageException, UnpinPageException, InsertRecException,
+			KeyNotMatchException, NodeNotMatchException, IOException {
+		boolean leaf = page.getType() == NodeType.LEAF;
+		int count = entries.size();
+		int total = BTSplit.space(page, entries, 0, count);
+		int pages = (total + capacity - 1) / capacity;
+		int target = pages <= 1 ? capacity : (total + pages - 1) / pages;
+
+		List<KeyDataEntry> upEntries = new ArrayList<KeyDataEntry>();
+		PageId nextId = new PageId(page.getNextPage().pid);
+		KeyClass highKey = BTLink.getHighKey(page);
+		BTSortedPage curPage = page;
+		KeyClass separator = null; // of curPage, if a new page
+		int first = 0;
+		while (true) {
+			int end = first;
+			BTSplit.Run run = new BTSplit.Run(page);
+			while (end < count && run.space() < target
+					&& run.spaceWith(entries.get(end)) <= capacity)
+				run.add(entries.get(end++));
+			BTSplit.rebuild(curPage, entries.subList(first, end));
+			if (curPage != page)
+				upEntries.add(indexEntry(separator, curPage.getCurPage(),
+						leaf ? end - first : BTCounts.sum(entries, first - 1,
+								end)));
+			if (end == count)
+				break;
+
+			BTSortedPage newPage;
+			if (leaf) {
+				newPage = newLeafPage();
+				newPage.setPrevPage(curPage.getCurPage());
+				first = end;
+			} else {
+				newPage = newIndexPage();
+				newPage.setPrevPage(((IndexData) entries.get(end).data)
+						.getData());
+				BTCounts.setCount(newPage, -1, BTCounts.count(entries.get(end)));
+				first = end + 1;
+			}
+			separator = leaf ? BTSplit.separator(entries.get(end - 1).key,
+					entries.get(end).key) : entries.get(end).key;
+			curPage.setNextPage(newPage.getCurPage());
+			BTLink.setHighKey(curPage, separator);
+
+			if (curPage != page)
+				unpinPage(curPage.getCurPage(), true);
+			curPage = newPage;
+		}
+
+		curPage.setNextPage(nextId);
+		BTLink.setHighKey(curPage, highKey);
+		if (curPage != page) {
+			if (leaf)
+				setLeftLink(nextId, curPage.getCurPage());
+			unpinPage(curPage.getCurPage(), true);
+		}
+		return upEntries;
+	}
+
+	/*
+	 * The path of the last insert of this thread, cut back to the lowest
+	 * page on it whose bounds hold key: the leaf itself when key falls
+	 * between its separators, so a run of inserts near each other pins one
+	 * page each instead of one per level. null when there is no path, when
+	 * no page on it holds key, as when the descent that took it went right
+	 * of a root in the middle of a split, or when the structure of the tree
+	 * has changed since it was taken. Splits since then only move keys
+	 * right, where the descent from the page follows them.
+	 */
+	private Path pathNear(KeyClass key) throws KeyNotMatchException {
+		Path path = this.path.get();
+		if (path == null)
+			return null;
+		if (path.version != structureVersion.get())
+			return null;
+		int depth = path.entries.size() - 1;
+		while (depth > 0 && !path.entries.get(depth).holds(key))
+			depth--;
+		if (!path.entries.get(depth).holds(key))
+			return null; // a root split when the path was taken
+		path.entries.subList(depth + 1, path.entries.size()).clear();
+		return path;
+	}
+
+	/*
+	 * Go down from the last page of `path' to a leaf, adding the pages on
+	 * the way to the path, and return the leaf pinned and latched, for
+	 * writing if `exclusive'. Index pages are read without a latch, and
+	 * read again when a writer has latched them meanwhile; a page id keeps
+	 * naming a page of the same level while the tree is held shared, so a
+	 * child id read from a page that has split since still leads to the
+	 * left of the key. Leaves are latched, and the step from a leaf to its
+	 * right neighbour, taken when key lies beyond the high key of the page,
+	 * latches the neighbour before the leaf is let go. With `last' the
+	 * descent looks for the last place key may go, as an insert does, else
+	 * for its first occurrence; if key is null, for the rightmost leaf with
+	 * `last', else for the leftmost one.
+	 */
+	private Page descend(KeyClass key, Path path, boolean last,
+			boolean exclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		int depth = path.entries.size() - 1;
+		PathEntry entry = path.entries.get(depth);
+		boolean latched = false; // else read at `version'
+		boolean write = false; // the latch held on the page
+		Page page = pinPage(entry.pageId);
+		traceVisit(entry.pageId);
+		while (true) {
+			long version = 0;
+			if (!latched) {
+				version = latches.version(entry.pageId);
+				if (version == 0) { // a writer has it: wait
+					latches.latch(entry.pageId, false);
+					latched = true;
+				}
+			}
+
+			boolean right;
+			PageId nextId;
+			KeyClass nextLow;
+			KeyClass highKey;
+			try {
+				BTSortedPage sortedPage = new BTSortedPage(page, headerPage
+						.get_keyType());
+				boolean leaf = sortedPage.getType() == NodeType.LEAF;
+				if (leaf && (!latched || write != exclusive)) {
+					// the leaf may split in between, which the check for
+					// its high key below catches
+					if (latched)
+						latches.unlatch(entry.pageId, write);
+					latches.latch(entry.pageId, exclusive);
+					latched = true;
+					write = exclusive;
+					continue;
+				}
+
+				highKey = BTLink.getHighKey(sortedPage);
+				if (key != null)
+					right = BTLink.beyond(sortedPage, key, last);
+				else
+					right = last
+							&& sortedPage.getNextPage().pid != INVALID_PAGE;
+				if (right) {
+					nextId = sortedPage.getNextPage();
+					nextLow = highKey;
+				} else if (leaf) {
+					path.entries.set(depth, new PathEntry(entry.pageId,
+							entry.low, highKey));
+					return page;
+				} else {
+					BTIndexPage indexPage = indexPage(page);
+					int childSlot = -1;
+					if (key != null)
+						childSlot = (last ? BTSearch.upperBound(indexPage, key)
+								: BTSearch.lowerBound(indexPage, key)) - 1;
+					else if (last)
+						childSlot = indexPage.getSlotCnt() - 1;
+					nextId = BTSearch.childAt(indexPage, childSlot);
+					nextLow = childSlot >= 0 ? BTSearch.entryAt(indexPage,
+							childSlot).key : entry.low;
+				}
+			} catch (Exception e) {
+				if (latched || latches.validate(entry.pageId, version))
+					throw e;
+				continue; // torn by a writer
+			}
+			if (!latched && !latches.validate(entry.pageId, version))
+				continue;
+
+			if (right) {
+				// right neighbour of a latched page is latched before the
+				// page is let go
+				if (latched)
+					latches.latch(nextId, write);
+				unpinPage(entry.pageId);
+				if (latched)
+					latches.unlatch(entry.pageId, write);
+				entry = new PathEntry(nextId, nextLow, null);
+				path.entries.set(depth, entry);
+			} else {
+				path.entries.set(depth, new PathEntry(entry.pageId,
+						entry.low, highKey));
+				unpinPage(entry.pageId);
+				if (latched)
+					latches.unlatch(entry.pageId, false);
+				entry = new PathEntry(nextId, nextLow, null);
+				path.entries.add(entry);
+				depth++;
+				latched = false;
+				write = false;
+			}
+			page = pinPage(entry.pageId);
+			traceVisit(entry.pageId);
+		}
+	}
+
+	/*
+	 * A root-to-leaf path to the first occurrence of key, taken afresh.
+	 */
+	private Path pathTo(KeyClass key) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		Path path = new Path(structureVersion.get());
+		path.entries.add(new PathEntry(rootId(), null, null));
+		descend(key, path, false, false);
+		PageId leafId = path.entries.get(path.entries.size() - 1).pageId;
+		unpinPage(leafId);
+		latches.unlatch(leafId, false);
+		return path;
+	}
+
+	/*
+	 * Insert <key, rid> below the last page of `path', a page of a tree that
+	 * is not empty. Returns the split the insert made, whose separator is
+	 * still to go up, null if there was none, or a split in the way that an
+	 * insert which failed left behind, without inserting.
+	 */
+	private Split _insert(KeyClass key, RID rid, Path path)
+			throws PinPageException, IOException, ConstructPageException,
+			UnpinPageException, LeafInsertRecException, IteratorException,
+			IndexInsertRecException, KeyNotMatchException,
+			NodeNotMatchException {
+		BTLeafPage currentLeafPage;
+		PathEntry entry;
+		while (true) {
+			currentLeafPage = leafPage(descend(key, path, true, true));
+			entry = path.entries.get(path.entries.size() - 1);
+			if (BTSearch.insertRecord(currentLeafPage, key, rid) != null) {
+				unpinPage(entry.pageId, true);
+				latches.unlatch(entry.pageId, true);
+				return null;
+			}
+			if (!BTLink.splitPending(currentLeafPage))
+				break;
+			// the last split of the leaf is still on its way up: wait for
+			// it, or take it over if the insert that made it failed
+			Split pending = null;
+			if (posting.add(entry.pageId.pid))
+				pending = new Split(BTLink.getHighKey(currentLeafPage),
+						currentLeafPage.getNextPage(), entry.pageId, false);
+			unpinPage(entry.pageId);
+			latches.unlatch(entry.pageId, true);
+			if (pending != null)
+				return pending;
+			Thread.yield();
+		}
+
+		// no space: split. The new leaf goes right of the current one in the
+		// leaf chain and takes the upper half of the entries, and the high
+		// key of the current one. Once the right link of the current leaf
+		// points to it, keys past the new high key are found there, and the
+		// leaf is let go before its parent is latched. The left link of the
+		// old right neighbour is moved to the new leaf before that, with the
+		// neighbour latched after the current leaf, as the chain is latched
+		// from left to right. The neighbour is pinned and the new leaf taken
+		// before anything changes, so that an insert that finds no frame for
+		// them fails with the tree as it was
+		long start = System.nanoTime();
+		PageId rightId = currentLeafPage.getNextPage();
+		BTSortedPage rightPage = null;
+		BTLeafPage newLeafPage;
+		boolean pinned = false;
+		try {
+			if (rightId.pid != INVALID_PAGE) {
+				latches.latch(rightId, true);
+				rightPage = new BTSortedPage(pinPage(rightId), headerPage
+						.get_keyType());
+			}
+			newLeafPage = newLeafPage();
+			pinned = true;
+		} finally {
+			if (!pinned) {
+				if (rightPage != null)
+					unpinPage(rightId);
+				if (rightId.pid != INVALID_PAGE)
+					latches.unlatch(rightId, true);
+				unpinPage(entry.pageId);
+				latches.unlatch(entry.pageId, true);
+			}
+		}
+		PageId newLeafPageId = newLeafPage.getCurPage();
+		BTSplit.splitLeaf(currentLeafPage, newLeafPage, new KeyDataEntry(key,
+				rid), BTSearch.upperBound(currentLeafPage, key));
+
+		// shortest key between the last key of the old leaf and the first
+		// key of the new one separates them
+		KeyClass separator = BTSplit.separator(BTSearch.entryAt(
+				currentLeafPage, currentLeafPage.getSlotCnt() - 1).key,
+				BTSearch.entryAt(newLeafPage, 0).key);
+		newLeafPage.setNextPage(rightId);
+		newLeafPage.setPrevPage(entry.pageId);
+		BTLink.setHighKey(newLeafPage, BTLink.getHighKey(currentLeafPage));
+		BTLink.setHighKey(currentLeafPage, separator);
+		BTLink.setSplitPending(currentLeafPage, true);
+		if (rightPage != null) {
+			rightPage.setPrevPage(newLeafPageId);
+			unpinPage(rightId, true);
+			latches.unlatch(rightId, true);
+		}
+		currentLeafPage.setNextPage(newLeafPageId);
+		unpinPage(newLeafPageId, true);
+		unpinPage(entry.pageId, true);
+		posting.add(entry.pageId.pid);
+		latches.unlatch(entry.pageId, true);
+		metrics.record(BTreeMetrics.LEAF_SPLIT, System.nanoTime() - start, 0);
+
+		path.entries.set(path.entries.size() - 1, half(entry, key, separator,
+				newLeafPageId));
+		return new Split(separator, newLeafPageId, entry.pageId, true);
+	}
+
+	/*
+	 * Insert the separator <separator, rightId> into the index page at
+	 * `level' of `path', right after the entry of `leftId', the page that
+	 * rightId was split off. The entry of leftId is looked for from the
+	 * page on the path, and on its right neighbours while the separator
+	 * lies beyond their high key; where there is none yet, the split that
+	 * made leftId is still on its way up, and the search starts over once
+	 * it had a chance to get there. A full page splits in turn, passing its
+	 * own separator up, and a split root gets a new root above it; the half
+	 * `key' belongs to stays on the path. Once the separator is in, the
+	 * split mark of leftId is cleared.
+	 *
+	 * The thread has leftId in `posting'. Each level changes only once the
+	 * pages it needs are pinned, so that one that fails leaves the split of
+	 * leftId marked, for the next insert in its way to post.
+	 */
+	private void insertUp(Path path, KeyClass key, int level,
+			KeyClass separator, PageId rightId, PageId leftId)
+			throws PinPageException, IOException, ConstructPageException,
+			UnpinPageException, IteratorException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException {
+		boolean posted = false;
+		try {
+			while (true) {
+				// entries of rightId, counted with leftId in the parent so far
+				int rightCount = counted ? total(rightId) : 0;
+				int depth = path.entries.size() - 1 - level;
+				if (depth < 0) {
+					PageId rootId = newRoot(separator, rightId, rightCount,
+							leftId);
+					if (rootId != null) {
+						path.entries.add(0, new PathEntry(rootId, null, null));
+						posted = true;
+						splitPosted(leftId);
+						return;
+					}
+					// another split put a root above leftId first: take the
+					// pages above it from a new descent. The root may also
+					// still be a page left of leftId, whose split is on its
+					// way up, or was left behind by a failed insert
+					Path upper = pathTo(separator);
+					if (upper.entries.size() == path.entries.size()
+							&& !finishSplits(rootId(), leftId, level))
+						Thread.yield();
+					path.entries.addAll(0, upper.entries.subList(0,
+							upper.entries.size() - path.entries.size()));
+					continue;
+				}
+
+				PathEntry entry = path.entries.get(depth);
+				latches.latch(entry.pageId, true);
+				BTIndexPage indexPage = indexPage(pinLatched(entry.pageId));
+				int position;
+				while (true) {
+					int childSlot = childSlot(indexPage, leftId);
+					if (childSlot >= -1) {
+						position = childSlot + 1;
+						break;
+					}
+					PageId nextId = indexPage.getNextPage();
+					if (!BTLink.beyond(indexPage, separator, true)) {
+						// leftId was split off a page itself, by a split that
+						// has not got up here yet: let the page go, give that
+						// split the time to post its entry, or post it if the
+						// insert that made it failed, and look again from the
+						// first page of the level that may hold it
+						PageId childId = BTSearch.childAt(indexPage, BTSearch
+								.upperBound(indexPage, separator) - 1);
+						unpinPage(entry.pageId);
+						latches.unlatch(entry.pageId, true);
+						if (!finishSplits(childId, leftId, level))
+							Thread.yield();
+						Path upper = pathTo(separator);
+						entry = upper.entries.get(upper.entries.size() - 1
+								- level);
+						latches.latch(entry.pageId, true);
+						indexPage = indexPage(pinLatched(entry.pageId));
+						continue;
+					}
+					KeyClass low = BTLink.getHighKey(indexPage);
+					latches.latch(nextId, true);
+					unpinPage(entry.pageId);
+					latches.unlatch(entry.pageId, true);
+					entry = new PathEntry(nextId, low, null);
+					indexPage = indexPage(pinLatched(nextId));
+				}
+				entry = new PathEntry(entry.pageId, entry.low, BTLink
+						.getHighKey(indexPage));
+				path.entries.set(depth, entry);
+
+				// the separator is in already if an insert failed after
+				// posting it, before the split mark of leftId was cleared
+				if (posted(indexPage, position, separator, rightId)) {
+					unpinPage(entry.pageId);
+					latches.unlatch(entry.pageId, true);
+					posted = true;
+					splitPosted(leftId);
+					return;
+				}
+
+				boolean fits = indexPage.available_space() >= indexEntryLength(separator);
+				if (!fits && BTLink.splitPending(indexPage)) {
+					// the last split of the page is still on its way up: wait
+					// for it, or post it if the insert that made it failed
+					boolean abandoned = posting.add(entry.pageId.pid);
+					KeyClass high = BTLink.getHighKey(indexPage);
+					PageId nextId = indexPage.getNextPage();
+					unpinPage(entry.pageId);
+					latches.unlatch(entry.pageId, true);
+					if (abandoned)
+						finishSplit(entry.pageId, high, nextId, level + 1);
+					else
+						Thread.yield();
+					continue;
+				}
+
+				// no space: split. The upper half of the entries moves to the
+				// new page in one copy; the middle entry moves up to the
+				// parent and its child becomes the leftmost child (prev page)
+				// of the new page, which is linked in right of the current
+				// one. The new page is taken before the counts change
+				long start = System.nanoTime();
+				BTIndexPage newIndexPage = null;
+				if (!fits) {
+					try {
+						newIndexPage = newIndexPage();
+					} catch (ConstructPageException e) {
+						unpinPage(entry.pageId);
+						latches.unlatch(entry.pageId, true);
+						throw e;
+					}
+				}
+				BTCounts.add(indexPage, position - 1, -rightCount);
+				if (fits) {
+					BTSearch.insertKey(indexPage, separator, rightId,
+							rightCount, position);
+					unpinPage(entry.pageId, true);
+					latches.unlatch(entry.pageId, true);
+					posted = true;
+					splitPosted(leftId);
+					return;
+				}
+
+				PageId newIndexPageId = newIndexPage.getCurPage();
+				int splitSlot = BTSplit.splitPoint(indexPage);
+				KeyDataEntry middleEntry = BTSearch.entryAt(indexPage, splitSlot);
+				BTSplit.split(indexPage, newIndexPage, splitSlot, splitSlot + 1);
+				newIndexPage.setPrevPage(((IndexData) middleEntry.data).getData());
+				BTCounts.setCount(newIndexPage, -1, BTCounts.count(middleEntry));
+
+				if (position <= splitSlot)
+					BTSearch.insertKey(indexPage, separator, rightId,
+							rightCount, position);
+				else
+					BTSearch.insertKey(newIndexPage, separator, rightId,
+							rightCount, position - splitSlot - 1);
+
+				newIndexPage.setNextPage(indexPage.getNextPage());
+				BTLink.setHighKey(newIndexPage, BTLink.getHighKey(indexPage));
+				BTLink.setHighKey(indexPage, middleEntry.key);
+				BTLink.setSplitPending(indexPage, true);
+				indexPage.setNextPage(newIndexPageId);
+				unpinPage(newIndexPageId, true);
+				unpinPage(entry.pageId, true);
+
+				// the split of the page goes up next, and leftId's is done
+				PageId postedId = leftId;
+				path.entries.set(depth, half(entry, key, middleEntry.key,
+						newIndexPageId));
+				separator = middleEntry.key;
+				rightId = newIndexPageId;
+				leftId = entry.pageId;
+				level++;
+				posting.add(leftId.pid);
+				latches.unlatch(leftId, true);
+				splitPosted(postedId);
+				metrics.record(BTreeMetrics.INDEX_SPLIT, System.nanoTime()
+						- start, 0);
+			}
+		} finally {
+			if (!posted)
+				splitLeft(leftId);
+		}
+	}
+
+	/*
+	 * Whether <separator, rightId> is on a latched index page already, at
+	 * `position', or has become the leftmost child of its right neighbour
+	 * in a split since. The page is let go if the neighbour cannot be
+	 * pinned.
+	 */
+	private boolean posted(BTIndexPage indexPage, int position,
+			KeyClass separator, PageId rightId) throws IOException,
+			IteratorException, KeyNotMatchException, PinPageException,
+			UnpinPageException {
+		if (position < indexPage.getSlotCnt())
+			return BTSearch.childAt(indexPage, position).pid == rightId.pid;
+		PageId nextId = indexPage.getNextPage();
+		if (nextId.pid == INVALID_PAGE
+				|| !BTLink.beyond(indexPage, separator, true))
+			return false;
+		latches.latch(nextId, false);
+		try {
+			Page page;
+			try {
+				page = pinPage(nextId);
+			} catch (PinPageException e) {
+				unpinPage(indexPage.getCurPage());
+				latches.unlatch(indexPage.getCurPage(), true);
+				throw e;
+			}
+			boolean posted = new BTSortedPage(page, headerPage.get_keyType())
+					.getPrevPage().pid == rightId.pid;
+			unpinPage(nextId);
+			return posted;
+		} finally {
+			latches.unlatch(nextId, false);
+		}
+	}
+
+	/*
+	 * Post the split of `leftId', which this thread has in `posting' now,
+	 * from a new descent to `separator': rightId goes into the index page
+	 * at `level'.
+	 */
+	private void finishSplit(PageId leftId, KeyClass separator,
+			PageId rightId, int level) throws PinPageException, IOException,
+			ConstructPageException, UnpinPageException, IteratorException,
+			IndexInsertRecException, KeyNotMatchException,
+			NodeNotMatchException {
+		Path upper = null;
+		try {
+			upper = pathTo(separator);
+		} finally {
+			if (upper == null)
+				splitLeft(leftId);
+		}
+		insertUp(upper, separator, level, separator, rightId, leftId);
+	}
+
+	/*
+	 * Walk the pages below `level' from `pageno' up to `lastId', and post
+	 * the first split on the way that an insert which failed left behind.
+	 * Returns false if there is none.
+	 */
+	private boolean finishSplits(PageId pageno, PageId lastId, int level)
+			throws PinPageException, IOException, ConstructPageException,
+			UnpinPageException, IteratorException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException {
+		while (pageno.pid != INVALID_PAGE && pageno.pid != lastId.pid) {
+			PageId nextId;
+			KeyClass high;
+			boolean abandoned;
+			latches.latch(pageno, false);
+			try {
+				BTSortedPage page = new BTSortedPage(pinPage(pageno),
+						headerPage.get_keyType());
+				nextId = page.getNextPage();
+				high = BTLink.getHighKey(page);
+				abandoned = BTLink.splitPending(page);
+				unpinPage(pageno);
+				abandoned = abandoned && posting.add(pageno.pid);
+			} finally {
+				latches.unlatch(pageno, false);
+			}
+			if (abandoned) {
+				finishSplit(pageno, high, nextId, level);
+				return true;
+			}
+			pageno = nextId;
+		}
+		return false;
+	}
+
+	/*
+	 * Pin a page the thread has just latched, letting the latch go if the
+	 * pin fails.
+	 */
+	private Page pinLatched(PageId pageno) throws PinPageException {
+		try {
+			return pinPage(pageno);
+		} catch (PinPageException e) {
+			latches.unlatch(pageno, true);
+			throw e;
+		}
+	}
+
+	/*
+	 * Clear the split mark of a page whose new right neighbour has its
+	 * entry in the parent now.
+	 */
+	private void splitPosted(PageId pageno) throws IOException,
+			PinPageException, UnpinPageException {
+		boolean cleared = false;
+		latches.latch(pageno, true);
+		try {
+			BTSortedPage page = new BTSortedPage(pinPage(pageno), headerPage
+					.get_keyType());
+			BTLink.setSplitPending(page, false);
+			cleared = true;
+			unpinPage(pageno, true);
+		} finally {
+			posting.remove(pageno.pid);
+			latches.unlatch(pageno, true);
+			if (!cleared)
+				splitLeft(pageno);
+		}
+	}
+
+	/*
+	 * Let go of the split of `pageno', which this thread had in `posting'
+	 * and failed to post, and record in the header that splits are left.
+	 */
+	private void splitLeft(PageId pageno) throws IOException {
+		posting.remove(pageno.pid);
+		splitsLeft = true;
+		latches.latch(headerPageId, true);
+		try {
+			set_splitsLeft(true);
+		} finally {
+			latches.unlatch(headerPageId, true);
+		}
+	}
+
+	/*
+	 * Post the splits that inserts which failed left behind, from the
+	 * leaves up, if the header has some recorded. Called with the tree held
+	 * exclusively, before an operation that takes the entry of a page in
+	 * its parent to cover all of the keys of the page: the deletes and
+	 * inserts of a counted tree, and merges and insertAll.
+	 */
+	private void finishLeftSplits() throws IOException, PinPageException,
+			UnpinPageException, ConstructPageException, IteratorException,
+			KeyNotMatchException, InsertRecException {
+		if (!splitsLeft)
+			return;
+		// the leftmost page of each level, from the root down
+		List<PageId> leftmost = new ArrayList<PageId>();
+		PageId pageno = rootId();
+		while (pageno.pid != INVALID_PAGE) {
+			leftmost.add(pageno);
+			BTSortedPage page = new BTSortedPage(pinPage(pageno), headerPage
+					.get_keyType());
+			PageId childId = page.getType() == NodeType.INDEX ? page
+					.getPrevPage() : new PageId(INVALID_PAGE);
+			unpinPage(pageno);
+			pageno = childId;
+		}
+		try {
+			for (int level = 1; level <= leftmost.size(); level++)
+				while (finishSplits(leftmost.get(leftmost.size() - level),
+						new PageId(INVALID_PAGE), level))
+					;
+		} catch (IndexInsertRecException e) {
+			throw new InsertRecException(e, "post split failed");
+		} catch (NodeNotMatchException e) {
+			throw new InsertRecException(e, "post split failed");
+		}
+		splitsLeft = false;
+		set_splitsLeft(false);
+	}
+
+	/*
+	 * The slot of the entry of `childId' on an index page, -1 for its
+	 * leftmost child; -2 if it is not on the page.
+	 */
+	private static int childSlot(BTIndexPage page, PageId childId)
+			throws IteratorException, IOException {
+		int slotCnt = page.getSlotCnt();
+		for (int slot = -1; slot < slotCnt; slot++)
+			if (BTSearch.childAt(page, slot).pid == childId.pid)
+				return slot;
+		return -2;
+	}
+
+	/*
+	 * An index entry as the tree keeps them, with `count' on a counted tree.
+	 */
+	private KeyDataEntry indexEntry(KeyClass key, PageId childId, int count) {
+		if (counted)
+			return CountedIndexData.entry(key, childId, count);
+		return new KeyDataEntry(key, childId);
+	}
+
+	/*
+	 * Space an index entry with `key' takes, without its slot.
+	 */
+	private int indexEntryLength(KeyClass key) throws KeyNotMatchException,
+			NodeNotMatchException, IOException {
+		return BT.getKeyDataLength(key, NodeType.INDEX) + (counted ? 4 : 0);
+	}
+
+	/*
+	 * The number of entries below a page of a counted tree, read off the
+	 * page itself.
+	 */
+	private int total(PageId pageno) throws IOException, PinPageException,
+			UnpinPageException, ConstructPageException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortedPage = new BTSortedPage(page, headerPage
+				.get_keyType());
+		int total = sortedPage.getType() == NodeType.LEAF ? sortedPage
+				.getSlotCnt() : BTCounts.total(indexPage(page));
+		unpinPage(pageno);
+		return total;
+	}
+
+	/*
+	 * Add `delta' to the counts of an entry with `key' on the index pages
+	 * above the leaf it goes to: the child of the last entry <= key on
+	 * every level, as the descent of the insert picks it. The tree is held
+	 * exclusively.
+	 */
+	private void countInsert(KeyClass key, int delta) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IteratorException, KeyNotMatchException {
+		PageId pageno = headerPage.get_rootId();
+		while (true) {
+			Page page = pinPage(pageno);
+			if (new BTSortedPage(page, headerPage.get_keyType()).getType() == NodeType.LEAF) {
+				unpinPage(pageno);
+				return;
+			}
+			BTIndexPage indexPage = indexPage(page);
+			int childSlot = BTSearch.upperBound(indexPage, key) - 1;
+			BTCounts.add(indexPage, childSlot, delta);
+			PageId childId = BTSearch.childAt(indexPage, childSlot);
+			unpinPage(pageno, true);
+			pageno = childId;
+		}
+	}
+
+	/*
+	 * Take back the counts of an insert that failed before its entry went
+	 * in. If this fails too, its exception goes with the `failure' of the
+	 * insert, and the counts are given up on.
+	 */
+	private void uncountInsert(KeyClass key, Throwable failure) {
+		try {
+			countInsert(key, -1);
+		} catch (Exception e) {
+			failure.addSuppressed(e);
+			countsLost(failure);
+		}
+	}
+
+	/*
+	 * Mark the counts of the tree as off, in the header too: count, rank and
+	 * select scan from then on, as on a tree without counts. A failure to
+	 * write the mark goes with `failure'.
+	 */
+	private void countsLost(Throwable failure) {
+		countsStale = true;
+		latches.latch(headerPageId, true);
+		try {
+			set_countsStale();
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		} finally {
+			latches.unlatch(headerPageId, true);
+		}
+	}
+
+	/*
+	 * The path entry of the half of a split page that key belongs to.
+	 */
+	private static PathEntry half(PathEntry entry, KeyClass key,
+			KeyClass separator, PageId rightId) throws KeyNotMatchException {
+		if (BT.keyCompare(key, separator) >= 0)
+			return new PathEntry(rightId, separator, entry.high);
+		return new PathEntry(entry.pageId, entry.low, separator);
+	}
+
+	/*
+	 * Put a new root above `leftId' and `rightId', the page split off it
+	 * with `rightCount' entries, if leftId is still the root. Returns the
+	 * new root, or null.
+	 */
+	private PageId newRoot(KeyClass separator, PageId rightId, int rightCount,
+			PageId leftId) throws IOException, ConstructPageException,
+			IndexInsertRecException, UnpinPageException, PinPageException {
+		latches.latch(headerPageId, true);
+		try {
+			if (headerPage.get_rootId().pid != leftId.pid)
+				return null;
+			// read before the new page is taken, which is then let go as
+			// soon as it is set up
+			int leftCount = counted ? total(leftId) : 0;
+
+			//Creating a new index page as the root split	occurs
+			BTIndexPage newIndexPage = newIndexPage();
+			PageId newRootId = newIndexPage.getCurPage();
+			//Inserting record on this index page in the form of <key, pageId>
+			BTSearch.insertKey(newIndexPage, separator, rightId, rightCount, 0);
+			//the old root is split and it will now become the left child of new root; setting the prevPage pointer to the old root//
+			newIndexPage.setPrevPage(leftId);
+			if (counted)
+				BTCounts.setCount(newIndexPage, -1, leftCount);
+			//UnPinning page the new root using its page id
+			unpinPage(newRootId, true);
+			//Update the header to new root using its page id
+			updateHeader(newRootId);
+			metrics.setTreeHeight(metrics.getTreeHeight() + 1);
+			return newRootId;
+		} finally {
+			latches.unlatch(headerPageId, true);
+		}
+	}
+
+	/**
+	 * Build the B+ tree bottom-up from entries that are already sorted on
+	 * their key, using DEFAULT_FILL_FACTOR.
+	 *
+	 * @param entries
+	 *            the <key, rid> entries in ascending key order. Input
+	 *            parameter.
+	 * @exception InsertException
+	 *                the tree is not empty, or the entries are out of order
+	 * @see #bulkLoad(Iterator, float)
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, IOException {
+		bulkLoad(entries, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Build the B+ tree bottom-up from entries that are already sorted on
+	 * their key. Leaf pages are packed left to right up to the fill factor
+	 * and chained through their next page pointers, with the separator of
+	 * the next page as their high key; each completed page pushes a
+	 * separator into the rightmost index page of the level above, which
+	 * splits off a new index page (and so grows the tree) the same way when
+	 * it reaches the fill factor, and is linked to it likewise. Only the
+	 * rightmost page of each level is pinned at any time, and the header is
+	 * updated once at the end. A load that fails leaves the tree empty, with
+	 * the pages it took freed again.
+	 *
+	 * @param entries
+	 *            the <key, rid> entries in ascending key order. Input
+	 *            parameter.
+	 * @param fillFactor
+	 *            the fraction of each page to fill, in (0, 1]. Input
+	 *            parameter.
+	 * @exception InsertException
+	 *                the tree is not empty, the fill factor is out of range,
+	 *                or the entries are out of order
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                entry data is not leaf data
 	 * @exception LeafInsertRecException
 	 *                insert error in leaf page
 	 * @exception IndexInsertRecException
@@ -336,271 +2259,213 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error when unpin a page
 	 * @exception PinPageException
 	 *                error when pin a page
-	 * @exception NodeNotMatchException
-	 *                node not match index page nor leaf page
-	 * @exception ConvertException
-	 *                error when convert between revord and byte array
-	 * @exception DeleteRecException
-	 *                error when delete in index page
-	 * @exception IndexSearchException
-	 *                error when search
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception LeafDeleteException
-	 *                error when delete in leaf page
-	 * @exception InsertException
-	 *                error when insert in index page
+	 * @exception IOException
+	 *                error from the lower layer
 	 */
-	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
-			KeyNotMatchException, LeafInsertRecException,
+	public void bulkLoad(Iterator<KeyDataEntry> entries, float fillFactor)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException,
 			IndexInsertRecException, ConstructPageException,
-			UnpinPageException, PinPageException, NodeNotMatchException,
-			ConvertException, DeleteRecException, IndexSearchException,
-			IteratorException, LeafDeleteException, InsertException,
-			IOException
-
-	{ 
-		// Initially if there is no header page , we need to create one creating the root node and pointing it to the Invalid page.//
-		if (headerPage.get_rootId().pid == INVALID_PAGE)
-		{					
-			//-------------------All process are replicated as suggestion of Demo PDF provided----------------------//
-			//creating new first new page as the tree is empty
-			BTLeafPage newRootPage = new BTLeafPage(headerPage.get_keyType());
-			PageId newRootPageId = null;
-			//assigning the id for identifying the newly created header page(page number of the current page obtained through getCurPage()),replicating the pinnning process of buffer manager //
-			newRootPageId = newRootPage.getCurPage();
-			// pinPage(newRootPageId);
-			//setting null value to next pointer
-			newRootPage.setNextPage(new PageId(INVALID_PAGE));
-			// ---------------------newRootPage.setPrevPage(new PageId(INVALID_PAGE));--------------------------------//
-			//Inserting record on the page that is created
-			newRootPage.insertRecord(key,rid);	
-			//unpinning the newRootPage as it is dirty(used when lower index page gets split)//
-			unpinPage(newRootPageId, true);
-			//header page now points to the root page//
-			updateHeader(newRootPageId);
-		}
-		else
-		{
-			// Creating an instance of KeyDataEntry newRootEntry that will catch the return statement from _insert(KeyClass, RID, pageId) method//
-			KeyDataEntry newRootEntry = null;
-			try{
-				newRootEntry =  _insert(key, rid, headerPage.get_rootId());
-				} catch(InsertException e){
-					e.printStackTrace();
-													}
-			//If the newRootEntry is not null now means a spilt should occurs with new index page
-			if(newRootEntry!=null)
-			{
-			//Creating a new index page as the leaf page spilt	occurs
-				BTIndexPage newIndexPage = new BTIndexPage(NodeType.INDEX);
-			//Inserting record on this index page in the form of <key, pageId>; newRootPage.insertKey( newRootEntry.key, ((IndexData)newRootEntry.data).getData()) //
-				IndexData indexdata = (IndexData)newRootEntry.data;
-				newIndexPage.insertKey(newRootEntry.key, indexdata.getData());
-			//the old root is split and it will now become the left child of new root; setting the prevPage pointer to the old root using headerPage.get_rootId()//
-				newIndexPage.setPrevPage(headerPage.get_rootId());
-			//UnPinning page the new root using its page id
-				unpinPage(newIndexPage.getCurPage(), true);
-			//Update the header to new root using its page id
-				updateHeader(newIndexPage.getCurPage());
-			}					
-
-
+			UnpinPageException, PinPageException, IOException {
+		lockExclusive();
+		try {
+			_bulkLoad(entries, fillFactor);
+		} finally {
+			unlockExclusive();
 		}
 	}
-	
-
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
-			throws PinPageException, IOException, ConstructPageException,
-			LeafDeleteException, ConstructPageException, DeleteRecException,
-			IndexSearchException, UnpinPageException, LeafInsertRecException,
-			ConvertException, IteratorException, IndexInsertRecException,
-			KeyNotMatchException, NodeNotMatchException, InsertException
 
-	{
-		//creating a BTSortedPage currentpage of the page which will associate the sorted page instance with the page instance
-		BTSortedPage currentPage = new BTSortedPage(currentPageId,headerPage.get_keyType());
-		// Creating key data entry upEntry
-		KeyDataEntry upEntry=null;
-		//-------------------------------------------------------When currentpage is of type Index------------------------------//
-		if(currentPage.getType()== NodeType.INDEX)
-		{
-			//Creating a BTIndepage currentIndexPage, a variable to store its pageId CurrentIndexpageId  a variable to store the pageId of the new key nextPageId=currentIndexPage.getPageNoByKey(key)
-			BTIndexPage currentIndexPage = new BTIndexPage(currentPageId, headerPage.get_keyType());
-			PageId nextId = currentIndexPage.getPageNoByKey(key);
-			//unpinning the page using pageId
-			unpinPage(currentIndexPage.getCurPage());
-			//Recursing the _insert() using upEntry and passing correct paramters then pin it again
-			upEntry = _insert(key, rid, nextId);
-			//if upEntry is null no split occurs and no split occur, so null is returned
-			if(upEntry == null)
-			{
-				return null;
-			}
-			else
-			{
-			//Check if the currentIndexPage has space for new entries currentIndexPage.available_space() >= BT.getKeyDataLength( upEntry.key, NodeType.INDEX) 
-				if(currentIndexPage.available_space()>BT.getKeyDataLength(upEntry.key, NodeType.INDEX))
-				{
-				//Inserting the data in page as it has space and unpinning the page.
-					IndexData indexdata = (IndexData) upEntry.data;
-					currentIndexPage.insertKey(upEntry.key, indexdata.getData());
-					unpinPage(currentIndexPage.getCurPage(), true);
-				}
-				else
-				{
-				//if no space is available, split has to be done
-					//new page has to be created after splitting, 
-					BTIndexPage newIndexPage= new BTIndexPage(headerPage.get_keyType());
-					KeyDataEntry tmpkeyDataEntry = null;
-					KeyDataEntry tmpEntry = null;
-					RID delRid = new RID();
-					// Transfering datafrom currentIndexPage to newIndexPage
-					for(tmpEntry = currentIndexPage.getFirst(delRid); tmpEntry!=null; tmpEntry = currentIndexPage.getFirst(delRid))
-					{
-						//inserting into the second index page
-						System.out.println(tmpEntry.key);
-						IndexData indexdata = (IndexData)tmpEntry.data;
-						//Inserting record in new index page
-						newIndexPage.insertKey(tmpEntry.key, indexdata.getData());
-						//Deleting record from current index page
-						currentIndexPage.deleteSortedRecord(delRid);
-					}
-					// Make the split equal using other for loop to spilt the records equally
-					for(tmpEntry = newIndexPage.getFirst(delRid); newIndexPage.available_space()< currentIndexPage.available_space();tmpEntry = newIndexPage.getFirst(delRid))
-					{
-						//inserting half records into first leaf back
-						IndexData inData = (IndexData)(tmpEntry.data);	
-						currentIndexPage.insertKey(tmpEntry.key, inData.getData());
-						//removing from second index
-						newIndexPage.deleteSortedRecord(delRid);
-						tmpkeyDataEntry = tmpEntry;
-					}
-					tmpEntry = newIndexPage.getFirst(delRid);	
-					// Compare the key using BT.keyCompare( upEntry.key, tmpEntry.key)
-					if(BT.keyCompare(upEntry.key, tmpEntry.key)>0)
-					{
-						// the new key upEntry,key goes to the newIndexPage
-						IndexData indexdata = (IndexData)(upEntry.data);
-						newIndexPage.insertKey(upEntry.key, indexdata.getData());
+	private void _bulkLoad(Iterator<KeyDataEntry> entries, float fillFactor)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, IOException {
+
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "bulk load needs an empty index");
+		if (!(fillFactor > 0.0f && fillFactor <= 1.0f))
+			throw new InsertException(null, "fill factor out of range");
+		if (!entries.hasNext())
+			return;
+
+		// free bytes every page keeps back once it holds at least one entry
+		int reserve = (int) ((1.0f - fillFactor) * capacity);
+		short keyType = headerPage.get_keyType();
+
+		// rightmost (open) index page of every level, all pinned
+		ArrayList<BTIndexPage> levels = new ArrayList<BTIndexPage>();
+		// every page of the tree being built, freed if the load fails
+		ArrayList<PageId> allocated = new ArrayList<PageId>();
+
+		// entries of the current leaf, written once it is full, so that a
+		// prefix leaf gets the prefix of all of them. The leaf takes entries
+		// while they fit in the space the fill factor leaves, as bulkFits
+		// does for index pages.
+		BTLeafPage leafPage = newLeafPage();
+		allocated.add(leafPage.getCurPage());
+		boolean built = false;
+		ArrayList<KeyDataEntry> leafEntries = new ArrayList<KeyDataEntry>();
+		try {
+			BTSplit.Run leafRun = new BTSplit.Run(leafPage);
+			int leafSpace = capacity - reserve;
+			KeyClass lastKey = null;
+
+			while (entries.hasNext()) {
+				KeyDataEntry entry = entries.next();
+				if (!(entry.data instanceof LeafData))
+					throw new NodeNotMatchException(null, "not a leaf entry");
+				if (lastKey != null && BT.keyCompare(lastKey, entry.key) > 0)
+					throw new InsertException(null,
+							"bulk load input is not sorted");
+
+				if (!leafEntries.isEmpty()
+						&& leafRun.spaceWith(entry) > leafSpace) {
+					bulkWrite(leafPage, leafEntries);
+					// the new leaf is the open one as soon as it is pinned,
+					// for bulkAbandon to unpin; the full one is unpinned here
+					BTLeafPage fullPage = leafPage;
+					PageId leafId = fullPage.getCurPage();
+					leafPage = newLeafPage();
+					allocated.add(leafPage.getCurPage());
+					KeyClass separator;
+					try {
+						separator = BTSplit.separator(lastKey, entry.key);
+						fullPage.setNextPage(leafPage.getCurPage());
+						leafPage.setPrevPage(leafId);
+						BTLink.setHighKey(fullPage, separator);
+					} finally {
+						unpinPage(leafId, true);
 					}
-					else
-					{
-						//else it goes on the currentIndex page
-						IndexData indexdata = (IndexData)(upEntry.data);	
-						currentIndexPage.insertKey(upEntry.key, indexdata.getData());
 
-					}
-					//unpinning currentIndexPage as it is dirty page
-					unpinPage(currentIndexPage.getCurPage(), true);			
-					upEntry = newIndexPage.getFirst(delRid);
-					// Set the left link in the newIndexPage
-					newIndexPage.setPrevPage(((IndexData)upEntry.data).getData());
-					//Delete the first record from newIndexPage
-					newIndexPage.deleteSortedRecord(delRid);
-					unpinPage(newIndexPage.getCurPage(), true);
-					//set the higher Index page in the hierarchy to point to thenewIndexPage; ((IndexData)upEntry.data).setData(newIndexPageId)
-					((IndexData)upEntry.data).setData(newIndexPage.getCurPage());
-					//Returning upEntry
-					return upEntry;
+					bulkPromote(levels, 0, separator, leafPage.getCurPage(),
+							leafId, leafEntries.size(), reserve, keyType,
+							allocated);
+					leafEntries.clear();
+					leafRun = new BTSplit.Run(leafPage);
 				}
-
+				leafEntries.add(entry);
+				leafRun.add(entry);
+				lastKey = entry.key;
 			}
-			
+			bulkWrite(leafPage, leafEntries);
+			built = true;
+		} finally {
+			if (!built)
+				bulkAbandon(leafPage, levels, allocated);
 		}
-		//-------------------------------------When the currentpage is of type leaf----------------------------------------//
-		else if(currentPage.getType() == NodeType.LEAF)
-		{
-			//------Creating current leaf page with pageid constructor parameter-----------//
-
-			BTLeafPage currentLeafPage = new BTLeafPage(currentPageId, headerPage.get_keyType());
-			//Check if the currentLeafPage has space for new entries with currentLeafPage.available_space() >= BT.getKeyDataLength(	upEntry.key, NodeType.LEAF)
-			if(currentLeafPage.available_space() >= BT.getKeyDataLength(key, currentLeafPage.getType()))
-			{
-				//----------Space available so inserting record---------------//
-				currentLeafPage.insertRecord(key,rid);
-				// unpinning page since it is dirty now
-				unpinPage(currentLeafPage.getCurPage(),true);
-				return null;
-			}
-			else
-			{
-				//-----Space not available so current page must be split into two pages. So creating new leafpage with id and setting the pointers , previous and next one on it----//.
-
-				BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
-				PageId newLeafPageId = newLeafPage.getCurPage();
-				//Setting the next page pointer to the next page which was previously pointed by old page
-				newLeafPage.setNextPage(currentLeafPage.getNextPage());
-				//Setting old leaf next pointer to new leaf
-				currentLeafPage.setNextPage(newLeafPageId);
-				//creating temporary key data entry variables and RID to delete and from old page to new page
-				KeyDataEntry tmpEntry = null;
-				KeyDataEntry tmpkeyDataEntry = null;
-				RID delRid = new RID();
-				//seeing all the record ids on the page
-				System.out.println(currentLeafPage.getFirst(delRid).data);
-
-				//-----------initializing counter to find total records so that it can be split between old and new pages------------//
-				int count = 0;
-				//Running through loop to find all the records count//
-				for(tmpEntry= currentLeafPage.getFirst(delRid); tmpEntry!=null; tmpEntry = currentLeafPage.getNext(delRid))
-				{
-					count++;
-				}
-				System.out.println("Total number of records are " + count);
-				//tmpEntry assigned with the first record of old page for initiating transferring of records to new leaf//
-				tmpEntry = currentLeafPage.getFirst(delRid);
-				//Transferring the second half of data to another page through for loop
-				for(int i=1;i<=count;i++)
-				{
-					if(i>count/2)
-					{
-						LeafData leafdata = (LeafData)tmpEntry.data;
-						System.out.println(leafdata);
-						//Inserting it into the split page.
-						newLeafPage.insertRecord(tmpEntry.key, leafdata.getData());
-						//Copied page from old-leaf page is deleted
-						currentLeafPage.deleteSortedRecord(delRid);
-                		//Gets the next record to be moved						
-						tmpEntry = currentLeafPage.getCurrent(delRid);
-					}
-					else
-					{
-						//the first half goes into the old page
-						tmpkeyDataEntry = tmpEntry;
-						tmpEntry = currentLeafPage.getNext(delRid);
-					}
-				}
 
-				//Comparision to send the record to respective page
-				if(BT.keyCompare(key,tmpkeyDataEntry.key)>0)
-				{
-					newLeafPage.insertRecord(key,rid);
-				}
-				else
-				{
-					currentLeafPage.insertRecord(key, rid);
-				}
-				//Unpinning the current dirty page
-				unpinPage(currentLeafPage.getCurPage(), true);
-				//filling up the tmpEntry
-				tmpEntry = newLeafPage.getFirst(delRid);  
-				//Creating upEntry data to fill record data to return
-				KeyDataEntry upEnt;  
-				upEnt = new KeyDataEntry(tmpEntry.key, newLeafPageId);
-				unpinPage(newLeafPageId,true);
-				return upEnt;
+		PageId rootId = leafPage.getCurPage();
+		unpinPage(leafPage.getCurPage(), true);
+		int count = leafEntries.size(); // of the last page of the level below
+		for (int i = 0; i < levels.size(); i++) {
+			BTIndexPage indexPage = levels.get(i);
+			BTCounts.setCount(indexPage, indexPage.getSlotCnt() - 1, count);
+			count = BTCounts.total(indexPage);
+			rootId = indexPage.getCurPage();
+			unpinPage(rootId, true);
+		}
+
+		updateHeader(rootId);
+		metrics.setTreeHeight(levels.size() + 1);
+	}
+
+	/*
+	 * Undo a bulk load that failed: unpin the open leaf and index pages, and
+	 * free every page allocated for the tree. The header still has no root,
+	 * so nothing refers to them. An error here is dropped, for the one that
+	 * stopped the load is what goes up.
+	 */
+	private void bulkAbandon(BTLeafPage leafPage, List<BTIndexPage> levels,
+			List<PageId> allocated) {
+		try {
+			unpinPage(leafPage.getCurPage(), false);
+			for (int i = 0; i < levels.size(); i++)
+				unpinPage(levels.get(i).getCurPage(), false);
+		} catch (Exception e) {
+			return; // the pages are still pinned, and cannot be freed
+		}
+		for (int i = 0; i < allocated.size(); i++) {
+			try {
+				freePage(allocated.get(i));
+			} catch (Exception e) {
+				// go on with the next page
 			}
+		}
+	}
 
+	private void bulkWrite(BTLeafPage leafPage, List<KeyDataEntry> entries)
+			throws LeafInsertRecException {
+		try {
+			BTSplit.rebuild(leafPage, entries);
+		} catch (InsertRecException e) {
+			throw new LeafInsertRecException(e, "key too long for a page");
 		}
-		else
-		{
-			throw new InsertException(null,"");
+	}
+
+	/*
+	 * Whether an entry of `len' bytes goes onto a page being bulk loaded.
+	 * A page always takes its first entry; after that it stops once the
+	 * entry would eat into the `reserve' bytes left free by the fill factor.
+	 */
+	private boolean bulkFits(HFPage page, int len, int reserve)
+			throws IOException {
+		if (len > page.available_space())
+			return false;
+		return page.empty() || page.available_space() - len >= reserve;
+	}
+
+	/*
+	 * Add separator <key, childId> to the rightmost index page of `level'
+	 * while bulk loading. `leftId' is the page that was completed just before
+	 * childId, with `leftCount' entries below it; it becomes the leftmost
+	 * child of the level's first page. When the level's open page is full, a
+	 * new page takes childId as its leftmost child and `key' moves one level
+	 * up instead. The count of childId is set once it is completed in turn.
+	 * New pages are added to `allocated'.
+	 */
+	private void bulkPromote(ArrayList<BTIndexPage> levels, int level,
+			KeyClass key, PageId childId, PageId leftId, int leftCount,
+			int reserve, short keyType, List<PageId> allocated)
+			throws IOException, ConstructPageException,
+			IndexInsertRecException, KeyNotMatchException,
+			NodeNotMatchException, UnpinPageException, PinPageException {
+
+		if (level == levels.size()) {
+			BTIndexPage indexPage = newIndexPage();
+			allocated.add(indexPage.getCurPage());
+			levels.add(indexPage);
+			indexPage.setPrevPage(leftId);
+		}
+
+		BTIndexPage indexPage = levels.get(level);
+		BTCounts.setCount(indexPage, indexPage.getSlotCnt() - 1, leftCount);
+		int len = indexEntryLength(key);
+		if (bulkFits(indexPage, len, reserve)) {
+			BTSearch.insertKey(indexPage, key, childId, 0, indexPage
+					.getSlotCnt());
+			return;
+		}
+
+		// as for leaves: the new page is the open one once it is pinned
+		BTIndexPage newIndexPage = newIndexPage();
+		allocated.add(newIndexPage.getCurPage());
+		levels.set(level, newIndexPage);
+		PageId indexId = indexPage.getCurPage();
+		int indexCount;
+		try {
+			indexCount = BTCounts.total(indexPage);
+			newIndexPage.setPrevPage(childId);
+			indexPage.setNextPage(newIndexPage.getCurPage());
+			BTLink.setHighKey(indexPage, key);
+		} finally {
+			unpinPage(indexId, true);
 		}
-		return null;
+
+		bulkPromote(levels, level + 1, key, newIndexPage.getCurPage(),
+				indexId, indexCount, reserve, keyType, allocated);
 	}
 
-	
+
 
 
 
@@ -657,10 +2522,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
+		long start = System.nanoTime();
+		int startPins = pins();
+		boolean deleted;
+
 		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
+			deleted = NaiveDelete(key, rid);
+		else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE)
+			deleted = FullDelete(key, rid);
 		else
 			throw new DeleteFashionException(null, "");
+
+		metrics.record(BTreeMetrics.DELETE, System.nanoTime() - start, pins() - startPins);
+		return deleted;
 	}
 
 	/*
@@ -687,18 +2561,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
+		return findRunStart(lo_key, startrid, false);
+	}
+
+	/*
+	 * findRunStart, going down one latched page at a time and right past
+	 * the high key of a page split meanwhile. The leaf returned is latched
+	 * too, for writing if `exclusive', and the caller releases its latch
+	 * along with its pin. The tree latch is held by the caller.
+	 */
+	private BTLeafPage findRunStart(KeyClass lo_key, RID startrid,
+			boolean exclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
 		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
-		Page page;
-		BTSortedPage sortPage;
 		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
-		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
+		int slot;
 
-		pageno = headerPage.get_rootId();
+		pageno = rootId();
 
 		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
 			pageLeaf = null; // should be handled by
@@ -706,110 +2586,512 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			return pageLeaf;
 		}
 
-		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		// child of the last entry with a key strictly less than lo_key on
+		// every level, so that the descent ends up left of every duplicate
+		// of lo_key
+		Path path = new Path(structureVersion.get());
+		path.entries.add(new PathEntry(pageno, null, null));
+		pageLeaf = leafPage(descend(lo_key, path, false, exclusive));
+		pageno = pageLeaf.getCurPage();
+
+		// first entry >= lo_key; going right past empty leaf pages and pages
+		// whose keys are all smaller
+		slot = (lo_key == null) ? 0 : BTSearch.lowerBound(pageLeaf, lo_key);
+		while (slot >= pageLeaf.getSlotCnt()) {
+			pageLeaf = nextLeaf(pageLeaf, exclusive, false);
+			if (pageLeaf == null) {
+				// oops, no more records, so set this scan to indicate this.
+				return null;
+			}
+
+			pageno = pageLeaf.getCurPage();
+			slot = (lo_key == null) ? 0 : BTSearch.lowerBound(pageLeaf, lo_key);
+		}
+
+		// ASSERTIONS:
+		// - slot is the first record >= lo_key on the current leaf page
+		// - pageLeaf, pageno valid and pinned
+		// note that pageno/pageLeaf is still pinned; scan will unpin it when
+		// done
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
+		startrid.pageNo = new PageId(pageno.pid);
+		startrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * The leaf a descending scan from hi_key starts on: the last leaf that
+	 * may hold hi_key, or the rightmost leaf if hi_key is null, pinned and
+	 * latched for reading. endrid gets the slot past the last entry <=
+	 * hi_key on it, which may be 0. The tree latch is held by the caller.
+	 */
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId pageno = rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+
+		Path path = new Path(structureVersion.get());
+		path.entries.add(new PathEntry(pageno, null, null));
+		BTLeafPage pageLeaf = leafPage(descend(hi_key, path, true, false));
+		endrid.pageNo = pageLeaf.getCurPage();
+		endrid.slotNo = hi_key == null ? pageLeaf.getSlotCnt() : BTSearch
+				.upperBound(pageLeaf, hi_key);
+		return pageLeaf;
+	}
+
+	/*
+	 * Move on from a pinned and latched leaf to the next one in the chain,
+	 * which is latched before the current one is let go. Returns null, with
+	 * nothing left pinned or latched, at the end of the chain.
+	 */
+	BTLeafPage nextLeaf(BTLeafPage leafPage, boolean exclusive, boolean dirty)
+			throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		PageId pageno = leafPage.getCurPage();
+		PageId nextpageno = leafPage.getNextPage();
+		if (nextpageno.pid != INVALID_PAGE)
+			latches.latch(nextpageno, exclusive);
+		unpinPage(pageno, dirty);
+		latches.unlatch(pageno, exclusive);
+		if (nextpageno.pid == INVALID_PAGE)
+			return null;
+		return leafPage(nextpageno);
+	}
+
+	/*
+	 * Point the left link of a leaf at `leftId'; nothing for INVALID_PAGE,
+	 * past the end of the chain. The caller has the leaf latched for
+	 * writing, or the tree to itself.
+	 */
+	private void setLeftLink(PageId pageno, PageId leftId) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (pageno.pid == INVALID_PAGE)
+			return;
+		new BTSortedPage(pinPage(pageno), headerPage.get_keyType())
+				.setPrevPage(leftId);
+		unpinPage(pageno, true);
+	}
+
+	/*
+	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index.
+	 * 
+	 * We don't do merging or redistribution, but do allow duplicates.
+	 * 
+	 * On a counted tree the entry is looked for from the root, as
+	 * _FullDelete does, so that the counts on the way down to it go down
+	 * with it.
+	 */
+
+	private boolean NaiveDelete(KeyClass key, RID rid)
+			throws LeafDeleteException, KeyNotMatchException, PinPageException,
+			ConstructPageException, IOException, UnpinPageException,
+			PinPageException, IndexSearchException, IteratorException,
+			DeleteRecException, LeafRedistributeException,
+			RedistributeException, InsertRecException, FreePageException,
+			IndexFullDeleteException, IndexInsertRecException {
+		Lock lock = writerLock();
+		lock.lock();
+		try {
+			if (!counted)
+				return deleteFromLeaf(key, rid, false) == DELETED;
+			finishLeftSplits();
+			PageId rootId = headerPage.get_rootId();
+			return rootId.pid != INVALID_PAGE
+					&& _FullDelete(key, rid, rootId, false) != NOT_FOUND;
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
+	/* results of deleteFromLeaf and _FullDelete */
+	private final static int NOT_FOUND = 0;
+	private final static int DELETED = 1;
+	private final static int UNDERFULL = 2;
 
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+	/*
+	 * Page containing first occurrence of key `key' is found for us by
+	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
+	 * find the one containing <key,rid>, which we then delete via
+	 * BTLeafPage::deleteSortedRecord. With `keepHalfFull', an entry whose
+	 * delete would leave its page less than half full, or the root leaf
+	 * empty, is left in place, and UNDERFULL returned.
+	 */
+	private int deleteFromLeaf(KeyClass key, RID rid, boolean keepHalfFull)
+			throws LeafDeleteException, KeyNotMatchException, PinPageException,
+			ConstructPageException, IOException, UnpinPageException,
+			IteratorException, DeleteRecException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid, true);
+		if (leafPage == null)
+			return NOT_FOUND;
+
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		while (true) {
+			while (entry == null) { // end of the page, go on with the next one
+				leafPage = nextLeaf(leafPage, true, false);
+				if (leafPage == null)
+					return NOT_FOUND;
+				entry = leafPage.getFirst(curRid);
+			}
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+			if (BT.keyCompare(key, entry.key) < 0)
+				break; // past the run of `key'
+
+			if (((LeafData) entry.data).getData().equals(rid)) {
+				int status = DELETED;
+				if (keepHalfFull && leavesUnderfull(leafPage, curRid.slotNo))
+					status = UNDERFULL;
+				else if (!leafPage.deleteSortedRecord(curRid))
+					throw new LeafDeleteException(null, "Delete record failed");
+				PageId pageno = leafPage.getCurPage();
+				unpinPage(pageno, status == DELETED);
+				latches.unlatch(pageno, true);
+				return status;
 			}
+			entry = leafPage.getNext(curRid);
+		}
 
-			unpinPage(pageno);
+		PageId pageno = leafPage.getCurPage();
+		unpinPage(pageno);
+		latches.unlatch(pageno, true);
+		return NOT_FOUND;
+	}
 
-			pageno = prevpageno;
-			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+	/*
+	 * Whether deleting the entry in `slot' leaves a latched leaf less than
+	 * half full, or, for the root, empty.
+	 */
+	private boolean leavesUnderfull(BTLeafPage leafPage, int slot)
+			throws IOException {
+		if (rootId().pid == leafPage.getCurPage().pid)
+			return leafPage.getSlotCnt() == 1;
+		return leafPage.available_space() + leafPage.getSlotLength(slot) + 2
+				* HFPage.SIZE_OF_SLOT > capacity / 2;
+	}
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
+	/*
+	 * Status BTreeFile::FullDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index, and merge or
+	 * redistribute every page it leaves less than half full with a sibling.
+	 * The pairing follows BTIndexPage::getSibling (the left sibling, or the
+	 * right one for the leftmost child), and a page gives entries away only
+	 * while it stays at least half full, as in BTLeafPage::redistribute.
+	 * 
+	 * A delete that leaves its leaf at least half full is done as a naive
+	 * one. Otherwise the delete starts over with the tree to itself, as
+	 * merges and redistributions move entries left, where a descent that
+	 * only ever moves right would miss them. On a counted tree every delete
+	 * goes down from the root with the tree to itself, and takes its entry
+	 * off the counts on the way.
+	 * 
+	 * Pages are rebalanced by the parent, which knows the slot of the child
+	 * it descended into. The key based helpers of BTIndexPage (getSibling,
+	 * adjustKey, deleteKey) find the parent entry by key, which is ambiguous
+	 * once separators repeat, and duplicates are allowed.
+	 * 
+	 * An index root left without entries is replaced by its only child, and
+	 * an empty leaf root leaves the tree empty.
+	 */
+	private boolean FullDelete(KeyClass key, RID rid)
+			throws LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IOException {
+		if (!counted) {
+			int status;
+			treeLatch.readLock().lock();
+			try {
+				status = deleteFromLeaf(key, rid, true);
+			} finally {
+				treeLatch.readLock().unlock();
+			}
+			if (status != UNDERFULL)
+				return status == DELETED;
+		}
+
+		lockExclusive();
+		try {
+			finishLeftSplits();
+			PageId rootId = headerPage.get_rootId();
+			if (rootId.pid == INVALID_PAGE)
+				return false;
+
+			if (_FullDelete(key, rid, rootId, true) == NOT_FOUND)
+				return false;
+
+			while (rootId.pid != INVALID_PAGE) {
+				BTSortedPage rootPage = new BTSortedPage(pinPage(rootId),
+						headerPage.get_keyType());
+				if (rootPage.getSlotCnt() > 0) {
+					unpinPage(rootId);
+					break;
+				}
+
+				PageId newRootId = rootPage.getType() == NodeType.INDEX ? rootPage
+						.getPrevPage() : new PageId(INVALID_PAGE);
+				unpinPage(rootId);
+				freePage(rootId);
+				updateHeader(newRootId);
+				metrics.setTreeHeight(metrics.getTreeHeight() - 1);
+				rootId = newRootId;
+			}
+			return true;
+		} finally {
+			unlockExclusive();
+		}
+	}
+
+	/*
+	 * Delete <key, rid> from the subtree rooted at `currentPageId'. Returns
+	 * NOT_FOUND, DELETED, or, with `rebalance', UNDERFULL if the page is
+	 * less than half full afterwards and should be rebalanced by its parent.
+	 * The counts of the children the entry was found below go down by one.
+	 */
+	private int _FullDelete(KeyClass key, RID rid, PageId currentPageId,
+			boolean rebalance)
+			throws LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IOException {
+		Page page = pinPage(currentPageId);
+		BTSortedPage currentPage = new BTSortedPage(page,
+				headerPage.get_keyType());
+
+		if (currentPage.getType() == NodeType.LEAF) {
+			BTLeafPage leafPage = leafPage(page);
+			int slot = BTSearch.lowerBound(leafPage, key);
+			for (; slot < leafPage.getSlotCnt(); slot++) {
+				if (BTSearch.compareAt(leafPage, slot, key) != 0) {
+					slot = leafPage.getSlotCnt();
+					break;
+				}
+				KeyDataEntry entry = BTSearch.entryAt(leafPage, slot);
+				if (((LeafData) entry.data).getData().equals(rid))
+					break;
+			}
+			if (slot == leafPage.getSlotCnt()) {
+				unpinPage(currentPageId);
+				return NOT_FOUND;
+			}
+
+			if (!leafPage.deleteSortedRecord(new RID(currentPageId, slot)))
+				throw new LeafDeleteException(null, "Delete record failed");
+			int status = rebalance && underfull(leafPage) ? UNDERFULL
+					: DELETED;
+			unpinPage(currentPageId, true /* = DIRTY */);
+			return status;
+		}
+
+		BTIndexPage indexPage = indexPage(page);
+
+		// duplicates of `key' may have been split over several children,
+		// from the one left of the first separator >= key to the one of the
+		// last separator <= key
+		int firstSlot = BTSearch.lowerBound(indexPage, key) - 1;
+		int lastSlot = BTSearch.upperBound(indexPage, key) - 1;
+		for (int childSlot = firstSlot; childSlot <= lastSlot; childSlot++) {
+			int status = _FullDelete(key, rid,
+					BTSearch.childAt(indexPage, childSlot), rebalance);
+			if (status == NOT_FOUND)
+				continue;
+
+			BTCounts.add(indexPage, childSlot, -1);
+			if (status == UNDERFULL) {
+				rebalance(indexPage, childSlot);
+				status = underfull(indexPage) ? UNDERFULL : DELETED;
 			}
+			unpinPage(currentPageId, true /* = DIRTY */);
+			return status;
+		}
+
+		unpinPage(currentPageId);
+		return NOT_FOUND;
+	}
+
+	/*
+	 * Whether less than half of the space of a page is in use.
+	 */
+	private boolean underfull(BTSortedPage page) throws IOException {
+		return page.available_space() + HFPage.SIZE_OF_SLOT > capacity / 2;
+	}
 
+	/*
+	 * Merge the child in slot `childSlot' of `parentPage' with a sibling, or
+	 * move entries over from the sibling if both do not fit on one page. The
+	 * right page of a merged pair is freed and its entry removed from the
+	 * parent, which may leave the parent underfull in turn. The pair are
+	 * right neighbours on their level, and the left page takes over the
+	 * right link and high key of a merged right page, or the new separator
+	 * as its high key. On a counted tree the parent counts the entries of
+	 * the pair anew.
+	 */
+	private void rebalance(BTIndexPage parentPage, int childSlot)
+			throws LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			FreePageException, PinPageException, IndexFullDeleteException,
+			IteratorException, ConstructPageException, DeleteRecException,
+			IOException {
+		if (parentPage.getSlotCnt() == 0)
+			return; // an only child has no sibling
+
+		// separator between the pair: the child's own entry, or the first
+		// entry if the child is the leftmost one
+		int sepSlot = Math.max(childSlot, 0);
+		PageId leftId = BTSearch.childAt(parentPage, sepSlot - 1);
+		PageId rightId = BTSearch.childAt(parentPage, sepSlot);
+		Page left = pinPage(leftId);
+		Page right = pinPage(rightId);
+
+		boolean merged;
+		BTSortedPage leftPage;
+		BTSortedPage rightPage;
+		if (new BTSortedPage(left, headerPage.get_keyType()).getType() == NodeType.LEAF) {
+			BTLeafPage leftLeaf = leafPage(left);
+			BTLeafPage rightLeaf = leafPage(right);
+			merged = rebalanceLeaves(parentPage, sepSlot, leftLeaf, rightLeaf);
+			leftPage = leftLeaf;
+			rightPage = rightLeaf;
+		} else {
+			BTIndexPage leftIndex = indexPage(left);
+			BTIndexPage rightIndex = indexPage(right);
+			merged = rebalanceIndexes(parentPage, sepSlot, leftIndex,
+					rightIndex);
+			leftPage = leftIndex;
+			rightPage = rightIndex;
 		}
+		BTCounts.setCount(parentPage, sepSlot - 1, BTCounts.total(leftPage));
+		if (!merged)
+			BTCounts.setCount(parentPage, sepSlot, BTCounts.total(rightPage));
+
+		unpinPage(leftId, true /* = DIRTY */);
+		unpinPage(rightId, true /* = DIRTY */);
+		if (merged)
+			freePage(rightId);
+	}
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+	/*
+	 * Rebalance two neighbouring leaves. Returns true if `rightPage' was
+	 * merged into `leftPage' and is to be freed.
+	 */
+	private boolean rebalanceLeaves(BTIndexPage parentPage, int sepSlot,
+			BTLeafPage leftPage, BTLeafPage rightPage)
+			throws InsertRecException, KeyNotMatchException,
+			IteratorException, DeleteRecException, ConstructPageException,
+			PinPageException, UnpinPageException, IOException {
+		ArrayList<KeyDataEntry> entries = BTSplit.entries(leftPage);
+		int leftCnt = entries.size();
+		entries.addAll(BTSplit.entries(rightPage));
+
+		if (BTSplit.space(leftPage, entries, 0, entries.size()) <= capacity) {
+			BTSplit.rebuild(leftPage, entries);
+			leftPage.setNextPage(rightPage.getNextPage());
+			setLeftLink(rightPage.getNextPage(), leftPage.getCurPage());
+			BTLink.setHighKey(leftPage, BTLink.getHighKey(rightPage));
+			parentPage.deleteSortedRecord(new RID(parentPage.getCurPage(),
+					sepSlot));
+			return true;
+		}
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
-			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
-				// oops, no more records, so set this scan to indicate this.
-				return null;
-			}
+		int cut = BTSplit.splitPoint(leftPage, entries);
+		if (cut == leftCnt)
+			return false;
 
-			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
-		}
+		KeyClass newKey = BTSplit.separator(entries.get(cut - 1).key, entries
+				.get(cut).key);
+		if (!separatorFits(parentPage, sepSlot, newKey))
+			return false;
 
-		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
+		BTSplit.rebuild(leftPage, entries.subList(0, cut));
+		BTSplit.rebuild(rightPage, entries.subList(cut, entries.size()));
+		BTLink.setHighKey(leftPage, newKey);
+		replaceSeparator(parentPage, sepSlot, newKey, rightPage.getCurPage());
+		return false;
+	}
 
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+	/*
+	 * Rebalance two neighbouring index pages. The separator between them
+	 * comes down from the parent along with the leftmost child of
+	 * `rightPage', and the entry in the middle of the combined run goes up
+	 * in its place. Returns true if `rightPage' was merged into `leftPage'
+	 * and is to be freed.
+	 */
+	private boolean rebalanceIndexes(BTIndexPage parentPage, int sepSlot,
+			BTIndexPage leftPage, BTIndexPage rightPage)
+			throws InsertRecException, KeyNotMatchException,
+			IteratorException, DeleteRecException, IOException {
+		ArrayList<KeyDataEntry> entries = BTSplit.entries(leftPage);
+		int leftCnt = entries.size();
+		entries.add(BTSearch.indexEntry(leftPage, BTSearch.entryAt(parentPage,
+				sepSlot).key, rightPage.getPrevPage(), BTCounts.count(rightPage,
+				-1)));
+		entries.addAll(BTSplit.entries(rightPage));
+		int[] sizes = new int[entries.size()];
+		int total = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			if (i < leftCnt)
+				sizes[i] = BTSplit.size(leftPage, i);
+			else if (i == leftCnt)
+				sizes[i] = BTSplit.size(parentPage, sepSlot);
+			else
+				sizes[i] = BTSplit.size(rightPage, i - leftCnt - 1);
+			total += sizes[i];
 		}
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
-
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
-				}
+		if (total <= capacity) {
+			BTSplit.rebuild(leftPage, entries);
+			leftPage.setNextPage(rightPage.getNextPage());
+			BTLink.setHighKey(leftPage, BTLink.getHighKey(rightPage));
+			parentPage.deleteSortedRecord(new RID(parentPage.getCurPage(),
+					sepSlot));
+			return true;
+		}
 
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
+		int cut = BTSplit.splitPoint(sizes);
+		if (cut == leftCnt)
+			return false;
 
-				curEntry = pageLeaf.getFirst(startrid);
-			}
-		}
+		KeyDataEntry middle = entries.get(cut);
+		if (!separatorFits(parentPage, sepSlot, middle.key))
+			return false;
 
-		return pageLeaf;
+		BTSplit.rebuild(leftPage, entries.subList(0, cut));
+		BTSplit.rebuild(rightPage, entries.subList(cut + 1, entries.size()));
+		rightPage.setPrevPage(((IndexData) middle.data).getData());
+		BTCounts.setCount(rightPage, -1, BTCounts.count(middle));
+		BTLink.setHighKey(leftPage, middle.key);
+		replaceSeparator(parentPage, sepSlot, middle.key, rightPage
+				.getCurPage());
+		return false;
 	}
 
 	/*
-	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
-	 * 
-	 * Remove specified data entry (<key, rid>) from an index.
-	 * 
-	 * We don't do merging or redistribution, but do allow duplicates.
-	 * 
-	 * Page containing first occurrence of key `key' is found for us by
-	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
-	 * find the one containing <key,rid>, which we then delete via
-	 * BTLeafPage::delUserRid.
+	 * Whether the separator in slot `sepSlot' can be replaced by one with key
+	 * `newKey'. String separators vary in length, and a longer one may not
+	 * fit; the pages are then left as they are.
 	 */
+	private boolean separatorFits(BTIndexPage parentPage, int sepSlot,
+			KeyClass newKey) throws KeyNotMatchException, IteratorException,
+			IOException {
+		KeyClass oldKey = BTSearch.entryAt(parentPage, sepSlot).key;
+		return BT.getKeyLength(newKey) - BT.getKeyLength(oldKey) <= parentPage
+				.available_space();
+	}
 
-	private boolean NaiveDelete(KeyClass key, RID rid)
-			throws LeafDeleteException, KeyNotMatchException, PinPageException,
-			ConstructPageException, IOException, UnpinPageException,
-			PinPageException, IndexSearchException, IteratorException {
-	// remove the return statement and start your code.
-			return false;
+	private void replaceSeparator(BTIndexPage parentPage, int sepSlot,
+			KeyClass newKey, PageId childId) throws DeleteRecException,
+			InsertRecException, IOException {
+		int count = BTCounts.count(parentPage, sepSlot);
+		parentPage.deleteSortedRecord(new RID(parentPage.getCurPage(), sepSlot));
+		if (BTSearch.insertRecord(parentPage, BTSearch.indexEntry(parentPage,
+				newKey, childId, count), sepSlot) == null)
+			throw new InsertRecException(null, "separator does not fit");
 	}
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
@@ -841,61 +3123,614 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
+		return new_scan(lo_key, hi_key, ScanHint.NORMAL);
+	}
+
+	/**
+	 * create a scan with given keys, as new_scan(lo_key, hi_key) does, and
+	 * the way it is going to read the leaves. With ScanHint.SEQUENTIAL_BULK
+	 * the leaves the scan reads from disk go through a ring of
+	 * SCAN_RING_SIZE frames of the buffer pool, given back when the scan
+	 * reaches its end or is destroyed.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param hint
+	 *            ScanHint.NORMAL or ScanHint.SEQUENTIAL_BULK. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int hint)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		return new_scan(lo_key, hi_key, hint, ScanOrder.ASCENDING);
+	}
+
+	/**
+	 * create a scan with given keys and hint, as new_scan(lo_key, hi_key,
+	 * hint) does, returning its entries in a given order. A
+	 * ScanOrder.DESCENDING scan goes down to the last entry <= hi_key, or
+	 * to the rightmost leaf if hi_key is null, and from there back along
+	 * the left links of the leaves, down to lo_key; it reads no leaves
+	 * ahead.
+	 *
+	 * @param lo_key
+	 *            the key where an ascending scan begins, and a descending
+	 *            one stops. Input parameter.
+	 * @param hi_key
+	 *            the key where an ascending scan stops, and a descending one
+	 *            begins. Input parameter.
+	 * @param hint
+	 *            ScanHint.NORMAL or ScanHint.SEQUENTIAL_BULK. Input parameter.
+	 * @param order
+	 *            ScanOrder.ASCENDING or ScanOrder.DESCENDING. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int hint,
+			int order) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		long start = System.nanoTime();
+		int startPins = pins();
+
+		BTreeFileScan scan = new BTreeFileScan();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
+			metrics.record(BTreeMetrics.SCAN, System.nanoTime() - start, 0);
 			return scan;
 		}
 
+		boolean descending = order == ScanOrder.DESCENDING;
 		scan.treeFilename = dbname;
-		scan.endkey = hi_key;
+		scan.descending = descending;
+		scan.endkey = descending ? lo_key : hi_key;
 		scan.didfirst = false;
 		scan.deletedcurrent = false;
 		scan.curRid = new RID();
 		scan.keyType = headerPage.get_keyType();
 		scan.maxKeysize = headerPage.get_maxKeySize();
 		scan.bfile = this;
+		int readAhead = readAheadLeaves;
+		if (hint == ScanHint.SEQUENTIAL_BULK) {
+			scan.ring = new BufferRing(SCAN_RING_SIZE);
+			readAhead = Math.min(readAhead, SCAN_RING_SIZE / 2);
+		}
+		if (readAhead > 0 && !descending)
+			scan.readAhead = new LeafReadAhead(this, scan.ring, hi_key,
+					readAhead);
 
 		// this sets up scan at the starting position, ready for iteration
-		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		scan.open(descending ? hi_key : lo_key);
+		metrics.record(BTreeMetrics.SCAN, System.nanoTime() - start, pins() - startPins);
 		return scan;
 	}
 
-	void trace_children(PageId id) throws IOException, IteratorException,
-			ConstructPageException, PinPageException, UnpinPageException {
+	/**
+	 * The key range [lo_key, hi_key] of the tree, to iterate over, or to
+	 * split into ranges that threads of their own iterate over.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the range, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key of the range, null for none. Input
+	 *            parameter.
+	 * @return the range.
+	 */
+	public BTreeRange range(KeyClass lo_key, KeyClass hi_key) {
+		return new BTreeRange(this, lo_key, hi_key, false);
+	}
 
-		if (trace != null) {
+	/**
+	 * The entries of [lo_key, hi_key] as a stream, in key order. The
+	 * stream is sequential; made parallel, it splits the range at separator
+	 * keys of the index pages as BTreeRange.split does, and each part is
+	 * scanned on a thread of its own. Like the iterators of BTreeRange, the
+	 * stream throws an IllegalStateException if a scan fails.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the range, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key of the range, null for none. Input
+	 *            parameter.
+	 * @return the stream of the entries of the range.
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key) {
+		return StreamSupport.stream(range(lo_key, hi_key).spliterator(), false);
+	}
+
+	/**
+	 * Aggregate the entries of [lo_key, hi_key] on the common ForkJoinPool,
+	 * as aggregate(lo_key, hi_key, aggregator, ForkJoinPool.commonPool())
+	 * does.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the range, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key of the range, null for none. Input
+	 *            parameter.
+	 * @param aggregator
+	 *            the aggregation. Input parameter.
+	 * @return the result of the aggregation.
+	 * @exception ScanIteratorException
+	 *                the scan or the split of a part failed
+	 */
+	public <A> A aggregate(KeyClass lo_key, KeyClass hi_key,
+			BTreeAggregator<A> aggregator) throws ScanIteratorException {
+		return aggregate(lo_key, hi_key, aggregator, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Aggregate the entries of [lo_key, hi_key] on the threads of a
+	 * ForkJoinPool. A task splits its range in two as BTreeRange.split
+	 * splits it, forks a task for the upper part and goes on with the
+	 * lower part, until the range lies within one leaf or the pool has
+	 * enough tasks queued to keep its threads busy. The task then scans its
+	 * part and folds it into a partial result. Partial results are combined
+	 * in key order as the tasks join, and idle threads steal the upper
+	 * parts still queued.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the range, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key of the range, null for none. Input
+	 *            parameter.
+	 * @param aggregator
+	 *            the aggregation. Input parameter.
+	 * @param pool
+	 *            the threads that scan the parts. Input parameter.
+	 * @return the result of the aggregation.
+	 * @exception ScanIteratorException
+	 *                the scan or the split of a part failed
+	 */
+	public <A> A aggregate(KeyClass lo_key, KeyClass hi_key,
+			BTreeAggregator<A> aggregator, ForkJoinPool pool)
+			throws ScanIteratorException {
+		try {
+			return pool.invoke(new AggregateTask<A>(range(lo_key, hi_key),
+					aggregator));
+		} catch (RuntimeException e) {
+			throw new ScanIteratorException(e, "parallel scan failed");
+		}
+	}
+
+	/*
+	 * A part of an aggregation: its range, split further or scanned.
+	 */
+	private static class AggregateTask<A> extends RecursiveTask<A> {
 
-			BTSortedPage sortedPage;
-			RID metaRid = new RID();
-			PageId childPageId;
-			KeyClass key;
-			KeyDataEntry entry;
-			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+		private final static long serialVersionUID = 1L;
 
-			// Now print all the child nodes of the page.
-			if (sortedPage.getType() == NodeType.INDEX) {
-				BTIndexPage indexPage = new BTIndexPage(sortedPage,
-						headerPage.get_keyType());
-				trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				trace.writeBytes(" " + indexPage.getPrevPage());
-				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + ((IndexData) entry.data).getData());
+		/*
+		 * Tasks a thread may have queued and not yet taken back or had
+		 * stolen before it stops splitting.
+		 */
+		private final static int SURPLUS = 2;
+
+		private final BTreeRange range;
+		private final BTreeAggregator<A> aggregator;
+
+		AggregateTask(BTreeRange range, BTreeAggregator<A> aggregator) {
+			this.range = range;
+			this.aggregator = aggregator;
+		}
+
+		protected A compute() {
+			if (getSurplusQueuedTaskCount() <= SURPLUS) {
+				List<BTreeRange> parts;
+				try {
+					parts = range.split(2);
+				} catch (Exception e) {
+					throw new IllegalStateException("split of range failed", e);
 				}
-			} else if (sortedPage.getType() == NodeType.LEAF) {
-				BTLeafPage leafPage = new BTLeafPage(sortedPage,
-						headerPage.get_keyType());
-				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
-				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+				if (parts.size() > 1) {
+					AggregateTask<A> upper = new AggregateTask<A>(parts.get(1),
+							aggregator);
+					upper.fork();
+					A lower = new AggregateTask<A>(parts.get(0), aggregator)
+							.compute();
+					return aggregator.combine(lower, upper.join());
+				}
+			}
+			A partial = aggregator.start();
+			for (KeyDataEntry entry : range)
+				partial = aggregator.add(partial, entry);
+			return partial;
+		}
+	}
+
+	/**
+	 * Count the entries of [lo_key, hi_key]. A counted tree (see
+	 * isCounted) adds up the counts of the index entries left of the two
+	 * bounds, on one page per level; another tree, or one whose counts were
+	 * given up on after an insert failed, counts the entries of the range
+	 * by a scan, and throws an IllegalStateException if it fails, as the
+	 * iterators of BTreeRange do.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the range, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key of the range, null for none. Input
+	 *            parameter.
+	 * @return the number of entries in the range.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int count(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (!counted || countsStale) {
+			int count = 0;
+			for (Iterator<KeyDataEntry> i = range(lo_key, hi_key).iterator(); i
+					.hasNext(); i.next())
+				count++;
+			return count;
+		}
+		lockTree();
+		try {
+			return position(hi_key, true) - position(lo_key, false);
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	 * The rank of a key: the number of entries with a smaller key, which is
+	 * the position of the first entry with the key, if there is one. Found
+	 * as count finds it.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the number of entries with keys less than `key'.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int rank(KeyClass key) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (!counted || countsStale) {
+			int count = 0;
+			for (KeyDataEntry entry : range(null, key)) {
+				if (BT.keyCompare(entry.key, key) == 0)
+					break;
+				count++;
+			}
+			return count;
+		}
+		lockTree();
+		try {
+			return position(key, false);
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/**
+	 * The entry in a given position of the tree, in the order a scan
+	 * returns the entries in. A counted tree goes down to it by the counts
+	 * of the index entries; another tree scans up to it, as count does.
+	 *
+	 * @param k
+	 *            the position, 0 for the first entry. Input parameter.
+	 * @return the entry, null if the tree has k entries or fewer.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyDataEntry select(int k) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (k < 0)
+			return null;
+		if (!counted || countsStale) {
+			for (KeyDataEntry entry : range(null, null))
+				if (k-- == 0)
+					return entry;
+			return null;
+		}
+		lockTree();
+		try {
+			PageId pageno = rootId();
+			while (pageno.pid != INVALID_PAGE) {
+				Page page = pinPage(pageno);
+				BTSortedPage sortedPage = new BTSortedPage(page, headerPage
+						.get_keyType());
+				// past the entries of a page whose split a failed insert
+				// left behind, on to the page split off it
+				int total = sortedPage.getType() == NodeType.LEAF ? sortedPage
+						.getSlotCnt() : BTCounts.total(indexPage(page));
+				if (k >= total && BTLink.splitPending(sortedPage)) {
+					k -= total;
+					PageId nextId = sortedPage.getNextPage();
+					unpinPage(pageno);
+					pageno = nextId;
+					continue;
+				}
+				if (sortedPage.getType() == NodeType.LEAF) {
+					BTLeafPage leafPage = leafPage(page);
+					KeyDataEntry entry = k < leafPage.getSlotCnt() ? BTSearch
+							.entryAt(leafPage, k) : null;
+					unpinPage(pageno);
+					return entry;
+				}
+				BTIndexPage indexPage = indexPage(page);
+				PageId childId = new PageId(INVALID_PAGE);
+				for (int slot = -1; slot < indexPage.getSlotCnt(); slot++) {
+					int count = BTCounts.count(indexPage, slot);
+					if (k < count) {
+						childId = BTSearch.childAt(indexPage, slot);
+						break;
+					}
+					k -= count;
+				}
+				unpinPage(pageno);
+				pageno = childId;
+			}
+			return null;
+		} finally {
+			unlockTree();
+		}
+	}
+
+	/*
+	 * The number of entries of a counted tree with keys less than `key',
+	 * or, with `after', less than or equal to it; for a null key none, or
+	 * with `after' all of them. The descent takes the child a search for
+	 * the first occurrence of key takes, or with `after' for the last
+	 * place key may go, and adds up the counts of the children left of it.
+	 * The tree is held shared, which keeps the writers of a counted tree
+	 * out.
+	 */
+	private int position(KeyClass key, boolean after) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int position = 0;
+		PageId pageno = rootId();
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			BTSortedPage sortedPage = new BTSortedPage(page, headerPage
+					.get_keyType());
+			// a page whose split a failed insert left behind is counted
+			// together with the page split off it, which has the keys past
+			// its high key
+			if (key == null ? after && BTLink.splitPending(sortedPage)
+					: BTLink.beyond(sortedPage, key, after)) {
+				position += sortedPage.getType() == NodeType.LEAF ? sortedPage
+						.getSlotCnt() : BTCounts.total(indexPage(page));
+				PageId nextId = sortedPage.getNextPage();
+				unpinPage(pageno);
+				pageno = nextId;
+				continue;
+			}
+			if (sortedPage.getType() == NodeType.LEAF) {
+				BTLeafPage leafPage = leafPage(page);
+				if (key == null)
+					position += after ? leafPage.getSlotCnt() : 0;
+				else
+					position += after ? BTSearch.upperBound(leafPage, key)
+							: BTSearch.lowerBound(leafPage, key);
+				unpinPage(pageno);
+				break;
+			}
+			BTIndexPage indexPage = indexPage(page);
+			int childSlot;
+			if (key == null)
+				childSlot = after ? indexPage.getSlotCnt() - 1 : -1;
+			else
+				childSlot = (after ? BTSearch.upperBound(indexPage, key)
+						: BTSearch.lowerBound(indexPage, key)) - 1;
+			position += BTCounts.before(indexPage, childSlot);
+			PageId childId = BTSearch.childAt(indexPage, childSlot);
+			unpinPage(pageno);
+			pageno = childId;
+		}
+		return position;
+	}
+
+	/*
+	 * At most parts - 1 keys that cut [lo_key, hi_key] into ranges of
+	 * about as many leaves each, ascending and each one strictly above
+	 * lo_key and at most hi_key. They are separators of the highest index
+	 * level that has enough of them in the range, or of the lowest one, a
+	 * level being read from the page that leads to lo_key along the right
+	 * links, one latch at a time, up to the page holding hi_key: a level
+	 * is only read when the one above it had fewer than parts separators
+	 * in the range, so the pages read stay below parts per level.
+	 */
+	List<KeyClass> separators(KeyClass lo_key, KeyClass hi_key, int parts)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		List<KeyClass> keys = new ArrayList<KeyClass>();
+		lockTree();
+		try {
+			PageId first = rootId();
+			while (first.pid != INVALID_PAGE && keys.size() < parts - 1) {
+				List<KeyClass> level = new ArrayList<KeyClass>();
+				PageId childId = new PageId(INVALID_PAGE);
+				PageId pageno = first;
+				while (pageno.pid != INVALID_PAGE) {
+					PageId pageId = pageno;
+					latches.latch(pageId, false);
+					try {
+						BTSortedPage page = new BTSortedPage(pinPage(pageId),
+								headerPage.get_keyType());
+						try {
+							if (page.getType() != NodeType.INDEX)
+								break; // the leaves: keep the level above
+							BTIndexPage indexPage = indexPage(page);
+							if (pageId == first)
+								childId = BTSearch.childAt(indexPage,
+										lo_key == null ? -1 : BTSearch
+												.lowerBound(indexPage, lo_key) - 1);
+							int slot = lo_key == null ? 0 : BTSearch.upperBound(
+									indexPage, lo_key);
+							int end = hi_key == null ? indexPage.getSlotCnt()
+									: BTSearch.upperBound(indexPage, hi_key);
+							for (; slot < end; slot++) {
+								KeyClass key = BTSearch.entryAt(indexPage, slot).key;
+								if (level.isEmpty()
+										|| BT.keyCompare(level.get(level.size() - 1),
+												key) < 0)
+									level.add(key);
+							}
+							KeyClass highKey = BTLink.getHighKey(page);
+							pageno = highKey == null || hi_key != null
+									&& BT.keyCompare(highKey, hi_key) >= 0 ? new PageId(
+									INVALID_PAGE) : page.getNextPage();
+						} finally {
+							unpinPage(pageId);
+						}
+					} finally {
+						latches.unlatch(pageId, false);
+					}
 				}
+				if (childId.pid == INVALID_PAGE)
+					break;
+				keys = level;
+				first = childId;
 			}
-			unpinPage(id);
-			trace.writeBytes(lineSep);
+		} finally {
+			unlockTree();
+		}
+
+		if (keys.size() < parts)
+			return keys;
+		// parts - 1 of them, evenly spaced
+		List<KeyClass> cuts = new ArrayList<KeyClass>(parts - 1);
+		for (int i = 1; i < parts; i++)
+			cuts.add(keys.get((int) ((long) i * (keys.size() + 1) / parts) - 1));
+		return cuts;
+	}
+
+	/*
+	 * About the number of entries from lo_key up to hi_key, hi_key itself
+	 * left out if `hiExcluded': the count of a counted tree, else the
+	 * leaves the range spans, one more than the separators of the level
+	 * above them in the range, times the entries of the first leaf holding
+	 * a key of the range.
+	 */
+	long estimate(KeyClass lo_key, KeyClass hi_key, boolean hiExcluded)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (counted && !countsStale)
+			return count(lo_key, hi_key)
+					- (hiExcluded ? count(hi_key, hi_key) : 0);
+		long leaves = separators(lo_key, hi_key, Integer.MAX_VALUE).size() + 1;
+		int entries;
+		lockTree();
+		try {
+			BTLeafPage leafPage = findRunStart(lo_key, new RID());
+			if (leafPage == null)
+				return 0;
+			entries = leafPage.getSlotCnt();
+			unlatchLeaf(leafPage);
+		} finally {
+			unlockTree();
+		}
+		return leaves * entries;
+	}
+
+	/*
+	 * The trace is shared by all trees and threads; a record is written
+	 * whole, holding the class lock.
+	 */
+	private static synchronized void traceVisit(PageId pageno)
+			throws IOException {
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
 			trace.flush();
 		}
+	}
+
+	void trace_children(PageId id) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+
+		synchronized (BTreeFile.class) {
+			if (trace != null) {
+
+				BTSortedPage sortedPage;
+				RID metaRid = new RID();
+				PageId childPageId;
+				KeyClass key;
+				KeyDataEntry entry;
+				sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+
+				// Now print all the child nodes of the page.
+				if (sortedPage.getType() == NodeType.INDEX) {
+					BTIndexPage indexPage = indexPage(sortedPage);
+					trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
+					trace.writeBytes(" " + indexPage.getPrevPage());
+					for (int slot = 0; slot < indexPage.getSlotCnt(); slot++)
+						trace.writeBytes("   " + BTSearch.childAt(indexPage, slot));
+				} else if (sortedPage.getType() == NodeType.LEAF) {
+					BTLeafPage leafPage = leafPage(sortedPage);
+					trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
+					for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
+							.getNext(metaRid)) {
+						trace.writeBytes("   " + entry.key + " " + entry.data);
+					}
+				}
+				unpinPage(id);
+				trace.writeBytes(lineSep);
+				trace.flush();
+			}
+		}
 
 	}
 
@@ -0,0 +1,268 @@
+/*
+ * @(#) BTreeFileScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTreeFileScan is the scan BTreeFile.new_scan returns. It iterates like
+ * BTFileScan, but reads the tree a leaf at a time: the entries of a leaf are
+ * copied while it is latched, and the scan holds no pin and no latch from
+ * one call to the next. Other threads, and the thread of the scan, may
+ * insert and delete while a scan is open, and a long scan keeps no writer
+ * waiting for longer than one leaf takes to copy.
+ * <p>
+ * The scan goes on along the right link of the leaf it copied last: splits
+ * only move entries right, over what the scan has copied already. Once a
+ * merge or a redistribution has changed the tree since, it goes down again
+ * to the key it returned last, and passes the duplicates of that key it
+ * has returned. Entries inserted or deleted in a leaf after the scan copied
+ * it are not seen.
+ * <p>
+ * A ScanOrder.DESCENDING scan starts at the last entry <= hi_key and goes
+ * back along the left links, which are kept on every split and merge. A
+ * left link read before the leaf left of it split names the left half, so
+ * the scan goes right from there to the leaf whose right link is the one
+ * it copied last.
+ * <p>
+ * A scan made with ScanHint.SEQUENTIAL_BULK reads the leaves that are not
+ * in the buffer pool into a ring of frames of its own, and gives the ring
+ * back once it is done. With BTreeFile.setReadAhead, a LeafReadAhead reads
+ * the leaves an ascending scan copies next while it returns the entries it
+ * copied.
+ */
+public class BTreeFileScan extends BTFileScan {
+
+	private final ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+	private int next; // the entry get_next returns next
+	private boolean done;
+
+	boolean descending; // ScanOrder.DESCENDING, endkey being lo_key
+	private PageId rightId; // right link of the leaf copied last
+	private PageId leftId; // left link of the leaf copied last
+	private PageId leafId; // the leaf copied last, by a descending scan
+	private long version; // structure version it was copied at
+	BufferRing ring; // for a SEQUENTIAL_BULK scan, else null
+	LeafReadAhead readAhead; // null without read-ahead
+
+	private KeyClass startKey; // lo_key of the scan, hi_key if descending
+	private KeyDataEntry current; // entry returned last, null once deleted
+	private KeyClass lastKey; // key returned last
+	private int lastCount; // entries with lastKey returned and not deleted
+	private int skip; // duplicates of lastKey to pass after going down
+
+	/*
+	 * Copy the entries from the first one >= lo_key on, or for a
+	 * descending scan from the last one <= hi_key back.
+	 */
+	void open(KeyClass key) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		startKey = key;
+		if (!fill())
+			done = true;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (bfile == null || done)
+				return null;
+
+			while (true) {
+				while (next == entries.size()) {
+					if (!fill()) {
+						DestroyBTreeFileScan();
+						return null;
+					}
+				}
+
+				KeyDataEntry entry = entries.get(next++);
+				if (skip > 0) {
+					if (BT.keyCompare(entry.key, lastKey) == 0) {
+						skip--;
+						continue;
+					}
+					skip = 0;
+				}
+
+				if (endkey != null
+						&& (descending ? BT.keyCompare(entry.key, endkey) < 0
+								: BT.keyCompare(entry.key, endkey) > 0)) {
+					// went past the end of scan
+					DestroyBTreeFileScan();
+					return null;
+				}
+
+				if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)
+					lastCount++;
+				else {
+					lastKey = entry.key;
+					lastCount = 1;
+				}
+				current = entry;
+				didfirst = true;
+				deletedcurrent = false;
+				return entry;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "Get next entry failed");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		try {
+			if (bfile == null || done)
+				throw new ScanDeleteException(null, "No Record to delete!");
+
+			if (current == null)
+				return;
+
+			bfile.Delete(current.key, ((LeafData) current.data).getData());
+			lastCount--;
+			current = null;
+			deletedcurrent = true;
+			return;
+		} catch (ScanDeleteException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "Delete current entry failed");
+		}
+	}
+
+	/**
+	 * Destructor of BTreeFileScan. The scan holds no page between calls, so
+	 * this only ends it, and gives back the frames of its ring.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException {
+		entries.clear();
+		next = 0;
+		done = true;
+		if (readAhead != null)
+			readAhead.close();
+		if (ring != null)
+			bfile.releaseRing(ring);
+	}
+
+	/*
+	 * Copy the entries of the leaf the scan goes on with, and let it go.
+	 * Returns false at the end of the leaf chain.
+	 */
+	private boolean fill() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		return descending ? fillBackward() : fillForward();
+	}
+
+	private boolean fillForward() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		entries.clear();
+		next = 0;
+		bfile.lockTree();
+		try {
+			BTLeafPage leaf;
+			int slot = 0;
+			if (rightId != null && version == bfile.structureVersion()) {
+				if (rightId.pid == INVALID_PAGE)
+					return false;
+				leaf = bfile.latchLeaf(rightId, ring);
+			} else {
+				leaf = bfile.findRunStart(lastKey != null ? lastKey : startKey,
+						curRid);
+				if (leaf == null)
+					return false;
+				slot = curRid.slotNo;
+				skip = lastCount;
+			}
+
+			int end = leaf.getSlotCnt();
+			rightId = leaf.getNextPage();
+			if (endkey != null && end > slot
+					&& BTSearch.compareAt(leaf, end - 1, endkey) > 0) {
+				// the scan ends on this leaf: decode no key past endkey
+				end = BTSearch.upperBound(leaf, endkey);
+				rightId = new PageId(INVALID_PAGE);
+			}
+			for (; slot < end; slot++)
+				entries.add(BTSearch.entryAt(leaf, slot));
+			version = bfile.structureVersion();
+			if (readAhead != null)
+				readAhead.copied(leaf.getCurPage(), rightId);
+			bfile.unlatchLeaf(leaf);
+			return true;
+		} finally {
+			bfile.unlockTree();
+		}
+	}
+
+	/*
+	 * Copy the entries of the leaf left of the one copied last, last entry
+	 * first, and let it go; the first time, those up to hi_key of the leaf
+	 * hi_key is on. Returns false at the start of the leaf chain.
+	 */
+	private boolean fillBackward() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		entries.clear();
+		next = 0;
+		bfile.lockTree();
+		try {
+			BTLeafPage leaf;
+			int end;
+			if (leftId != null && version == bfile.structureVersion()) {
+				if (leftId.pid == INVALID_PAGE)
+					return false;
+				leaf = bfile.latchLeftLeaf(leftId, leafId, ring);
+				end = leaf.getSlotCnt();
+			} else {
+				leaf = bfile.findRunEnd(lastKey != null ? lastKey : startKey,
+						curRid);
+				if (leaf == null)
+					return false;
+				end = curRid.slotNo;
+				skip = lastCount;
+			}
+
+			int slot = 0;
+			leftId = leaf.getPrevPage();
+			if (endkey != null && end > 0
+					&& BTSearch.compareAt(leaf, 0, endkey) < 0) {
+				// the scan ends on this leaf: decode no key below endkey
+				slot = BTSearch.lowerBound(leaf, endkey);
+				leftId = new PageId(INVALID_PAGE);
+			}
+			while (end > slot)
+				entries.add(BTSearch.entryAt(leaf, --end));
+			leafId = leaf.getCurPage();
+			version = bfile.structureVersion();
+			bfile.unlatchLeaf(leaf);
+			return true;
+		} finally {
+			bfile.unlockTree();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * @(#) BTreeMetrics.java
+ *
+ */
+
+package btree;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BTreeMetrics collects counters and latency histograms for the operations
+ * of one BTreeFile: inserts, deletes, scans, leaf and index page splits,
+ * page pins per operation and the height of the tree. All updates are
+ * lock-free, so recording never blocks the caller, and readers can poll the
+ * getters at any time or register a BTreeMetricsListener to be told about
+ * every operation as it completes.
+ */
+public class BTreeMetrics {
+
+	public final static int INSERT = 0;
+	public final static int DELETE = 1;
+	public final static int SCAN = 2;
+	public final static int LEAF_SPLIT = 3;
+	public final static int INDEX_SPLIT = 4;
+
+	private final static int OPERATIONS = 5;
+
+	private final Histogram[] latency = new Histogram[OPERATIONS];
+	private final Histogram pinsPerOperation = new Histogram();
+	private final AtomicLong pinCount = new AtomicLong();
+	private volatile int treeHeight;
+
+	private final CopyOnWriteArrayList<BTreeMetricsListener> listeners = new CopyOnWriteArrayList<BTreeMetricsListener>();
+
+	BTreeMetrics() {
+		for (int i = 0; i < OPERATIONS; i++)
+			latency[i] = new Histogram();
+	}
+
+	/**
+	 * @param operation
+	 *            one of INSERT, DELETE, SCAN, LEAF_SPLIT, INDEX_SPLIT
+	 * @return the number of completed operations of this kind.
+	 */
+	public long getCount(int operation) {
+		return latency[operation].getCount();
+	}
+
+	/**
+	 * @param operation
+	 *            one of INSERT, DELETE, SCAN, LEAF_SPLIT, INDEX_SPLIT
+	 * @return the latency histogram of the operation, in nanoseconds.
+	 */
+	public Histogram getLatency(int operation) {
+		return latency[operation];
+	}
+
+	/**
+	 * @return the histogram of pages pinned per insert, delete and scan.
+	 */
+	public Histogram getPinsPerOperation() {
+		return pinsPerOperation;
+	}
+
+	/**
+	 * @return the total number of pages pinned by the tree.
+	 */
+	public long getPinCount() {
+		return pinCount.get();
+	}
+
+	/**
+	 * @return the number of levels of the tree, 0 if it is empty.
+	 */
+	public int getTreeHeight() {
+		return treeHeight;
+	}
+
+	/**
+	 * Register a listener for completed operations.
+	 *
+	 * @param listener
+	 *            the listener. Input parameter.
+	 */
+	public void addListener(BTreeMetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener registered with addListener.
+	 *
+	 * @param listener
+	 *            the listener. Input parameter.
+	 */
+	public void removeListener(BTreeMetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+	void record(int operation, long nanos, int pins) {
+		latency[operation].record(nanos);
+		if (operation <= SCAN)
+			pinsPerOperation.record(pins);
+		for (BTreeMetricsListener listener : listeners)
+			listener.operationCompleted(operation, nanos, pins);
+	}
+
+	void pinned() {
+		pinCount.incrementAndGet();
+	}
+
+	void setTreeHeight(int height) {
+		treeHeight = height;
+	}
+
+	public String toString() {
+		String[] names = { "insert", "delete", "scan", "leaf split",
+				"index split" };
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < OPERATIONS; i++)
+			sb.append(names[i]).append(": ").append(latency[i]).append('\n');
+		sb.append("pins/op: ").append(pinsPerOperation).append('\n');
+		sb.append("pins: ").append(getPinCount()).append(", height: ")
+				.append(getTreeHeight());
+		return sb.toString();
+	}
+
+	/**
+	 * A histogram of non-negative values with power-of-two buckets: bucket 0
+	 * counts zeros and bucket i counts values in [2^(i-1), 2^i).
+	 */
+	public static class Histogram {
+
+		public final static int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			if (value < 0)
+				value = 0;
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long m = max.get();
+			while (value > m && !max.compareAndSet(m, value))
+				m = max.get();
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getSum() {
+			return sum.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0.0 : (double) sum.get() / n;
+		}
+
+		/**
+		 * @param bucket
+		 *            the bucket number, 0 <= bucket < BUCKETS.
+		 * @return the number of values recorded in the bucket.
+		 */
+		public long getBucketCount(int bucket) {
+			return buckets.get(bucket);
+		}
+
+		/**
+		 * @param fraction
+		 *            the percentile as a fraction, e.g. 0.99.
+		 * @return an upper bound for the percentile: the upper end of the
+		 *         bucket it falls into, or 0 if nothing was recorded.
+		 */
+		public long getPercentile(double fraction) {
+			long n = count.get();
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(fraction * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+			}
+			return getMax();
+		}
+
+		public String toString() {
+			return "count " + getCount() + ", mean " + (long) getMean()
+					+ ", p50 " + getPercentile(0.5) + ", p99 "
+					+ getPercentile(0.99) + ", max " + getMax();
+		}
+	}
+}
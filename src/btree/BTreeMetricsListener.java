@@ -0,0 +1,26 @@
+/*
+ * @(#) BTreeMetricsListener.java
+ *
+ */
+
+package btree;
+
+/**
+ * Receives the operations recorded by BTreeMetrics as they complete. It is
+ * called on the thread that ran the operation, so it should return quickly.
+ */
+public interface BTreeMetricsListener {
+
+	/**
+	 * An operation of the tree has completed.
+	 *
+	 * @param operation
+	 *            one of BTreeMetrics.INSERT, DELETE, SCAN, LEAF_SPLIT or
+	 *            INDEX_SPLIT
+	 * @param nanos
+	 *            how long it took, in nanoseconds
+	 * @param pins
+	 *            pages pinned by the operation, 0 for splits
+	 */
+	void operationCompleted(int operation, long nanos, int pins);
+}
@@ -0,0 +1,226 @@
+/*
+ * @(#) BTreeRange.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * BTreeRange is a key range of a BTreeFile, as BTreeFile.range returns it:
+ * the keys from lo_key up to hi_key, hi_key included unless the range was
+ * split off a larger one, null standing for no bound. It iterates over the
+ * entries of the range through a scan of the tree, and splits into ranges
+ * that hold about as many leaves each, cut at separator keys of the index
+ * pages, for threads of their own to scan at the same time. Duplicates of
+ * a key always fall in one of the split ranges.
+ * <p>
+ * Iterators do the work of BTreeFileScan, which holds no page between two
+ * calls, so one may be dropped before its end. Iterators cannot throw
+ * the exceptions of the scan; they throw an IllegalStateException with the
+ * exception of the scan as its cause instead. Spliterators, which back
+ * BTreeFile.stream, split the same way split does.
+ */
+public class BTreeRange implements Iterable<KeyDataEntry> {
+
+	private final BTreeFile file;
+	private final KeyClass loKey;
+	private final KeyClass hiKey;
+	private final boolean hiExcluded;
+
+	BTreeRange(BTreeFile file, KeyClass loKey, KeyClass hiKey,
+			boolean hiExcluded) {
+		this.file = file;
+		this.loKey = loKey;
+		this.hiKey = hiKey;
+		this.hiExcluded = hiExcluded;
+	}
+
+	/**
+	 * @return the smallest key of the range, null for none.
+	 */
+	public KeyClass getLoKey() {
+		return loKey;
+	}
+
+	/**
+	 * @return the bound the keys of the range stay below, or up to with
+	 *         includesHiKey, null for none.
+	 */
+	public KeyClass getHiKey() {
+		return hiKey;
+	}
+
+	/**
+	 * @return true if hi_key itself is in the range.
+	 */
+	public boolean includesHiKey() {
+		return !hiExcluded;
+	}
+
+	/**
+	 * Split the range into at most `parts' ranges, at separator keys of the
+	 * tree as it is now. A range within one leaf is not split, and the
+	 * ranges hold about as many leaves each, counted at the level of the
+	 * index pages the keys come from.
+	 *
+	 * @param parts
+	 *            the number of ranges wanted. Input parameter.
+	 * @return the ranges, in key order, covering this range.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public List<BTreeRange> split(int parts) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		List<BTreeRange> ranges = new ArrayList<BTreeRange>();
+		KeyClass lo = loKey;
+		for (KeyClass key : file.separators(loKey, hiKey, parts)) {
+			if (hiExcluded && BT.keyCompare(key, hiKey) == 0)
+				break;
+			ranges.add(new BTreeRange(file, lo, key, true));
+			lo = key;
+		}
+		ranges.add(new BTreeRange(file, lo, hiKey, hiExcluded));
+		return ranges;
+	}
+
+	/*
+	 * About the number of entries in the range, the exact count on a tree
+	 * with entry counts.
+	 */
+	long estimate() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		return file.estimate(loKey, hiKey, hiExcluded);
+	}
+
+	/**
+	 * A spliterator over the entries of the range, in key order. Until it
+	 * returns its first entry, trySplit cuts its range in two as split(2)
+	 * does, keeps the upper part, and hands the lower part to a spliterator
+	 * of its own. A range within one leaf is not split. Its estimateSize is
+	 * the count of a tree with entry counts, else the leaves of the range
+	 * times the entries of its first leaf. Like the iterators, it throws an
+	 * IllegalStateException if the scan, the split or the estimate fails.
+	 *
+	 * @return a spliterator over the entries of the range.
+	 */
+	public Spliterator<KeyDataEntry> spliterator() {
+		return new RangeSpliterator(this);
+	}
+
+	private static class RangeSpliterator implements
+			Spliterator<KeyDataEntry> {
+
+		private BTreeRange range;
+		private Iterator<KeyDataEntry> entries; // null until the first entry
+		private long size = -1; // estimate of the range, -1 until asked
+
+		RangeSpliterator(BTreeRange range) {
+			this.range = range;
+		}
+
+		public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+			if (entries == null)
+				entries = range.iterator();
+			if (!entries.hasNext())
+				return false;
+			action.accept(entries.next());
+			return true;
+		}
+
+		public Spliterator<KeyDataEntry> trySplit() {
+			if (entries != null)
+				return null;
+			List<BTreeRange> parts;
+			try {
+				parts = range.split(2);
+			} catch (Exception e) {
+				throw new IllegalStateException("split of range failed", e);
+			}
+			if (parts.size() < 2)
+				return null;
+			range = parts.get(parts.size() - 1);
+			size = -1;
+			return new RangeSpliterator(parts.get(0));
+		}
+
+		public long estimateSize() {
+			if (size < 0) {
+				try {
+					size = range.estimate();
+				} catch (Exception e) {
+					throw new IllegalStateException("estimate of range failed",
+							e);
+				}
+			}
+			return size;
+		}
+
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+
+	/**
+	 * Open a scan of the range.
+	 *
+	 * @return an iterator over the entries of the range, in key order.
+	 */
+	public Iterator<KeyDataEntry> iterator() {
+		return new Iterator<KeyDataEntry>() {
+			private BTFileScan scan;
+			private KeyDataEntry next; // found by hasNext, not returned yet
+			private boolean done;
+
+			public boolean hasNext() {
+				if (next == null && !done)
+					advance();
+				return next != null;
+			}
+
+			public KeyDataEntry next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				KeyDataEntry entry = next;
+				next = null;
+				return entry;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private void advance() {
+				try {
+					if (scan == null)
+						scan = file.new_scan(loKey, hiKey);
+					// the scan ends itself past hi_key, but not at it
+					next = scan.get_next();
+					if (next != null && hiExcluded
+							&& BT.keyCompare(next.key, hiKey) == 0) {
+						next = null;
+						scan.DestroyBTreeFileScan();
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException("scan of range failed", e);
+				}
+				done = next == null;
+			}
+		};
+	}
+}
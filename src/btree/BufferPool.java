@@ -0,0 +1,133 @@
+/*
+ * @(#) BufferPool.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BufferPool is where a BTreeFile pins its pages: the calls of BufMgr that
+ * the tree makes, with the same meaning and the same exceptions. A tree
+ * opened without a pool uses SystemBufferPool, the pool of
+ * SystemDefs.JavabaseBM; one given a LocalBufferPool of its own keeps its
+ * pages apart from those of every other tree, so a cold tree cannot evict
+ * the pages of a hot one.
+ * <p>
+ * The pages of all pools live in the one database, SystemDefs.JavabaseDB:
+ * diskmgr keeps its directory and space map in SystemDefs.JavabaseBM, so a
+ * second database cannot be opened next to it. A file is used through one
+ * pool at a time; its pages are flushed from one pool before another one
+ * reads them.
+ * <p>
+ * A pool is safe for use by several threads at once.
+ */
+public interface BufferPool {
+
+	/**
+	 * Pin a page, reading it from disk unless it is in the pool already.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param page
+	 *            set to the frame of the page. Output parameter.
+	 * @param emptyPage
+	 *            true if the page is not to be read from disk. Input
+	 *            parameter.
+	 */
+	void pinPage(PageId pageno, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException;
+
+	/**
+	 * Pin a page as pinPage does, reading it into a frame of the ring if it
+	 * is not in the pool.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param page
+	 *            set to the frame of the page. Output parameter.
+	 * @param ring
+	 *            the ring of the caller. Input parameter.
+	 */
+	void pinPage(PageId pageno, Page page, BufferRing ring)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException;
+
+	/**
+	 * Give the frames of a ring back to the pool. The ring is empty after,
+	 * and may be used again.
+	 *
+	 * @param ring
+	 *            the ring. Input parameter.
+	 */
+	void releaseRing(BufferRing ring);
+
+	/**
+	 * Unpin a page.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param dirty
+	 *            true if the page was changed. Input parameter.
+	 */
+	void unpinPage(PageId pageno, boolean dirty) throws ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException;
+
+	/**
+	 * Allocate a run of pages on disk and pin the first one.
+	 *
+	 * @param firstpage
+	 *            set to the frame of the first page. Output parameter.
+	 * @param howmany
+	 *            the number of pages. Input parameter.
+	 * @return the id of the first page.
+	 */
+	PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException;
+
+	/**
+	 * Drop a page from the pool and deallocate it on disk.
+	 *
+	 * @param pageno
+	 *            the page, pinned at most once, by the caller. Input
+	 *            parameter.
+	 */
+	void freePage(PageId pageno) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException;
+
+	/**
+	 * Write every dirty page of the pool to disk.
+	 */
+	void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException;
+
+	/**
+	 * @return the number of frames of the pool.
+	 */
+	int getNumBuffers();
+
+	/**
+	 * @return the number of frames no page is pinned in.
+	 */
+	int getNumUnpinnedBuffers();
+}
@@ -0,0 +1,32 @@
+/*
+ * @(#) BufferRing.java
+ *
+ */
+
+package btree;
+
+/**
+ * BufferRing is a small set of frames of a buffer pool that one scan reads
+ * pages into, reusing the frame it read into longest ago, so that a long
+ * scan does not replace the pages of the rest of the pool. The frames are
+ * taken from the pool as the ring fills, and given back by
+ * BufferPool.releaseRing.
+ * <p>
+ * A ring is used by one thread at a time, and with one pool.
+ */
+public class BufferRing {
+
+	final int[] frames; // the frames of the ring
+	int count; // the frames taken so far
+	int next; // the frame reused next
+
+	/**
+	 * Create an empty ring.
+	 *
+	 * @param size
+	 *            the number of frames the ring takes at most. Input parameter.
+	 */
+	public BufferRing(int size) {
+		frames = new int[size];
+	}
+}
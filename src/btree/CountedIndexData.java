@@ -0,0 +1,54 @@
+/*
+ * @(#) CountedIndexData.java
+ *
+ */
+
+package btree;
+
+import global.*;
+
+/**
+ * The data of an index entry on a page of a tree that counts its entries:
+ * the child page id, and the number of leaf entries in the subtree of the
+ * child. BTSearch.entryAt decodes the entries of such a page to it, and
+ * the entries written to such a page must carry it.
+ */
+class CountedIndexData extends IndexData {
+
+	private final int count;
+
+	CountedIndexData(PageId pageNo, int count) {
+		super(pageNo);
+		this.count = count;
+	}
+
+	/**
+	 * @return the number of entries in the subtree of the child.
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * An index entry with a count. KeyDataEntry copies the data it is
+	 * given into a plain IndexData, so the count is put in afterwards.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param pageNo
+	 *            the child page. Input parameter.
+	 * @param count
+	 *            the number of entries in the subtree of the child. Input
+	 *            parameter.
+	 * @return the entry.
+	 */
+	static KeyDataEntry entry(KeyClass key, PageId pageNo, int count) {
+		KeyDataEntry entry = new KeyDataEntry(key, pageNo);
+		entry.data = new CountedIndexData(pageNo, count);
+		return entry;
+	}
+
+	public String toString() {
+		return super.toString() + " (" + count + ")";
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * @(#) FrameTable.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+/**
+ * FrameTable maps the pages in a LocalBufferPool to their frames. It is a
+ * hash table of ints with open addressing, twice as large as the pool at
+ * least, so that looking a page up, as every pin does, allocates nothing.
+ * A removed entry is filled from the entries after it, and no slot is ever
+ * marked deleted.
+ */
+class FrameTable {
+
+	private final static int EMPTY = -1; // page ids are not negative
+
+	private final int[] pages;
+	private final int[] frames;
+	private final int mask;
+	private final int shift; // of the hash, to the bits of a slot
+
+	/**
+	 * Create an empty table.
+	 *
+	 * @param capacity
+	 *            the number of pages it holds at most. Input parameter.
+	 */
+	FrameTable(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2;
+		pages = new int[size];
+		frames = new int[size];
+		mask = size - 1;
+		shift = 32 - Integer.numberOfTrailingZeros(size);
+		Arrays.fill(pages, EMPTY);
+	}
+
+	/**
+	 * @param pid
+	 *            a page. Input parameter.
+	 * @return the frame of the page, -1 if it has none.
+	 */
+	int get(int pid) {
+		for (int slot = slot(pid);; slot = (slot + 1) & mask) {
+			if (pages[slot] == pid)
+				return frames[slot];
+			if (pages[slot] == EMPTY)
+				return -1;
+		}
+	}
+
+	/**
+	 * Enter the frame of a page that has none.
+	 *
+	 * @param pid
+	 *            the page. Input parameter.
+	 * @param frame
+	 *            its frame. Input parameter.
+	 */
+	void put(int pid, int frame) {
+		int slot = slot(pid);
+		while (pages[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		pages[slot] = pid;
+		frames[slot] = frame;
+	}
+
+	/**
+	 * Remove the entry of a page, if it has one.
+	 *
+	 * @param pid
+	 *            the page. Input parameter.
+	 */
+	void remove(int pid) {
+		int slot = slot(pid);
+		while (pages[slot] != pid) {
+			if (pages[slot] == EMPTY)
+				return;
+			slot = (slot + 1) & mask;
+		}
+		// move back the entries that probed past the slot
+		for (int next = (slot + 1) & mask; pages[next] != EMPTY; next = (next + 1) & mask) {
+			int home = slot(pages[next]);
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				pages[slot] = pages[next];
+				frames[slot] = frames[next];
+				slot = next;
+			}
+		}
+		pages[slot] = EMPTY;
+	}
+
+	/* The first slot a page is looked for in. */
+	private int slot(int pid) {
+		return (pid * 0x9E3779B9) >>> shift;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * @(#) LeafFormat.java
+ *
+ */
+
+package btree;
+
+/**
+ * The format of the leaf pages of a B+ tree, chosen when the tree is
+ * created. PACKED_INT sets the format of the index pages too.
+ */
+public class LeafFormat {
+
+	/** entries with their whole key, in BTLeafPage */
+	public static final int PLAIN = 0;
+
+	/**
+	 * StringKey entries without the prefix their page shares, in
+	 * BTPrefixLeafPage. Integer key trees are never PREFIX_COMPRESSED.
+	 */
+	public static final int PREFIX_COMPRESSED = 1;
+
+	/**
+	 * IntegerKey entries in arrays of keys and of rids, in BTIntLeafPage,
+	 * and index pages in the same way, in BTIntIndexPage. String key trees
+	 * are never PACKED_INT.
+	 */
+	public static final int PACKED_INT = 2;
+}
@@ -0,0 +1,128 @@
+/*
+ * @(#) LeafReadAhead.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import global.*;
+
+/**
+ * LeafReadAhead reads the leaves a scan is going to copy next into the
+ * buffer pool, on a thread of its own, while the scan returns the entries
+ * of the leaf it copied last. It follows the right links of the leaves up
+ * to a number of leaves ahead of the scan, and stops at the end of the
+ * chain or past the last key of the scan, and starts again once the scan
+ * has copied half of the leaves read ahead. When the scan goes on to a leaf
+ * other than the one read ahead first, as after it went down the tree
+ * again, the read-ahead starts over from there.
+ * <p>
+ * A leaf is read by pinning it under its latch, as the scan does, and
+ * unpinning it at once. Read-ahead is a hint: an error only stops it.
+ */
+class LeafReadAhead implements Runnable, GlobalConst {
+
+	private final static ExecutorService readers = Executors
+			.newFixedThreadPool(4, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "btree read-ahead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final BTreeFile bfile;
+	private final BufferRing ring;
+	private final KeyClass endkey;
+	private final int depth;
+
+	private final ArrayDeque<Integer> read = new ArrayDeque<Integer>(); // leaves read ahead, in chain order
+	private int next = INVALID_PAGE; // the leaf to read next
+	private int generation; // changed when the read-ahead starts over
+	private boolean running;
+	private boolean closed;
+
+	LeafReadAhead(BTreeFile bfile, BufferRing ring, KeyClass endkey,
+			int depth) {
+		this.bfile = bfile;
+		this.ring = ring;
+		this.endkey = endkey;
+		this.depth = depth;
+	}
+
+	/**
+	 * The scan has copied a leaf.
+	 *
+	 * @param leafId
+	 *            the leaf. Input parameter.
+	 * @param rightId
+	 *            its right link, the leaf the scan copies next. Input
+	 *            parameter.
+	 */
+	synchronized void copied(PageId leafId, PageId rightId) {
+		if (!read.isEmpty() && read.peekFirst() == leafId.pid)
+			read.removeFirst();
+		else {
+			read.clear();
+			next = rightId.pid;
+			generation++;
+		}
+		if (!running && !closed && read.size() <= depth / 2
+				&& next != INVALID_PAGE) {
+			running = true;
+			readers.execute(this);
+		}
+	}
+
+	/**
+	 * Stop reading ahead, once the leaf being read, if any, is read.
+	 */
+	synchronized void close() {
+		closed = true;
+		boolean interrupted = false;
+		while (running) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public void run() {
+		while (true) {
+			int id, started;
+			synchronized (this) {
+				if (closed || read.size() >= depth || next == INVALID_PAGE) {
+					running = false;
+					notifyAll();
+					return;
+				}
+				id = next;
+				started = generation;
+			}
+			int rightId;
+			try {
+				rightId = bfile.readAhead(new PageId(id), ring, endkey).pid;
+			} catch (Exception e) {
+				// a leaf freed by a merge since, or an error the scan will see
+				synchronized (this) {
+					running = false;
+					notifyAll();
+					return;
+				}
+			}
+			synchronized (this) {
+				if (started == generation) {
+					read.addLast(id);
+					next = rightId;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * @(#) LocalBufferPool.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * LocalBufferPool is a buffer pool of its own for one tree, or for a few
+ * trees that are to share it, sized for their working set. Its frames are
+ * replaced by a PoolReplacer chosen by name, as for SystemDefs.JavabaseBM:
+ * "Clock", "LRU" and "MRU", or the scan-resistant "2Q", "LRU-K" and "ARC".
+ * The pool counts the pins of pages found in it and of pages read from disk,
+ * for its hit ratio.
+ * <p>
+ * A quarter of the frames at most are set apart in BufferRings. The
+ * replacer does not see them, and a page found in one stays there until
+ * its ring reuses the frame. Once every other frame is pinned, a frame of a
+ * ring that is not pinned is taken back from it.
+ * <p>
+ * Pages are read from and written to SystemDefs.JavabaseDB, holding the
+ * monitor of SystemDefs.JavabaseBM as every other user of the database
+ * does: DB is not safe for threads, and keeps its space map in that pool.
+ * A page is read without holding the monitor of this pool, so pins of
+ * pages that are in the pool do not wait for it; pins of the page being
+ * read wait until it is in. Dirty pages stay in the pool until they are
+ * replaced or flushAllPages is called.
+ */
+public class LocalBufferPool implements BufferPool, GlobalConst {
+
+	private final byte[][] frames;
+	private final int[] pageNo; // INVALID_PAGE for a free frame
+	private final int[] pinCount;
+	private final boolean[] dirty;
+	private final boolean[] reading; // being read, pinned by the reader
+	private final FrameTable frameOf;
+	private final int[] free; // a stack of the free frames
+	private int numFree;
+	private final PoolReplacer replacer;
+	private final BufferRing[] ringOf; // of each frame, null if none
+	private int ringFrames; // frames in rings
+	private long hits;
+	private long misses;
+
+	/**
+	 * Create a pool whose frames are replaced by the clock algorithm.
+	 *
+	 * @param numBuffers
+	 *            the number of frames. Input parameter.
+	 */
+	public LocalBufferPool(int numBuffers) {
+		this(numBuffers, "Clock");
+	}
+
+	/**
+	 * Create a pool.
+	 *
+	 * @param numBuffers
+	 *            the number of frames. Input parameter.
+	 * @param replacerArg
+	 *            the name of the replacement policy: "Clock", "LRU", "MRU",
+	 *            "2Q", "LRU-K" (K is 2), "LRU-3" and so on, or "ARC". Clock
+	 *            for any other name. Input parameter.
+	 */
+	public LocalBufferPool(int numBuffers, String replacerArg) {
+		frames = new byte[numBuffers][MINIBASE_PAGESIZE];
+		pageNo = new int[numBuffers];
+		pinCount = new int[numBuffers];
+		dirty = new boolean[numBuffers];
+		reading = new boolean[numBuffers];
+		free = new int[numBuffers];
+		ringOf = new BufferRing[numBuffers];
+		frameOf = new FrameTable(numBuffers);
+		Arrays.fill(pageNo, INVALID_PAGE);
+		for (int frame = 0; frame < numBuffers; frame++)
+			free[numFree++] = numBuffers - 1 - frame;
+		replacer = PoolReplacer.forName(replacerArg, pageNo, pinCount);
+	}
+
+	public void pinPage(PageId pageno, Page page, boolean emptyPage)
+			throws BufferPoolExceededException, BufMgrException {
+		pin(pageno, page, emptyPage, null);
+	}
+
+	public void pinPage(PageId pageno, Page page, BufferRing ring)
+			throws BufferPoolExceededException, BufMgrException {
+		pin(pageno, page, false, ring);
+	}
+
+	public synchronized void releaseRing(BufferRing ring) {
+		for (int i = 0; i < ring.count; i++) {
+			int frame = ring.frames[i];
+			if (ringOf[frame] != ring)
+				continue;
+			ringOf[frame] = null;
+			ringFrames--;
+			if (pageNo[frame] != INVALID_PAGE
+					&& (pinCount[frame] > 0 || dirty[frame])) {
+				replacer.miss(pageNo[frame]);
+				replacer.loaded(frame);
+				continue;
+			}
+			if (pageNo[frame] != INVALID_PAGE)
+				frameOf.remove(pageNo[frame]);
+			pageNo[frame] = INVALID_PAGE;
+			free[numFree++] = frame;
+		}
+		ring.count = ring.next = 0;
+	}
+
+	public synchronized void unpinPage(PageId pageno, boolean dirty)
+			throws PageUnpinnedException, HashEntryNotFoundException {
+		int frame = frame(pageno);
+		if (pinCount[frame] == 0)
+			throw new PageUnpinnedException(null, "BUFMGR: PAGE_NOT_PINNED.");
+		pinCount[frame]--;
+		if (dirty)
+			this.dirty[frame] = true;
+	}
+
+	public synchronized PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, BufMgrException {
+		PageId pageno = new PageId();
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				SystemDefs.JavabaseDB.allocate_page(pageno, howmany);
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BUFMGR: ALLOCATE_PAGE failed.");
+			}
+		}
+		try {
+			pinPage(pageno, firstpage, true);
+		} catch (BufferPoolExceededException e) {
+			deallocate(pageno, howmany);
+			throw e;
+		}
+		return pageno;
+	}
+
+	public synchronized void freePage(PageId pageno)
+			throws PagePinnedException, BufMgrException {
+		int frame = frameOf.get(pageno.pid);
+		boolean interrupted = false;
+		while (frame >= 0 && reading[frame]) {
+			interrupted |= awaitRead();
+			frame = frameOf.get(pageno.pid);
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (frame >= 0) {
+			if (pinCount[frame] > 1)
+				throw new PagePinnedException(null, "BUFMGR: PAGE_PINNED.");
+			frameOf.remove(pageno.pid);
+			pageNo[frame] = INVALID_PAGE;
+			pinCount[frame] = 0;
+			dirty[frame] = false;
+			if (ringOf[frame] != null)
+				replacer.freed(pageno.pid, -1);
+			else {
+				replacer.freed(pageno.pid, frame);
+				free[numFree++] = frame;
+			}
+		} else
+			replacer.freed(pageno.pid, -1);
+		deallocate(pageno, 1);
+	}
+
+	public synchronized void flushAllPages() throws BufMgrException {
+		for (int frame = 0; frame < frames.length; frame++)
+			if (pageNo[frame] != INVALID_PAGE && dirty[frame]) {
+				write(pageNo[frame], frames[frame]);
+				dirty[frame] = false;
+			}
+	}
+
+	public int getNumBuffers() {
+		return frames.length;
+	}
+
+	public synchronized int getNumUnpinnedBuffers() {
+		int unpinned = 0;
+		for (int count : pinCount)
+			if (count == 0)
+				unpinned++;
+		return unpinned;
+	}
+
+	/**
+	 * @return the name of the replacement policy of the pool.
+	 */
+	public String getReplacer() {
+		return replacer.name();
+	}
+
+	/**
+	 * @return the number of pins of pages that were in the pool.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of pins that read a page from disk.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of the pins of pages on disk that found the page
+	 *         in the pool, 0 if there were none.
+	 */
+	public synchronized double getHitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * Start counting hits and misses from zero.
+	 */
+	public synchronized void resetCounters() {
+		hits = misses = 0;
+	}
+
+	/*
+	 * Pin a page, reading it into a frame of the ring if one is given and
+	 * the page is not in the pool. The frame the page is read into is
+	 * pinned and marked while it is read, and the page is read with the
+	 * monitor of the pool let go.
+	 */
+	private void pin(PageId pageno, Page page, boolean emptyPage,
+			BufferRing ring) throws BufferPoolExceededException,
+			BufMgrException {
+		int frame;
+		synchronized (this) {
+			int resident = frameOf.get(pageno.pid);
+			boolean interrupted = false;
+			while (resident >= 0 && reading[resident]) {
+				interrupted |= awaitRead();
+				resident = frameOf.get(pageno.pid);
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (resident >= 0) {
+				frame = resident;
+				if (ringOf[frame] == null)
+					replacer.hit(frame);
+				hits++;
+				pinCount[frame]++;
+				page.setpage(frames[frame]);
+				return;
+			}
+			frame = ring != null ? ringFrame(ring) : -1;
+			if (frame < 0) {
+				replacer.miss(pageno.pid);
+				frame = victim(true);
+			}
+			pageNo[frame] = pageno.pid;
+			frameOf.put(pageno.pid, frame);
+			pinCount[frame] = 1;
+			if (ringOf[frame] == null)
+				replacer.loaded(frame);
+			if (emptyPage) {
+				page.setpage(frames[frame]);
+				return;
+			}
+			reading[frame] = true;
+		}
+		try {
+			read(pageno.pid, frames[frame]);
+		} catch (BufMgrException e) {
+			synchronized (this) {
+				reading[frame] = false;
+				frameOf.remove(pageno.pid);
+				pageNo[frame] = INVALID_PAGE;
+				pinCount[frame] = 0;
+				if (ringOf[frame] == null) {
+					replacer.freed(pageno.pid, frame);
+					free[numFree++] = frame;
+				}
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			reading[frame] = false;
+			misses++;
+			notifyAll();
+		}
+		page.setpage(frames[frame]);
+	}
+
+	/*
+	 * Wait for a page being read, holding the monitor of the pool. Returns
+	 * true if the wait was interrupted.
+	 */
+	private boolean awaitRead() {
+		try {
+			wait();
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+
+	/*
+	 * The frame of a page in the pool.
+	 */
+	private int frame(PageId pageno) throws HashEntryNotFoundException {
+		int frame = frameOf.get(pageno.pid);
+		if (frame < 0)
+			throw new HashEntryNotFoundException(null, "BUFMGR: HASH_NOT_FOUND.");
+		return frame;
+	}
+
+	/*
+	 * A frame to read a page into: a free one, or the one the replacer
+	 * picks, or else, if steal is set, one of a ring that is not pinned.
+	 */
+	private int victim(boolean steal) throws BufferPoolExceededException,
+			BufMgrException {
+		if (numFree > 0)
+			return free[--numFree];
+		int frame;
+		try {
+			frame = replacer.victim();
+		} catch (BufferPoolExceededException e) {
+			if (!steal)
+				throw e;
+			for (frame = 0; frame < frames.length; frame++)
+				if (ringOf[frame] != null && pinCount[frame] == 0)
+					break;
+			if (frame == frames.length)
+				throw e;
+			ringOf[frame] = null;
+			ringFrames--;
+		}
+		evict(frame);
+		return frame;
+	}
+
+	/*
+	 * A frame of the ring to read a page into: a new one while the ring and
+	 * the frames of all rings are below their limits, else the next one of
+	 * the ring that is not pinned. Frames taken back from the ring are
+	 * dropped from it. -1 if there is none.
+	 */
+	private int ringFrame(BufferRing ring) throws BufMgrException {
+		if (ring.count < ring.frames.length && ringFrames < frames.length / 4) {
+			try {
+				int frame = victim(false);
+				ringOf[frame] = ring;
+				ringFrames++;
+				ring.frames[ring.count++] = frame;
+				return frame;
+			} catch (BufferPoolExceededException e) {
+				// every frame the replacer has is pinned: reuse one of the ring
+			}
+		}
+		for (int seen = 0; seen < ring.count;) {
+			int frame = ring.frames[ring.next];
+			if (ringOf[frame] != ring) {
+				ring.frames[ring.next] = ring.frames[--ring.count];
+				if (ring.next >= ring.count)
+					ring.next = 0;
+				continue;
+			}
+			ring.next = (ring.next + 1) % ring.count;
+			seen++;
+			if (pinCount[frame] == 0) {
+				evict(frame);
+				return frame;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Drop the page in a frame from the pool, written back if dirty.
+	 */
+	private void evict(int frame) throws BufMgrException {
+		if (pageNo[frame] == INVALID_PAGE)
+			return;
+		if (dirty[frame])
+			write(pageNo[frame], frames[frame]);
+		frameOf.remove(pageNo[frame]);
+		pageNo[frame] = INVALID_PAGE;
+		dirty[frame] = false;
+	}
+
+	private void read(int pid, byte[] frame) throws BufMgrException {
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				SystemDefs.JavabaseDB.read_page(new PageId(pid), new Page(frame));
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BUFMGR: DB read_page failed.");
+			}
+		}
+	}
+
+	private void write(int pid, byte[] frame) throws BufMgrException {
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				SystemDefs.JavabaseDB.write_page(new PageId(pid), new Page(frame));
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BUFMGR: DB write_page failed.");
+			}
+		}
+	}
+
+	private void deallocate(PageId pageno, int howmany) throws BufMgrException {
+		synchronized (SystemDefs.JavabaseBM) {
+			try {
+				SystemDefs.JavabaseDB.deallocate_page(pageno, howmany);
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BUFMGR: DEALLOCATE_PAGE failed.");
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * @(#) MappedDB.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * MappedDB is a DB whose pages are read and written through a memory
+ * mapping of the database file instead of a seek and a read or write on
+ * it: a page is copied between the mapping and the frame of the buffer
+ * pool, with no system call. The space map, the directory and the way the
+ * file is created and opened are those of DB.
+ * <p>
+ * Pages written to the mapping reach the file when the operating system
+ * writes them back, or when force is called; a checkpoint flushes the
+ * buffer pools and then calls force. closeDB calls force too.
+ * <p>
+ * MappedDB.open sets up SystemDefs with a MappedDB, where new SystemDefs
+ * sets it up with a DB, so either can be chosen when the database is
+ * opened.
+ */
+public class MappedDB extends DB {
+
+	private final static int CHUNK_PAGES = (1 << 30) / MINIBASE_PAGESIZE;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer[] chunks; // null until the file is mapped
+
+	/**
+	 * Set up SystemDefs as new SystemDefs(dbname, num_pgs, bufpoolsize,
+	 * replacement_policy) does, with a MappedDB as SystemDefs.JavabaseDB.
+	 *
+	 * @param dbname
+	 *            the database file. Input parameter.
+	 * @param num_pgs
+	 *            the number of pages of a new database, 0 to open an existing
+	 *            one. Input parameter.
+	 * @param bufpoolsize
+	 *            the number of frames of SystemDefs.JavabaseBM. Input
+	 *            parameter.
+	 * @param replacement_policy
+	 *            the replacer of SystemDefs.JavabaseBM. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                the database could not be opened or created
+	 */
+	public static void open(String dbname, int num_pgs, int bufpoolsize,
+			String replacement_policy) throws IOException, DiskMgrException {
+		SystemDefs.JavabaseBM = new BufMgr(bufpoolsize, replacement_policy);
+		SystemDefs.JavabaseDB = new MappedDB();
+		SystemDefs.JavabaseDBName = new String(dbname);
+		SystemDefs.JavabaseLogName = new String(dbname);
+		SystemDefs.MINIBASE_DBNAME = new String(dbname);
+		try {
+			synchronized (SystemDefs.JavabaseBM) {
+				if (SystemDefs.MINIBASE_RESTART_FLAG || num_pgs == 0)
+					SystemDefs.JavabaseDB.openDB(dbname);
+				else
+					SystemDefs.JavabaseDB.openDB(dbname, num_pgs);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (DiskMgrException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "open mapped DB failed");
+		}
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		map(fname);
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname, num_pgs);
+		map(fname);
+	}
+
+	public void closeDB() throws IOException {
+		if (chunks != null) {
+			force();
+			chunks = null;
+			file.close();
+		}
+		super.closeDB();
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (chunks == null) {
+			super.read_page(pageno, apage); // while DB opens the file
+			return;
+		}
+		view(pageno).get(apage.getpage(), 0, MINIBASE_PAGESIZE);
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (chunks == null) {
+			super.write_page(pageno, apage);
+			return;
+		}
+		view(pageno).put(apage.getpage(), 0, MINIBASE_PAGESIZE);
+	}
+
+	/**
+	 * Write the pages written to the mapping back to the file, for a
+	 * checkpoint. Pages still dirty in a buffer pool are not written; flush
+	 * the pools first.
+	 */
+	public void force() {
+		if (chunks != null)
+			for (MappedByteBuffer chunk : chunks)
+				chunk.force();
+	}
+
+	/*
+	 * Map the whole file, in chunks of a gigabyte at most.
+	 */
+	private void map(String fname) throws IOException {
+		file = new RandomAccessFile(fname, "rw");
+		FileChannel channel = file.getChannel();
+		int pages = db_num_pages();
+		MappedByteBuffer[] mapped = new MappedByteBuffer[(pages + CHUNK_PAGES - 1)
+				/ CHUNK_PAGES];
+		for (int i = 0; i < mapped.length; i++) {
+			long first = (long) i * CHUNK_PAGES;
+			long size = Math.min(CHUNK_PAGES, pages - first)
+					* (long) MINIBASE_PAGESIZE;
+			mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, first
+					* MINIBASE_PAGESIZE, size);
+		}
+		chunks = mapped;
+	}
+
+	/*
+	 * A buffer positioned at the page.
+	 */
+	private ByteBuffer view(PageId pageno) throws InvalidPageNumberException {
+		if (pageno.pid < 0 || pageno.pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+		ByteBuffer view = chunks[pageno.pid / CHUNK_PAGES].duplicate();
+		view.position((pageno.pid % CHUNK_PAGES) * MINIBASE_PAGESIZE);
+		return view;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * @(#) PageLatches.java
+ *
+ */
+
+package btree;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+import global.*;
+
+/**
+ * PageLatches holds the read/write latches of the pages of one BTreeFile, so
+ * threads working in separate trees never wait for each other's latches.
+ * Latches are kept in chunks indexed by page id, found without a lock and
+ * without boxing the id. A latch is made when its page is first latched,
+ * and dropped when the page is freed. The tree frees pages only while it is
+ * held exclusively, when no thread holds, waits for or reads the version of
+ * a latch of it. Pages never share a latch, which would break the order
+ * latches are taken in.
+ * <p>
+ * A thread holds one latch at a time, but for the step from a page to its
+ * right neighbour, where the neighbour is latched before the page is let go.
+ * Latches are thus only waited for left to right within a level, or for the
+ * header page, whose holder waits for no other latch, and never in a cycle.
+ * <p>
+ * The latch of a page is also its version: every write latch taken on it
+ * moves the version on. A reader may go through a page without latching it,
+ * taking its version first and checking it is unchanged once done, and
+ * reads again what a writer may have torn. The version is kept here and
+ * not on the page, whose bytes are read without a memory fence and go to
+ * disk.
+ */
+class PageLatches {
+
+	private final static int CHUNK_BITS = 10; // page ids per chunk: 1024
+
+	private final static int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	// the latches of the page ids with the same pid >> CHUNK_BITS
+	private static class Chunk {
+		final AtomicReferenceArray<StampedLock> latches = new AtomicReferenceArray<StampedLock>(
+				1 << CHUNK_BITS);
+	}
+
+	// grown by make only, and replaced then
+	private volatile AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<Chunk>(
+			16);
+
+	private StampedLock get(PageId pageno) {
+		AtomicReferenceArray<Chunk> chunks = this.chunks;
+		int c = pageno.pid >>> CHUNK_BITS;
+		if (c < chunks.length()) {
+			Chunk chunk = chunks.get(c);
+			if (chunk != null) {
+				StampedLock latch = chunk.latches.get(pageno.pid & CHUNK_MASK);
+				if (latch != null)
+					return latch;
+			}
+		}
+		return make(pageno.pid);
+	}
+
+	/*
+	 * Make the latch of a page, and its chunk, unless another thread has
+	 * made it already.
+	 */
+	private synchronized StampedLock make(int pid) {
+		int c = pid >>> CHUNK_BITS;
+		if (c >= chunks.length()) {
+			int length = chunks.length();
+			while (length <= c)
+				length *= 2;
+			AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<Chunk>(
+					length);
+			for (int i = 0; i < chunks.length(); i++)
+				grown.set(i, chunks.get(i));
+			chunks = grown;
+		}
+		Chunk chunk = chunks.get(c);
+		if (chunk == null) {
+			chunk = new Chunk();
+			chunks.set(c, chunk);
+		}
+		StampedLock latch = chunk.latches.get(pid & CHUNK_MASK);
+		if (latch == null) {
+			latch = new StampedLock();
+			chunk.latches.set(pid & CHUNK_MASK, latch);
+		}
+		return latch;
+	}
+
+	/**
+	 * Drop the latch of a page that was freed. The tree is held exclusively,
+	 * so no thread has anything to do with the latch.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 */
+	synchronized void forget(PageId pageno) {
+		int c = pageno.pid >>> CHUNK_BITS;
+		if (c < chunks.length() && chunks.get(c) != null)
+			chunks.get(c).latches.set(pageno.pid & CHUNK_MASK, null);
+	}
+
+	/**
+	 * Wait for and take the latch of a page, which the calling thread does
+	 * not hold already.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param exclusive
+	 *            true for the write latch, false for a read latch. Input
+	 *            parameter.
+	 */
+	void latch(PageId pageno, boolean exclusive) {
+		if (exclusive)
+			get(pageno).asWriteLock().lock();
+		else
+			get(pageno).asReadLock().lock();
+	}
+
+	/**
+	 * Release the latch of a page, which the calling thread holds.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param exclusive
+	 *            true for the write latch, false for a read latch. Input
+	 *            parameter.
+	 */
+	void unlatch(PageId pageno, boolean exclusive) {
+		if (exclusive)
+			get(pageno).asWriteLock().unlock();
+		else
+			get(pageno).asReadLock().unlock();
+	}
+
+	/**
+	 * Take the version of a page, to read it without latching it.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @return the version, 0 while the page is write latched.
+	 */
+	long version(PageId pageno) {
+		return get(pageno).tryOptimisticRead();
+	}
+
+	/**
+	 * Whether a page is unchanged since its version was taken, so that what
+	 * was read from it in between holds.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param version
+	 *            the version taken before reading. Input parameter.
+	 * @return true if no write latch was taken on the page since.
+	 */
+	boolean validate(PageId pageno, long version) {
+		return get(pageno).validate(version);
+	}
+}
@@ -0,0 +1,568 @@
+/*
+ * @(#) PoolReplacer.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import bufmgr.*;
+
+/**
+ * PoolReplacer picks the frame of a LocalBufferPool whose page is replaced
+ * when a page that is not in the pool is pinned and every frame is in use.
+ * It is told about every pin of a page in the pool, every page read into a
+ * frame and every page freed, and may remember pages it has replaced.
+ * <p>
+ * forName chooses a replacer by name, as SystemDefs does for bufmgr:
+ * <ul>
+ * <li>"Clock", "LRU" and "MRU", the policies of bufmgr;
+ * <li>"2Q", which keeps pages pinned once in a FIFO queue of a quarter of
+ * the pool, and lets only pages pinned again into the LRU list of the rest;
+ * <li>"LRU-K", or "LRU-2", "LRU-3", ..., which replaces the page whose K-th
+ * most recent pin is the oldest, pages pinned fewer than K times first;
+ * <li>"ARC", which divides the pool between pages pinned once and pages
+ * pinned again, and moves the divide towards the side whose replaced pages
+ * are pinned again.
+ * </ul>
+ * Under 2Q, LRU-K and ARC a scan that reads every leaf once replaces only
+ * pages that were read once, and the index pages that lookups pin again
+ * and again stay in the pool. Pins of a page that is still pinned are not
+ * counted as new references.
+ * <p>
+ * A replacer is used under the monitor of its pool.
+ */
+abstract class PoolReplacer {
+
+	protected final int[] pageNo; // of the pool, INVALID_PAGE if free
+	protected final int[] pinCount; // of the pool
+
+	protected PoolReplacer(int[] pageNo, int[] pinCount) {
+		this.pageNo = pageNo;
+		this.pinCount = pinCount;
+	}
+
+	/**
+	 * The replacer of the given name, Clock if there is none of that name.
+	 *
+	 * @param name
+	 *            the name of the replacer. Input parameter.
+	 * @param pageNo
+	 *            the page in each frame of the pool. Input parameter.
+	 * @param pinCount
+	 *            the pin count of each frame of the pool. Input parameter.
+	 */
+	static PoolReplacer forName(String name, int[] pageNo, int[] pinCount) {
+		if (name.equals("LRU"))
+			return new LRU(pageNo, pinCount, false);
+		if (name.equals("MRU"))
+			return new LRU(pageNo, pinCount, true);
+		if (name.equals("2Q"))
+			return new TwoQ(pageNo, pinCount);
+		if (name.equals("ARC"))
+			return new ARC(pageNo, pinCount);
+		if (name.equals("LRU-K"))
+			return new LRUK(pageNo, pinCount, 2);
+		if (name.startsWith("LRU-")) {
+			try {
+				int k = Integer.parseInt(name.substring(4));
+				if (k >= 1)
+					return new LRUK(pageNo, pinCount, k);
+			} catch (NumberFormatException e) {
+			}
+		}
+		return new Clock(pageNo, pinCount);
+	}
+
+	/**
+	 * @return the name of the replacer.
+	 */
+	abstract String name();
+
+	/**
+	 * A page in the pool is pinned.
+	 *
+	 * @param frame
+	 *            its frame. Input parameter.
+	 */
+	abstract void hit(int frame);
+
+	/**
+	 * A page that is not in the pool is to be pinned; victim is called next
+	 * if there is no free frame, then loaded.
+	 *
+	 * @param pid
+	 *            the page. Input parameter.
+	 */
+	void miss(int pid) {
+	}
+
+	/**
+	 * The frame whose page is replaced. The page is forgotten by the caller,
+	 * and the frame loaded with the page of the last miss.
+	 *
+	 * @exception BufferPoolExceededException
+	 *                every frame is pinned
+	 */
+	abstract int victim() throws BufferPoolExceededException;
+
+	/**
+	 * A page is read into a frame, or allocated in it, and pinned.
+	 *
+	 * @param frame
+	 *            the frame. Input parameter.
+	 */
+	abstract void loaded(int frame);
+
+	/**
+	 * A page is freed, in the pool or not.
+	 *
+	 * @param pid
+	 *            the page. Input parameter.
+	 * @param frame
+	 *            its frame, -1 if it is not in the pool. Input parameter.
+	 */
+	abstract void freed(int pid, int frame);
+
+	/*
+	 * The exception of victim when every frame is pinned.
+	 */
+	static BufferPoolExceededException exceeded() {
+		return new BufferPoolExceededException(null, "BUFMGR: BUFFER_EXCEEDED.");
+	}
+
+	/**
+	 * Queues holds frames in LRU lists, each frame in at most one of them,
+	 * linked through arrays. Frames are added at the MRU end.
+	 */
+	static class Queues {
+
+		private final int frames;
+		private final int[] prev;
+		private final int[] next;
+		private final int[] queue; // of each frame, -1 if none
+		private final int[] size;
+		private final int[] pinCount;
+
+		Queues(int[] pinCount, int queues) {
+			frames = pinCount.length;
+			prev = new int[frames + queues];
+			next = new int[frames + queues];
+			queue = new int[frames];
+			size = new int[queues];
+			this.pinCount = pinCount;
+			Arrays.fill(queue, -1);
+			for (int q = 0; q < queues; q++)
+				prev[frames + q] = next[frames + q] = frames + q;
+		}
+
+		void add(int q, int frame) {
+			remove(frame);
+			int sentinel = frames + q;
+			prev[frame] = prev[sentinel];
+			next[frame] = sentinel;
+			next[prev[sentinel]] = frame;
+			prev[sentinel] = frame;
+			queue[frame] = q;
+			size[q]++;
+		}
+
+		void remove(int frame) {
+			if (queue[frame] < 0)
+				return;
+			next[prev[frame]] = next[frame];
+			prev[next[frame]] = prev[frame];
+			size[queue[frame]]--;
+			queue[frame] = -1;
+		}
+
+		int queueOf(int frame) {
+			return queue[frame];
+		}
+
+		int size(int q) {
+			return size[q];
+		}
+
+		/* The least recently added frame of the queue not pinned, or -1. */
+		int lru(int q) {
+			int sentinel = frames + q;
+			for (int frame = next[sentinel]; frame != sentinel; frame = next[frame])
+				if (pinCount[frame] == 0)
+					return frame;
+			return -1;
+		}
+
+		/* The most recently added frame of the queue not pinned, or -1. */
+		int mru(int q) {
+			int sentinel = frames + q;
+			for (int frame = prev[sentinel]; frame != sentinel; frame = prev[frame])
+				if (pinCount[frame] == 0)
+					return frame;
+			return -1;
+		}
+	}
+
+	/**
+	 * Ghosts holds the pages a replacer has replaced and still remembers, in
+	 * the order they were replaced, up to a limit.
+	 */
+	static class Ghosts {
+
+		private final LinkedHashSet<Integer> pages = new LinkedHashSet<Integer>();
+
+		boolean remove(int pid) {
+			return pages.remove(pid);
+		}
+
+		void add(int pid, int limit) {
+			pages.add(pid);
+			trim(limit);
+		}
+
+		void trim(int limit) {
+			Iterator<Integer> oldest = pages.iterator();
+			while (pages.size() > limit) {
+				oldest.next();
+				oldest.remove();
+			}
+		}
+
+		int size() {
+			return pages.size();
+		}
+	}
+
+	/**
+	 * Clock replaces the first page not pinned, and not pinned since the hand
+	 * last passed it.
+	 */
+	static class Clock extends PoolReplacer {
+
+		private final boolean[] referenced;
+		private final boolean[] tracked; // loaded and not replaced or freed
+		private int hand;
+
+		Clock(int[] pageNo, int[] pinCount) {
+			super(pageNo, pinCount);
+			referenced = new boolean[pageNo.length];
+			tracked = new boolean[pageNo.length];
+		}
+
+		String name() {
+			return "Clock";
+		}
+
+		void hit(int frame) {
+			referenced[frame] = true;
+		}
+
+		int victim() throws BufferPoolExceededException {
+			for (int tries = 0; tries < 2 * referenced.length; tries++) {
+				int frame = hand;
+				hand = (hand + 1) % referenced.length;
+				if (!tracked[frame] || pinCount[frame] > 0)
+					continue;
+				if (referenced[frame]) {
+					referenced[frame] = false;
+					continue;
+				}
+				tracked[frame] = false;
+				return frame;
+			}
+			throw exceeded();
+		}
+
+		void loaded(int frame) {
+			referenced[frame] = tracked[frame] = true;
+		}
+
+		void freed(int pid, int frame) {
+			if (frame >= 0)
+				referenced[frame] = tracked[frame] = false;
+		}
+	}
+
+	/**
+	 * LRU replaces the page not pinned for the longest time; as MRU, the one
+	 * pinned most recently.
+	 */
+	static class LRU extends PoolReplacer {
+
+		private final Queues queues;
+		private final boolean mru;
+
+		LRU(int[] pageNo, int[] pinCount, boolean mru) {
+			super(pageNo, pinCount);
+			queues = new Queues(pinCount, 1);
+			this.mru = mru;
+		}
+
+		String name() {
+			return mru ? "MRU" : "LRU";
+		}
+
+		void hit(int frame) {
+			queues.add(0, frame);
+		}
+
+		int victim() throws BufferPoolExceededException {
+			int frame = mru ? queues.mru(0) : queues.lru(0);
+			if (frame < 0)
+				throw exceeded();
+			queues.remove(frame);
+			return frame;
+		}
+
+		void loaded(int frame) {
+			queues.add(0, frame);
+		}
+
+		void freed(int pid, int frame) {
+			if (frame >= 0)
+				queues.remove(frame);
+		}
+	}
+
+	/**
+	 * TwoQ is 2Q: pages read for the first time enter the FIFO queue A1in,
+	 * and are remembered in A1out when they leave it. A page pinned again
+	 * while in A1in, or read again while in A1out, enters the LRU list Am.
+	 * A1in is emptied first down to a quarter of the pool; A1out remembers
+	 * as many pages as half the pool holds. Unlike the full version of 2Q,
+	 * a pin in A1in is not taken for a correlated one: those are the pins of
+	 * a page that is still pinned, and the pool leaves them out.
+	 */
+	static class TwoQ extends PoolReplacer {
+
+		private final static int A1IN = 0;
+		private final static int AM = 1;
+
+		private final Queues queues;
+		private final Ghosts a1out = new Ghosts();
+		private final int kin;
+		private final int kout;
+		private boolean readAgain; // the page of the last miss was in A1out
+
+		TwoQ(int[] pageNo, int[] pinCount) {
+			super(pageNo, pinCount);
+			queues = new Queues(pinCount, 2);
+			kin = Math.max(1, pageNo.length / 4);
+			kout = Math.max(1, pageNo.length / 2);
+		}
+
+		String name() {
+			return "2Q";
+		}
+
+		void hit(int frame) {
+			if (pinCount[frame] == 0)
+				queues.add(AM, frame);
+		}
+
+		void miss(int pid) {
+			readAgain = a1out.remove(pid);
+		}
+
+		int victim() throws BufferPoolExceededException {
+			int frame = -1;
+			if (queues.size(A1IN) > kin || queues.size(AM) == 0)
+				frame = queues.lru(A1IN);
+			if (frame < 0)
+				frame = queues.lru(AM);
+			if (frame < 0)
+				frame = queues.lru(A1IN);
+			if (frame < 0)
+				throw exceeded();
+			if (queues.queueOf(frame) == A1IN)
+				a1out.add(pageNo[frame], kout);
+			queues.remove(frame);
+			return frame;
+		}
+
+		void loaded(int frame) {
+			queues.add(readAgain ? AM : A1IN, frame);
+			readAgain = false;
+		}
+
+		void freed(int pid, int frame) {
+			if (frame >= 0)
+				queues.remove(frame);
+			a1out.remove(pid);
+		}
+	}
+
+	/**
+	 * LRUK keeps the times of the last K pins of each page, counted in
+	 * pins, and replaces the page whose K-th most recent pin is the oldest.
+	 * Pages pinned fewer than K times go first, the least recently pinned of
+	 * them first. The history of replaced pages is kept for as many pages as
+	 * the pool holds, so a page read again soon counts its earlier pins.
+	 */
+	static class LRUK extends PoolReplacer {
+
+		private final int k;
+		private final long[][] history; // of each frame, most recent first
+		private final LinkedHashMap<Integer, long[]> retained = new LinkedHashMap<Integer, long[]>();
+		private long clock;
+		private int pending; // the page of the last miss
+
+		LRUK(int[] pageNo, int[] pinCount, int k) {
+			super(pageNo, pinCount);
+			this.k = k;
+			history = new long[pageNo.length][];
+		}
+
+		String name() {
+			return "LRU-" + k;
+		}
+
+		void hit(int frame) {
+			clock++;
+			if (pinCount[frame] > 0)
+				history[frame][0] = clock; // a correlated pin
+			else
+				reference(history[frame]);
+		}
+
+		void miss(int pid) {
+			pending = pid;
+		}
+
+		int victim() throws BufferPoolExceededException {
+			int victim = -1;
+			for (int frame = 0; frame < history.length; frame++) {
+				if (pinCount[frame] > 0 || history[frame] == null)
+					continue;
+				if (victim < 0 || older(history[frame], history[victim]))
+					victim = frame;
+			}
+			if (victim < 0)
+				throw exceeded();
+			retained.remove(pageNo[victim]);
+			retained.put(pageNo[victim], history[victim]);
+			Iterator<long[]> oldest = retained.values().iterator();
+			while (retained.size() > history.length) {
+				oldest.next();
+				oldest.remove();
+			}
+			history[victim] = null;
+			return victim;
+		}
+
+		void loaded(int frame) {
+			clock++;
+			long[] times = retained.remove(pending);
+			if (times == null)
+				times = new long[k];
+			reference(times);
+			history[frame] = times;
+		}
+
+		void freed(int pid, int frame) {
+			if (frame >= 0)
+				history[frame] = null;
+			retained.remove(pid);
+		}
+
+		/* Shift in a pin now. */
+		private void reference(long[] times) {
+			System.arraycopy(times, 0, times, 1, k - 1);
+			times[0] = clock;
+		}
+
+		/* Whether a is to be replaced before b. */
+		private boolean older(long[] a, long[] b) {
+			if (a[k - 1] != b[k - 1])
+				return a[k - 1] < b[k - 1];
+			return a[0] < b[0];
+		}
+	}
+
+	/**
+	 * ARC keeps the pages pinned once since they were read in the LRU list
+	 * T1 and the others in T2, and remembers the pages replaced from each in
+	 * B1 and B2. A page read again from B1 makes the target size of T1
+	 * larger, one read from B2 makes it smaller; the page replaced is taken
+	 * from T1 while it is above its target, from T2 otherwise.
+	 */
+	static class ARC extends PoolReplacer {
+
+		private final static int T1 = 0;
+		private final static int T2 = 1;
+
+		private final Queues queues;
+		private final Ghosts b1 = new Ghosts();
+		private final Ghosts b2 = new Ghosts();
+		private final int c;
+		private int p; // the target size of T1
+		private boolean readAgain; // the page of the last miss was in B1 or B2
+		private boolean inB2; // it was in B2
+
+		ARC(int[] pageNo, int[] pinCount) {
+			super(pageNo, pinCount);
+			queues = new Queues(pinCount, 2);
+			c = pageNo.length;
+		}
+
+		String name() {
+			return "ARC";
+		}
+
+		void hit(int frame) {
+			if (pinCount[frame] == 0)
+				queues.add(T2, frame);
+		}
+
+		void miss(int pid) {
+			inB2 = false;
+			readAgain = true;
+			if (b1.remove(pid))
+				p = Math.min(c, p + Math.max(b2.size() / (b1.size() + 1), 1));
+			else if (b2.remove(pid)) {
+				inB2 = true;
+				p = Math.max(0, p - Math.max(b1.size() / (b2.size() + 1), 1));
+			} else {
+				readAgain = false;
+				int t1 = queues.size(T1);
+				if (t1 + b1.size() >= c)
+					b1.trim(Math.max(0, c - t1 - 1));
+				else if (t1 + queues.size(T2) + b1.size() + b2.size() >= 2 * c)
+					b2.trim(Math.max(0, 2 * c - 1 - t1 - queues.size(T2)
+							- b1.size()));
+			}
+		}
+
+		int victim() throws BufferPoolExceededException {
+			int t1 = queues.size(T1);
+			int frame = -1;
+			if (t1 > 0 && (t1 > p || (inB2 && t1 == p)))
+				frame = queues.lru(T1);
+			if (frame < 0)
+				frame = queues.lru(T2);
+			if (frame < 0)
+				frame = queues.lru(T1);
+			if (frame < 0)
+				throw exceeded();
+			if (queues.queueOf(frame) == T1)
+				b1.add(pageNo[frame], c);
+			else
+				b2.add(pageNo[frame], c);
+			queues.remove(frame);
+			return frame;
+		}
+
+		void loaded(int frame) {
+			queues.add(readAgain ? T2 : T1, frame);
+			readAgain = inB2 = false;
+		}
+
+		void freed(int pid, int frame) {
+			if (frame >= 0)
+				queues.remove(frame);
+			b1.remove(pid);
+			b2.remove(pid);
+		}
+	}
+}
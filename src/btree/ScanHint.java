@@ -0,0 +1,23 @@
+/*
+ * @(#) ScanHint.java
+ *
+ */
+
+package btree;
+
+/**
+ * How a scan of a B+ tree is going to read its leaves, given to
+ * BTreeFile.new_scan.
+ */
+public class ScanHint {
+
+	/** leaves are pinned in the buffer pool like any other page */
+	public static final int NORMAL = 0;
+
+	/**
+	 * a long scan, of much of the tree: leaves that are not in the pool are
+	 * read into a small ring of frames the scan reuses, and do not replace
+	 * the pages other operations keep pinning
+	 */
+	public static final int SEQUENTIAL_BULK = 1;
+}
@@ -0,0 +1,22 @@
+/*
+ * @(#) ScanOrder.java
+ *
+ */
+
+package btree;
+
+/**
+ * The order a scan of a B+ tree returns its entries in, given to
+ * BTreeFile.new_scan.
+ */
+public class ScanOrder {
+
+	/** from lo_key up to hi_key, along the right links of the leaves */
+	public static final int ASCENDING = 0;
+
+	/**
+	 * from hi_key down to lo_key, along the left links of the leaves;
+	 * duplicates of a key come in the reverse of their ascending order
+	 */
+	public static final int DESCENDING = 1;
+}
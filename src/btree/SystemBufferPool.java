@@ -0,0 +1,99 @@
+/*
+ * @(#) SystemBufferPool.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * SystemBufferPool is the buffer pool of the process, SystemDefs.JavabaseBM,
+ * as a BufferPool. BufMgr is not safe for threads, so every call holds its
+ * monitor, as the other users of the pool in this package do. The pool is
+ * looked up on every call, and follows a new SystemDefs.
+ * <p>
+ * BufMgr has no way to set frames apart, so pages pinned through a
+ * BufferRing are pinned as any other page.
+ */
+public class SystemBufferPool implements BufferPool {
+
+	public void pinPage(PageId pageno, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		BufMgr bufmgr = SystemDefs.JavabaseBM;
+		synchronized (bufmgr) {
+			bufmgr.pinPage(pageno, page, emptyPage);
+		}
+	}
+
+	public void pinPage(PageId pageno, Page page, BufferRing ring)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		pinPage(pageno, page, false);
+	}
+
+	public void releaseRing(BufferRing ring) {
+	}
+
+	public void unpinPage(PageId pageno, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		BufMgr bufmgr = SystemDefs.JavabaseBM;
+		synchronized (bufmgr) {
+			bufmgr.unpinPage(pageno, dirty);
+		}
+	}
+
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		BufMgr bufmgr = SystemDefs.JavabaseBM;
+		synchronized (bufmgr) {
+			return bufmgr.newPage(firstpage, howmany);
+		}
+	}
+
+	public void freePage(PageId pageno) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		BufMgr bufmgr = SystemDefs.JavabaseBM;
+		synchronized (bufmgr) {
+			bufmgr.freePage(pageno);
+		}
+	}
+
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		BufMgr bufmgr = SystemDefs.JavabaseBM;
+		synchronized (bufmgr) {
+			bufmgr.flushAllPages();
+		}
+	}
+
+	public int getNumBuffers() {
+		return SystemDefs.JavabaseBM.getNumBuffers();
+	}
+
+	public int getNumUnpinnedBuffers() {
+		BufMgr bufmgr = SystemDefs.JavabaseBM;
+		synchronized (bufmgr) {
+			return bufmgr.getNumUnpinnedBuffers();
+		}
+	}
+}
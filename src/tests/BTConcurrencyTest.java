@@ -0,0 +1,348 @@
+package tests;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Stress tests of concurrent inserts, deletes and scans on one BTreeFile.
+ * Writer threads insert entries, and delete some of their own again, while
+ * scan threads go over the tree in both directions and check the order and
+ * the bounds of what they see. Splits race with descents that have to move
+ * right to find their key, with index splits still on their way up, and
+ * with optimistic reads of index pages; merges take the tree for
+ * themselves. Once the writers are done, a scan must return exactly the
+ * entries the writers left, and every page must be unpinned again.
+ */
+class ConcurrencyDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUMBUF = 300;
+
+	private final static int WRITERS = 4;
+
+	private final static int SCANNERS = 2;
+
+	private final static int PER_WRITER = 6000;
+
+	private int postfix = 0;
+
+	public ConcurrencyDriver() {
+		super("btconc");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 40000, NUMBUF, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "B+ tree concurrency";
+	}
+
+	private static KeyClass key(int keyType, int k) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(k);
+		return new StringKey("tenant-" + (k % 5) + "/order-" + k);
+	}
+
+	private static int compare(KeyClass a, KeyClass b) {
+		try {
+			return BT.keyCompare(a, b);
+		} catch (KeyNotMatchException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/*
+	 * Insert PER_WRITER entries: key k = i * WRITERS + writer when `keys'
+	 * is 0, so the writers take turns at the right end of the tree, or a
+	 * random key below `keys' otherwise. With `deletes', one operation in
+	 * four deletes an entry the writer inserted before. Returns the entries
+	 * the writer left.
+	 */
+	private Callable<TreeModel> writer(final BTreeFile file, final int writer,
+			final int keyType, final int keys, final boolean deletes) {
+		return new Callable<TreeModel>() {
+			public TreeModel call() throws Exception {
+				Random random = new Random(writer);
+				TreeModel model = new TreeModel();
+				for (int i = 0; i < PER_WRITER; i++) {
+					int k = keys == 0 ? i * WRITERS + writer : random
+							.nextInt(keys);
+					KeyClass key = key(keyType, k);
+					RID rid = new RID(new PageId(i * WRITERS + writer), writer);
+					file.insert(key, rid);
+					model.add(key, rid);
+					if (deletes && random.nextInt(4) == 0) {
+						KeyDataEntry entry = model.remove(random.nextInt(model
+								.size()));
+						if (!file.Delete(entry.key, ((LeafData) entry.data)
+								.getData()))
+							throw new IllegalStateException("delete of "
+									+ TreeModel.name(entry)
+									+ " did not find it");
+					}
+				}
+				return model;
+			}
+		};
+	}
+
+	/*
+	 * Scan from lo_key to hi_key, ascending and descending in turn, until
+	 * `done' is set, checking the order and the bounds of the keys; keys
+	 * come out strictly ordered when `distinct'. A counted tree is asked
+	 * for its count of the range as well. Returns the number of scans.
+	 */
+	private Callable<Integer> scanner(final BTreeFile file,
+			final KeyClass lo_key, final KeyClass hi_key, final int hint,
+			final boolean distinct, final AtomicBoolean done) {
+		return new Callable<Integer>() {
+			public Integer call() throws Exception {
+				int scans = 0;
+				while (!done.get()) {
+					boolean descending = scans % 2 == 1;
+					BTFileScan scan = file.new_scan(lo_key, hi_key, hint,
+							descending ? ScanOrder.DESCENDING
+									: ScanOrder.ASCENDING);
+					KeyDataEntry entry;
+					KeyClass last = null;
+					while ((entry = scan.get_next()) != null) {
+						if ((lo_key != null && compare(entry.key, lo_key) < 0)
+								|| (hi_key != null && compare(entry.key,
+										hi_key) > 0))
+							throw new IllegalStateException("scan returned "
+									+ entry.key + " out of range");
+						if (last != null) {
+							int order = compare(last, entry.key);
+							if (descending)
+								order = -order;
+							if (order > 0 || (distinct && order == 0))
+								throw new IllegalStateException("scan "
+										+ (descending ? "down" : "up")
+										+ " returned " + entry.key
+										+ " after " + last);
+						}
+						last = entry.key;
+					}
+					scan.DestroyBTreeFileScan();
+					if (file.isCounted()) {
+						int count = file.count(lo_key, hi_key);
+						if (count < 0 || count > WRITERS * PER_WRITER)
+							throw new IllegalStateException("count of "
+									+ count);
+					}
+					scans++;
+				}
+				return scans;
+			}
+		};
+	}
+
+	/*
+	 * Run the writers and the scanners on a file, then check the file holds
+	 * what the writers left, and nothing but its header is left pinned in
+	 * `pool'.
+	 */
+	private boolean stress(BTreeFile file, BufferPool pool, int keyType,
+			int keys, boolean deletes, KeyClass lo_key, KeyClass hi_key,
+			int hint) {
+		int unpinned = pool.getNumUnpinnedBuffers();
+		ExecutorService threads = Executors.newFixedThreadPool(WRITERS
+				+ SCANNERS);
+		try {
+			AtomicBoolean done = new AtomicBoolean();
+			List<Future<TreeModel>> writers = new ArrayList<Future<TreeModel>>();
+			List<Future<Integer>> scanners = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < WRITERS; i++)
+				writers.add(threads.submit(writer(file, i, keyType, keys,
+						deletes)));
+			for (int i = 0; i < SCANNERS; i++)
+				scanners.add(threads.submit(scanner(file, lo_key, hi_key,
+						hint, keys == 0, done)));
+
+			TreeModel model = new TreeModel();
+			try {
+				for (int i = 0; i < WRITERS; i++) {
+					TreeModel left = writers.get(i).get();
+					for (int j = 0; j < left.size(); j++) {
+						KeyDataEntry entry = left.get(j);
+						model.add(entry.key, ((LeafData) entry.data).getData());
+					}
+				}
+			} finally {
+				done.set(true);
+			}
+			int scans = 0;
+			for (int i = 0; i < SCANNERS; i++)
+				scans += scanners.get(i).get();
+			System.out.println("  - " + model.size() + " entries left, "
+					+ scans + " scans alongside");
+
+			String error = model.check(file);
+			if (error != null) {
+				System.out.println("  *** " + error);
+				return FAIL;
+			}
+			if (file.isCounted() && file.count(null, null) != model.size()) {
+				System.out.println("  *** count of " + file.count(null, null)
+						+ " instead of " + model.size());
+				return FAIL;
+			}
+			// read-ahead of the last scans may still hold a leaf a moment
+			for (int i = 0; i < 100
+					&& pool.getNumUnpinnedBuffers() != unpinned; i++)
+				Thread.sleep(10);
+			if (pool.getNumUnpinnedBuffers() != unpinned) {
+				System.out.println("  *** "
+						+ (unpinned - pool.getNumUnpinnedBuffers())
+						+ " pages left pinned");
+				return FAIL;
+			}
+			file.destroyFile();
+			return OK;
+		} catch (ExecutionException e) {
+			System.out.println("  *** A thread failed: " + e.getCause());
+			e.getCause().printStackTrace();
+			return FAIL;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writers taking turns at the right end of the tree, with naive
+	 * deletes.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: inserts at the right end, naive "
+				+ "deletes");
+		try {
+			BufferPool pool = new SystemBufferPool();
+			BTreeFile file = new BTreeFile(pool, "CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE,
+					LeafFormat.PLAIN);
+			return stress(file, pool, AttrType.attrInteger, 0, true, null,
+					null, ScanHint.NORMAL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * The same with full deletes, whose merges take the whole tree.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: inserts at the right end, full "
+				+ "deletes");
+		try {
+			BufferPool pool = new SystemBufferPool();
+			BTreeFile file = new BTreeFile(pool, "CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					LeafFormat.PLAIN);
+			return stress(file, pool, AttrType.attrInteger, 0, true, null,
+					null, ScanHint.NORMAL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Duplicate runs over several leaves, inserted and deleted at random,
+	 * scanned over part of the key range.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: duplicate keys, full deletes");
+		try {
+			BufferPool pool = new SystemBufferPool();
+			BTreeFile file = new BTreeFile(pool, "CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					LeafFormat.PLAIN);
+			return stress(file, pool, AttrType.attrInteger, 200, true,
+					new IntegerKey(50), new IntegerKey(150), ScanHint.NORMAL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Packed pages with counts, in a small pool of the tree's own, with
+	 * bulk scans.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: packed pages with counts, "
+				+ "in a small local pool");
+		try {
+			LocalBufferPool pool = new LocalBufferPool(100, "2Q");
+			BTreeFile file = new BTreeFile(pool, "CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					LeafFormat.PACKED_INT, true);
+			return stress(file, pool, AttrType.attrInteger, 5000, true,
+					new IntegerKey(1000), null, ScanHint.SEQUENTIAL_BULK);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * String keys in prefix-compressed leaves, scanned with read-ahead.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: prefix-compressed string keys, "
+				+ "read-ahead scans");
+		try {
+			BufferPool pool = new SystemBufferPool();
+			BTreeFile file = new BTreeFile(pool, "CONC" + postfix++,
+					AttrType.attrString, 30, DeleteFashion.FULL_DELETE,
+					LeafFormat.PREFIX_COMPRESSED);
+			file.setReadAhead(4);
+			return stress(file, pool, AttrType.attrString, 100000, true,
+					null, null, ScanHint.NORMAL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Inserts only, at random places, so that index splits run into each
+	 * other on their way up.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: random inserts only");
+		try {
+			BufferPool pool = new SystemBufferPool();
+			BTreeFile file = new BTreeFile(pool, "CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					LeafFormat.PLAIN);
+			return stress(file, pool, AttrType.attrInteger, 1000000, false,
+					null, null, ScanHint.NORMAL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+}
+
+public class BTConcurrencyTest {
+
+	public static void main(String argv[]) {
+		ConcurrencyDriver driver = new ConcurrencyDriver();
+		if (!driver.runTests()) {
+			System.err.println("Error encountered during B+ tree "
+					+ "concurrency tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,565 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Tests of counted trees: count, rank and select of a tree created with
+ * counts are checked against a scan of the tree after inserts, deletes,
+ * insertAll and bulkLoad, and after inserts that fail.
+ */
+class CountDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUMBUF = 300;
+
+	private final Random random = new Random(25);
+
+	private int postfix = 0;
+
+	public CountDriver() {
+		super("btcount");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 30000, NUMBUF, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "B+ tree count";
+	}
+
+	private static KeyClass key(int keyType, int k) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(k);
+		return new StringKey("tenant-" + (k % 5) + "/order-" + k);
+	}
+
+	private BTreeFile counted(int keyType, int format) throws Exception {
+		return new BTreeFile(new SystemBufferPool(), "COUNT" + postfix++,
+				keyType, keyType == AttrType.attrInteger ? 4 : 30,
+				DeleteFashion.FULL_DELETE, format, true);
+	}
+
+	/**
+	 * Check count, rank and select of a file against a scan of it: the
+	 * count of the whole tree and of ranges between keys drawn below
+	 * `keys', the rank of such keys, and the entry select returns for
+	 * positions all over the tree.
+	 *
+	 * @return null if they all agree with the scan, or what does not.
+	 */
+	private String checkCounts(BTreeFile file, int keyType, int keys)
+			throws Exception {
+		List<KeyDataEntry> all = TreeModel.scan(file, null, null);
+		if (file.count(null, null) != all.size())
+			return "count of " + file.count(null, null) + " instead of "
+					+ all.size();
+
+		for (int i = 0; i < 40; i++) {
+			KeyClass lo_key = key(keyType, random.nextInt(keys));
+			KeyClass hi_key = key(keyType, random.nextInt(keys));
+			if (BT.keyCompare(lo_key, hi_key) > 0) {
+				KeyClass swap = lo_key;
+				lo_key = hi_key;
+				hi_key = swap;
+			}
+			int below = 0, in = 0;
+			for (KeyDataEntry entry : all)
+				if (BT.keyCompare(entry.key, lo_key) < 0)
+					below++;
+				else if (BT.keyCompare(entry.key, hi_key) <= 0)
+					in++;
+			if (file.rank(lo_key) != below)
+				return "rank of " + lo_key + " is " + file.rank(lo_key)
+						+ " instead of " + below;
+			if (file.count(lo_key, hi_key) != in)
+				return "count of [" + lo_key + ", " + hi_key + "] is "
+						+ file.count(lo_key, hi_key) + " instead of " + in;
+		}
+
+		int step = Math.max(1, all.size() / 50);
+		for (int k = 0; k < all.size(); k += step) {
+			KeyDataEntry entry = file.select(k);
+			if (entry == null || !TreeModel.name(entry).equals(
+					TreeModel.name(all.get(k))))
+				return "select(" + k + ") returned "
+						+ (entry == null ? "null" : TreeModel.name(entry))
+						+ " instead of " + TreeModel.name(all.get(k));
+		}
+		if (file.select(all.size()) != null)
+			return "select(" + all.size() + ") returned an entry";
+		return null;
+	}
+
+	/*
+	 * Report the result of checkCounts, or of a check of the model, if
+	 * either found something wrong.
+	 */
+	private boolean check(BTreeFile file, TreeModel model, int keyType,
+			int keys, String when) throws Exception {
+		String error = model.check(file);
+		if (error == null)
+			error = checkCounts(file, keyType, keys);
+		if (error != null) {
+			System.out.println("  *** " + when + ": " + error);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Inserts of integer keys with duplicates.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: count, rank and select after inserts");
+		try {
+			BTreeFile file = counted(AttrType.attrInteger, LeafFormat.PLAIN);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < 12000; i++) {
+				KeyClass key = key(AttrType.attrInteger, random.nextInt(3000));
+				RID rid = new RID(new PageId(i), i % 100);
+				file.insert(key, rid);
+				model.add(key, rid);
+				if (i % 3000 == 2999
+						&& check(file, model, AttrType.attrInteger, 3000,
+								"After " + (i + 1) + " inserts") != OK)
+					return FAIL;
+			}
+			System.out.println("  - " + model.size() + " entries in "
+					+ file.getMetrics().getTreeHeight() + " levels");
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Deletes in random order, with merges and redistribution, down to an
+	 * empty tree.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: count, rank and select after deletes");
+		try {
+			BTreeFile file = counted(AttrType.attrInteger, LeafFormat.PLAIN);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < 10000; i++) {
+				KeyClass key = key(AttrType.attrInteger, random.nextInt(100000));
+				RID rid = new RID(new PageId(i), 0);
+				file.insert(key, rid);
+				model.add(key, rid);
+			}
+			model.shuffle(random);
+			for (int deleted = 1; model.size() > 0; deleted++) {
+				KeyDataEntry entry = model.remove(model.size() - 1);
+				if (!file.Delete(entry.key, ((LeafData) entry.data).getData())) {
+					System.out.println("  *** Delete of " + TreeModel.name(entry)
+							+ " did not find it");
+					return FAIL;
+				}
+				if ((deleted % 2000 == 0 || model.size() == 0)
+						&& check(file, model, AttrType.attrInteger, 100000,
+								"After " + deleted + " deletes") != OK)
+					return FAIL;
+			}
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Batches of string keys through insertAll, into prefix-compressed
+	 * leaves that already hold entries.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: count, rank and select after insertAll");
+		try {
+			BTreeFile file = counted(AttrType.attrString,
+					LeafFormat.PREFIX_COMPRESSED);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < 2000; i++) {
+				KeyClass key = key(AttrType.attrString, random.nextInt(20000));
+				RID rid = new RID(new PageId(i), 1);
+				file.insert(key, rid);
+				model.add(key, rid);
+			}
+			for (int batch = 0; batch < 6; batch++) {
+				KeyDataEntry[] entries = new KeyDataEntry[1000];
+				for (int i = 0; i < entries.length; i++) {
+					KeyClass key = key(AttrType.attrString, random
+							.nextInt(20000));
+					RID rid = new RID(new PageId(batch * 1000 + i), 2);
+					entries[i] = new KeyDataEntry(key, rid);
+					model.add(key, rid);
+				}
+				file.insertAll(entries);
+				if (check(file, model, AttrType.attrString, 20000, "After "
+						+ (batch + 1) + " batches") != OK)
+					return FAIL;
+			}
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * A tree built by bulkLoad, then changed by inserts and deletes.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: count, rank and select after bulkLoad");
+		try {
+			BTreeFile file = counted(AttrType.attrInteger, LeafFormat.PLAIN);
+			TreeModel model = new TreeModel();
+			List<KeyDataEntry> sorted = new ArrayList<KeyDataEntry>();
+			for (int k = 0; k < 20000; k++) {
+				KeyClass key = key(AttrType.attrInteger, k / 2);
+				RID rid = new RID(new PageId(k), 3);
+				sorted.add(new KeyDataEntry(key, rid));
+				model.add(key, rid);
+			}
+			file.bulkLoad(sorted.iterator(), 0.7f);
+			if (check(file, model, AttrType.attrInteger, 10000,
+					"After bulkLoad") != OK)
+				return FAIL;
+
+			for (int i = 0; i < 4000; i++) {
+				if (random.nextBoolean()) {
+					KeyClass key = key(AttrType.attrInteger, random
+							.nextInt(10000));
+					RID rid = new RID(new PageId(i), 4);
+					file.insert(key, rid);
+					model.add(key, rid);
+				} else {
+					KeyDataEntry entry = model.remove(random.nextInt(model
+							.size()));
+					file.Delete(entry.key, ((LeafData) entry.data).getData());
+				}
+			}
+			if (check(file, model, AttrType.attrInteger, 10000,
+					"After inserts and deletes") != OK)
+				return FAIL;
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Packed integer pages, inserts and deletes mixed.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: count, rank and select on packed "
+				+ "pages");
+		try {
+			BTreeFile file = counted(AttrType.attrInteger,
+					LeafFormat.PACKED_INT);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < 20000; i++) {
+				if (model.size() > 0 && random.nextInt(10) < 3) {
+					KeyDataEntry entry = model.remove(random.nextInt(model
+							.size()));
+					file.Delete(entry.key, ((LeafData) entry.data).getData());
+				} else {
+					KeyClass key = key(AttrType.attrInteger, random
+							.nextInt(5000));
+					RID rid = new RID(new PageId(i), 5);
+					file.insert(key, rid);
+					model.add(key, rid);
+				}
+				if (i % 5000 == 4999
+						&& check(file, model, AttrType.attrInteger, 5000,
+								"After " + (i + 1) + " operations") != OK)
+					return FAIL;
+			}
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Inserts into a pool that runs out of new pages: in leaf splits, where
+	 * the entry does not go in and its counts are taken back; in splits of
+	 * the index pages above, where the entry stays in and the inserts after
+	 * it post the split; and in a leaf split whose counts cannot be taken
+	 * back either, after which the counts are no longer used.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: count, rank and select after inserts "
+				+ "that fail");
+		// BTreeFile prints the stack trace of each pool failure it passes on
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		try {
+			String name = "COUNT" + postfix++;
+			FailingPool pool = new FailingPool(new LocalBufferPool(NUMBUF));
+			BTreeFile file = new BTreeFile(pool, name, AttrType.attrInteger,
+					4, DeleteFashion.FULL_DELETE, LeafFormat.PLAIN, true);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < 3000; i++) {
+				KeyClass key = key(AttrType.attrInteger, random.nextInt(3000));
+				RID rid = new RID(new PageId(i), 6);
+				file.insert(key, rid);
+				model.add(key, rid);
+			}
+
+			// no new page: the inserts that split a leaf fail
+			pool.pages = 0;
+			int failed = 0;
+			for (int i = 0; failed < 3 && i < 1000; i++) {
+				KeyClass key = key(AttrType.attrInteger, 1500);
+				RID rid = new RID(new PageId(i), 7);
+				if (insert(file, model, key, rid) != null)
+					failed++;
+			}
+			if (failed == 0) {
+				System.out.println("  *** No leaf split failed");
+				return FAIL;
+			}
+			if (check(file, pool, model, 3000, "After " + failed
+					+ " failed leaf splits") != OK)
+				return FAIL;
+
+			// one new page per insert: the new leaf of a split, but not a
+			// new index page above it
+			int stayed = 0;
+			failed = 0;
+			int next = 3000;
+			for (; failed < 3 && next < 30000; next++) {
+				pool.pages = 1;
+				KeyClass key = key(AttrType.attrInteger, next);
+				RID rid = new RID(new PageId(next), 8);
+				Exception e = insert(file, model, key, rid);
+				if (e != null) {
+					failed++;
+					if (contains(file, key, rid))
+						stayed++;
+				}
+			}
+			pool.pages = -1;
+			if (stayed == 0) {
+				System.out.println("  *** No index split failed after its "
+						+ "entry went in");
+				return FAIL;
+			}
+			if (check(file, pool, model, next, "After " + failed
+					+ " failed index splits") != OK)
+				return FAIL;
+			for (int i = 0; i < 2000; i++, next++) {
+				KeyClass key = key(AttrType.attrInteger, next
+						- random.nextInt(200));
+				RID rid = new RID(new PageId(i), 9);
+				file.insert(key, rid);
+				model.add(key, rid);
+			}
+			if (check(file, pool, model, next,
+					"After inserts past the failed splits") != OK)
+				return FAIL;
+
+			// the pins fail too once there is no new page: the counts of
+			// the insert cannot be taken back
+			pool.pages = 0;
+			pool.failPins = true;
+			Exception failure = null;
+			KeyClass key = key(AttrType.attrInteger, 1500);
+			RID rid = null;
+			for (int i = 0; failure == null && i < 1000; i++) {
+				rid = new RID(new PageId(i), 10);
+				try {
+					file.insert(key, rid);
+					model.add(key, rid);
+				} catch (Exception e) {
+					failure = e;
+				}
+			}
+			pool.pages = -1;
+			pool.failPins = false;
+			pool.pinsFail = false;
+			if (failure != null && contains(file, key, rid))
+				model.add(key, rid);
+			if (failure == null || failure.getSuppressed().length == 0) {
+				System.out.println("  *** No insert failed to take back "
+						+ "its counts");
+				return FAIL;
+			}
+			if (check(file, pool, model, next,
+					"After counts that were not taken back") != OK)
+				return FAIL;
+			file.close();
+			pool.flushAllPages();
+
+			file = new BTreeFile(pool, name);
+			if (check(file, pool, model, next, "After a reopen") != OK)
+				return FAIL;
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			return FAIL;
+		} finally {
+			System.setErr(err);
+		}
+	}
+
+	/*
+	 * Insert <key, rid> into the file and the model, where the entry went
+	 * in. Returns the exception of an insert that failed, or null.
+	 */
+	private static Exception insert(BTreeFile file, TreeModel model,
+			KeyClass key, RID rid) throws Exception {
+		try {
+			file.insert(key, rid);
+		} catch (Exception e) {
+			if (contains(file, key, rid))
+				model.add(key, rid);
+			return e;
+		}
+		model.add(key, rid);
+		return null;
+	}
+
+	private static boolean contains(BTreeFile file, KeyClass key, RID rid)
+			throws Exception {
+		String name = TreeModel.name(new KeyDataEntry(key, rid));
+		for (KeyDataEntry entry : TreeModel.scan(file, key, key))
+			if (TreeModel.name(entry).equals(name))
+				return true;
+		return false;
+	}
+
+	/*
+	 * check, and that no page but the header is left pinned.
+	 */
+	private boolean check(BTreeFile file, BufferPool pool, TreeModel model,
+			int keys, String when) throws Exception {
+		if (pool.getNumUnpinnedBuffers() != pool.getNumBuffers() - 1) {
+			System.out.println("  *** " + when + ": "
+					+ (pool.getNumBuffers() - pool.getNumUnpinnedBuffers())
+					+ " pages pinned");
+			return FAIL;
+		}
+		return check(file, model, AttrType.attrInteger, keys, when);
+	}
+}
+
+/**
+ * A pool that hands out a given number of new pages, and may then fail
+ * every pin too, until it is reset.
+ */
+class FailingPool implements BufferPool {
+
+	private final BufferPool pool;
+
+	int pages = -1; // new pages left, -1 for any number
+	boolean failPins; // pins fail once a new page is refused
+	boolean pinsFail;
+
+	FailingPool(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	private void checkPin() throws BufferPoolExceededException {
+		if (pinsFail)
+			throw new BufferPoolExceededException(null, "pins fail");
+	}
+
+	public void pinPage(PageId pageno, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		checkPin();
+		pool.pinPage(pageno, page, emptyPage);
+	}
+
+	public void pinPage(PageId pageno, Page page, BufferRing ring)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		checkPin();
+		pool.pinPage(pageno, page, ring);
+	}
+
+	public void releaseRing(BufferRing ring) {
+		pool.releaseRing(ring);
+	}
+
+	public void unpinPage(PageId pageno, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		pool.unpinPage(pageno, dirty);
+	}
+
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		checkPin();
+		if (pages == 0) {
+			pinsFail = failPins;
+			throw new BufferPoolExceededException(null, "no new page");
+		}
+		if (pages > 0)
+			pages--;
+		return pool.newPage(firstpage, howmany);
+	}
+
+	public void freePage(PageId pageno) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		pool.freePage(pageno);
+	}
+
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		pool.flushAllPages();
+	}
+
+	public int getNumBuffers() {
+		return pool.getNumBuffers();
+	}
+
+	public int getNumUnpinnedBuffers() {
+		return pool.getNumUnpinnedBuffers();
+	}
+}
+
+public class BTCountTest {
+
+	public static void main(String argv[]) {
+		CountDriver driver = new CountDriver();
+		if (!driver.runTests()) {
+			System.err.println("Error encountered during B+ tree count "
+					+ "tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,242 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of FULL_DELETE: entries are inserted in random order and deleted
+ * again in random order down to an empty tree, so that leaves and index
+ * pages get merged and redistributed and the root shrinks level by level.
+ * A scan of the file is checked against the entries it should hold along
+ * the way.
+ */
+class DeleteDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUMBUF = 200;
+
+	private final Random random = new Random(5);
+
+	private int postfix = 0;
+
+	public DeleteDriver() {
+		super("btdelete");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 30000, NUMBUF, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "B+ tree full delete";
+	}
+
+	/**
+	 * Delete every entry of the model from the file, in the model's order,
+	 * checking a scan of the file every `every' deletes and once it is
+	 * empty. The root must be gone then, and every page unpinned but the
+	 * header.
+	 */
+	private boolean deleteAll(BTreeFile file, TreeModel model, int every)
+			throws Exception {
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		for (int deleted = 1; model.size() > 0; deleted++) {
+			KeyDataEntry entry = model.remove(model.size() - 1);
+			if (!file.Delete(entry.key, ((LeafData) entry.data).getData())) {
+				System.out.println("  *** Delete of " + TreeModel.name(entry)
+						+ " did not find it");
+				return FAIL;
+			}
+			if (deleted % every == 0 || model.size() == 0) {
+				String error = model.check(file);
+				if (error != null) {
+					System.out.println("  *** After " + deleted
+							+ " deletes: " + error);
+					return FAIL;
+				}
+			}
+		}
+		if (file.getMetrics().getTreeHeight() != 0) {
+			System.out.println("  *** The empty tree still has "
+					+ file.getMetrics().getTreeHeight() + " levels");
+			return FAIL;
+		}
+		if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+			System.out.println("  *** "
+					+ (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+					+ " pages left pinned");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/**
+	 * Insert `n' entries with keys drawn from `keys', delete them all in
+	 * random order, and insert some again into the emptied tree.
+	 */
+	private boolean insertAndDelete(int keyType, int keySize, int format,
+			int n, int keys) {
+		try {
+			BTreeFile file = new BTreeFile("DEL" + postfix++, keyType,
+					keySize, DeleteFashion.FULL_DELETE, format);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < n; i++) {
+				KeyClass key = key(keyType, random.nextInt(keys));
+				RID rid = new RID(new PageId(i), i % 100);
+				file.insert(key, rid);
+				model.add(key, rid);
+			}
+			String error = model.check(file);
+			if (error != null) {
+				System.out.println("  *** After the inserts: " + error);
+				return FAIL;
+			}
+			int height = file.getMetrics().getTreeHeight();
+
+			model.shuffle(random);
+			if (deleteAll(file, model, n / 10) != OK)
+				return FAIL;
+			System.out.println("  - " + n + " entries deleted from a tree of "
+					+ height + " levels");
+
+			for (int i = 0; i < 100; i++) {
+				KeyClass key = key(keyType, i);
+				RID rid = new RID(new PageId(i), 1);
+				file.insert(key, rid);
+				model.add(key, rid);
+			}
+			error = model.check(file);
+			if (error != null) {
+				System.out.println("  *** After inserting into the emptied "
+						+ "tree: " + error);
+				return FAIL;
+			}
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	private static KeyClass key(int keyType, int k) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(k);
+		// long keys sharing a prefix: few entries per page, a tall tree
+		return new StringKey("customer/region-" + (k % 7)
+				+ "/branch-office-of-the-north-eastern-district/account-" + k);
+	}
+
+	/**
+	 * Distinct integer keys.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: delete distinct integer keys in "
+				+ "random order");
+		return insertAndDelete(AttrType.attrInteger, 4, LeafFormat.PLAIN,
+				8000, 1000000);
+	}
+
+	/**
+	 * Runs of duplicates longer than a leaf, so a key's entries lie in
+	 * several children of an index page.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: delete duplicate runs split over "
+				+ "several leaves");
+		return insertAndDelete(AttrType.attrInteger, 4, LeafFormat.PLAIN,
+				8000, 40);
+	}
+
+	/**
+	 * Long string keys, for a tree of four levels, whose index
+	 * pages merge and redistribute as well.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: delete long string keys from a tall "
+				+ "tree");
+		return insertAndDelete(AttrType.attrString, 96, LeafFormat.PLAIN,
+				5000, 1000000);
+	}
+
+	/**
+	 * Prefix-compressed leaves, with duplicates.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: delete from prefix-compressed leaves");
+		return insertAndDelete(AttrType.attrString, 96,
+				LeafFormat.PREFIX_COMPRESSED, 5000, 1500);
+	}
+
+	/**
+	 * Packed integer pages, with duplicates.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: delete from packed integer pages");
+		return insertAndDelete(AttrType.attrInteger, 4, LeafFormat.PACKED_INT,
+				8000, 2000);
+	}
+
+	/**
+	 * Inserts and deletes mixed, the tree growing and shrinking in turn,
+	 * then deleted down to empty.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: mixed inserts and deletes");
+		try {
+			BTreeFile file = new BTreeFile("DEL" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			TreeModel model = new TreeModel();
+			for (int i = 0; i < 40000; i++) {
+				// grow for 4000 operations, then shrink for 4000
+				boolean grow = (i / 4000) % 2 == 0;
+				if (model.size() > 0 && random.nextInt(10) < (grow ? 3 : 7)) {
+					KeyDataEntry entry = model.remove(random.nextInt(model
+							.size()));
+					if (!file.Delete(entry.key, ((LeafData) entry.data)
+							.getData())) {
+						System.out.println("  *** Delete of "
+								+ TreeModel.name(entry) + " did not find it");
+						return FAIL;
+					}
+				} else {
+					KeyClass key = new IntegerKey(random.nextInt(3000));
+					RID rid = new RID(new PageId(i), i % 100);
+					file.insert(key, rid);
+					model.add(key, rid);
+				}
+				if (i % 4000 == 3999) {
+					String error = model.check(file);
+					if (error != null) {
+						System.out.println("  *** After " + (i + 1)
+								+ " operations: " + error);
+						return FAIL;
+					}
+				}
+			}
+			model.shuffle(random);
+			if (deleteAll(file, model, 1000) != OK)
+				return FAIL;
+			file.destroyFile();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+}
+
+public class BTDeleteTest {
+
+	public static void main(String argv[]) {
+		DeleteDriver driver = new DeleteDriver();
+		if (!driver.runTests()) {
+			System.err.println("Error encountered during B+ tree delete "
+					+ "tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,490 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * A DB whose page reads take at least `delay' nanoseconds, so that a tree
+ * read from a warm OS cache behaves like one read from a disk. The reading
+ * thread parks for the rest of the time, leaving the CPU to others as it
+ * would while waiting for a disk.
+ */
+class SlowDB extends DB {
+
+	volatile long delay = 0;
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		long until = System.nanoTime() + delay;
+		super.read_page(pageno, apage);
+		for (long left = delay; left > 0; left = until - System.nanoTime())
+			LockSupport.parkNanos(left);
+	}
+}
+
+/**
+ * Measurements of the buffer pools, the page formats and the scans of
+ * BTreeFile, one per change that quoted figures for them. Each measurement
+ * prints what it finds and fails only if the tree returns something wrong;
+ * the figures themselves depend on the machine. Names given on the command
+ * line pick the measurements to run: replacers, rings, readahead, pageio,
+ * alloc, packed and descending.
+ */
+class MeasureDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUMBUF = 300;
+
+	private final Set<String> chosen;
+
+	public MeasureDriver(String[] names) {
+		super("btmeasure");
+		chosen = new HashSet<String>(Arrays.asList(names));
+	}
+
+	protected String testName() {
+		return "B+ tree measurement";
+	}
+
+	protected boolean runAllTests() {
+		boolean pass = OK;
+		if (run("replacers") && !replacers())
+			pass = FAIL;
+		if (run("rings") && !rings())
+			pass = FAIL;
+		if (run("readahead") && !readAhead())
+			pass = FAIL;
+		if (run("pageio") && !pageIO())
+			pass = FAIL;
+		if (run("alloc") && !alloc())
+			pass = FAIL;
+		if (run("packed") && !packed())
+			pass = FAIL;
+		if (run("descending") && !descending())
+			pass = FAIL;
+		return pass;
+	}
+
+	private boolean run(String name) {
+		return chosen.isEmpty() || chosen.contains(name);
+	}
+
+	/**
+	 * Open a new database of `pages' pages on `db', the way new
+	 * SystemDefs(...) and MappedDB.open do, so each measurement starts from
+	 * an empty database with the backend it asks for.
+	 */
+	private void open(DB db, int pages) throws Exception {
+		new File(dbpath).delete();
+		SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+		SystemDefs.JavabaseDB = db;
+		SystemDefs.JavabaseDBName = dbpath;
+		SystemDefs.JavabaseLogName = dbpath;
+		SystemDefs.MINIBASE_DBNAME = dbpath;
+		synchronized (SystemDefs.JavabaseBM) {
+			db.openDB(dbpath, pages);
+		}
+	}
+
+	private void close() throws IOException {
+		SystemDefs.JavabaseDB.closeDB();
+		new File(dbpath).delete();
+	}
+
+	/*
+	 * Pages pinned in a pool so far, whether they were resident or not.
+	 */
+	private static long pins(LocalBufferPool pool) {
+		return pool.getHits() + pool.getMisses();
+	}
+
+	/*
+	 * Scan a file from lo_key to hi_key with a hint.
+	 *
+	 * @return the number of entries returned.
+	 */
+	private static int scan(BTreeFile file, KeyClass lo_key, KeyClass hi_key,
+			int hint) throws Exception {
+		BTFileScan scan = file.new_scan(lo_key, hi_key, hint);
+		int n = 0;
+		while (scan.get_next() != null)
+			n++;
+		scan.DestroyBTreeFileScan();
+		return n;
+	}
+
+	/*
+	 * Look up one key through new_scan(key, key).
+	 *
+	 * @return whether the key was found.
+	 */
+	private static boolean lookup(BTreeFile file, KeyClass key)
+			throws Exception {
+		BTFileScan scan = file.new_scan(key, key);
+		boolean found = scan.get_next() != null;
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	private static void spin(long nanos) {
+		long until = System.nanoTime() + nanos;
+		while (System.nanoTime() < until)
+			;
+	}
+
+	/*
+	 * 20 rounds of 500 point lookups over the first sixteenth of a
+	 * 40000-key tree, with a full scan every second round, in a pool of
+	 * `frames' frames. Prints the lookup misses and the hit ratio of the
+	 * pool.
+	 */
+	private boolean replay(int frames, String replacer, int hint)
+			throws Exception {
+		int n = 40000;
+		LocalBufferPool pool = new LocalBufferPool(frames, replacer);
+		BTreeFile file = new BTreeFile(pool, "REPLAY" + replacer + frames
+				+ hint, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+				LeafFormat.PLAIN);
+		for (int k = 0; k < n; k++)
+			file.insert(new IntegerKey(k), new RID(new PageId(k), k));
+		pool.flushAllPages();
+		pool.resetCounters();
+		Random random = new Random(7);
+		long misses = 0;
+		for (int round = 0; round < 20; round++) {
+			long before = pool.getMisses();
+			for (int i = 0; i < 500; i++)
+				if (!lookup(file, new IntegerKey(random.nextInt(n / 16)))) {
+					System.out.println("  *** A lookup missed its key");
+					return FAIL;
+				}
+			misses += pool.getMisses() - before;
+			if (round % 2 == 1 && scan(file, null, null, hint) != n) {
+				System.out.println("  *** A full scan missed entries");
+				return FAIL;
+			}
+		}
+		System.out.println(String.format("  - %-6s lookup misses %5d, "
+				+ "hit ratio %.3f", pool.getReplacer(), misses, pool
+				.getHitRatio()));
+		file.close();
+		return OK;
+	}
+
+	/**
+	 * user-014: lookup misses and hit ratios of the replacers, with 128
+	 * frames and with 64, where the hot set no longer fits.
+	 */
+	private boolean replacers() {
+		System.out.println("\n  Replacement policies (user-014)");
+		try {
+			open(new DB(), 20000);
+			boolean pass = OK;
+			for (int frames : new int[] { 128, 64 }) {
+				System.out.println("  " + frames + " frames:");
+				for (String replacer : new String[] { "Clock", "LRU", "MRU",
+						"2Q", "LRU-2", "ARC" })
+					if (!replay(frames, replacer, ScanHint.NORMAL))
+						pass = FAIL;
+			}
+			close();
+			return pass;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * user-015: the workload of user-014 with 128 frames, its full scans
+	 * SEQUENTIAL_BULK instead of NORMAL.
+	 */
+	private boolean rings() {
+		System.out.println("\n  Ring buffers for bulk scans (user-015)");
+		try {
+			open(new DB(), 20000);
+			boolean pass = OK;
+			for (int hint : new int[] { ScanHint.NORMAL,
+					ScanHint.SEQUENTIAL_BULK }) {
+				System.out.println("  "
+						+ (hint == ScanHint.NORMAL ? "NORMAL" : "SEQUENTIAL_BULK")
+						+ " scans:");
+				for (String replacer : new String[] { "Clock", "LRU", "2Q",
+						"ARC" })
+					if (!replay(128, replacer, hint))
+						pass = FAIL;
+			}
+			close();
+			return pass;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * user-016: a full scan of a cold 200000-key tree whose page reads take
+	 * 200us, with some work for the caller per entry, without read-ahead
+	 * and with 8 leaves of it.
+	 */
+	private boolean readAhead() {
+		System.out.println("\n  Read-ahead on a cold tree (user-016)");
+		try {
+			SlowDB db = new SlowDB();
+			open(db, 60000);
+			int n = 200000;
+			LocalBufferPool build = new LocalBufferPool(200);
+			BTreeFile file = new BTreeFile(build, "COLD",
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					LeafFormat.PLAIN);
+			for (int k = 0; k < n; k++)
+				file.insert(new IntegerKey(k), new RID(new PageId(k), k));
+			file.close();
+			build.flushAllPages();
+
+			db.delay = 200000;
+			for (long work : new long[] { 5000, 1000 })
+				for (int leaves : new int[] { 0, 8 }) {
+					LocalBufferPool pool = new LocalBufferPool(200);
+					file = new BTreeFile(pool, "COLD");
+					file.setReadAhead(leaves);
+					long start = System.nanoTime();
+					BTFileScan scan = file.new_scan(null, null);
+					int count = 0;
+					while (scan.get_next() != null) {
+						count++;
+						spin(work);
+					}
+					scan.DestroyBTreeFileScan();
+					long ms = (System.nanoTime() - start) / 1000000;
+					file.close();
+					if (count != n) {
+						System.out.println("  *** A full scan missed entries");
+						return FAIL;
+					}
+					System.out.println("  - " + work / 1000 + "us per entry, "
+							+ leaves + " leaves of read-ahead: " + ms + " ms");
+				}
+			db.delay = 0;
+			close();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/*
+	 * Read, then write, a run of 50000 pages of the database, three times.
+	 */
+	private void pageIO(String name) throws Exception {
+		int n = 50000;
+		PageId first = new PageId();
+		SystemDefs.JavabaseDB.allocate_page(first, n);
+		Page page = new Page();
+		for (int pass = 0; pass < 3; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++)
+				SystemDefs.JavabaseDB.read_page(new PageId(first.pid + i), page);
+			long read = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < n; i++)
+				SystemDefs.JavabaseDB
+						.write_page(new PageId(first.pid + i), page);
+			long write = System.nanoTime() - start;
+			System.out.println(String.format("  - %-8s read %5d ns/page, "
+					+ "write %5d ns/page", name, read / n, write / n));
+		}
+		SystemDefs.JavabaseDB.deallocate_page(first, n);
+	}
+
+	/**
+	 * user-017: raw page I/O of DB and of MappedDB.
+	 */
+	private boolean pageIO() {
+		System.out.println("\n  Page I/O of DB and MappedDB (user-017)");
+		try {
+			open(new DB(), 60000);
+			pageIO("DB");
+			close();
+			open(new MappedDB(), 60000);
+			pageIO("MappedDB");
+			close();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * user-020: bytes allocated and pages pinned per point
+	 * lookup on a warm 10000-key tree in a 400-frame pool.
+	 */
+	private boolean alloc() {
+		System.out.println("\n  Allocation per lookup (user-020)");
+		try {
+			open(new DB(), 20000);
+			LocalBufferPool pool = new LocalBufferPool(400);
+			BTreeFile file = new BTreeFile(pool, "ALLOC",
+					AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					LeafFormat.PLAIN);
+			int n = 10000, lookups = 100000;
+			for (int k = 0; k < n; k++)
+				file.insert(new IntegerKey(k), new RID(new PageId(k), k));
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+					.getThreadMXBean();
+			long thread = Thread.currentThread().getId();
+			for (int round = 0; round < 3; round++) {
+				long pinned = pins(pool);
+				long bytes = threads.getThreadAllocatedBytes(thread);
+				for (int i = 0; i < lookups; i++)
+					if (!lookup(file, new IntegerKey(i % n))) {
+						System.out.println("  *** A lookup missed its key");
+						return FAIL;
+					}
+				bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+				pinned = pins(pool) - pinned;
+				System.out.println("  - " + bytes / lookups
+						+ " bytes allocated and " + (double) pinned / lookups
+						+ " pages pinned per lookup");
+			}
+			file.close();
+			close();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * user-021: leaves, height and point lookup time of 100000 random keys,
+	 * in plain and in packed pages. A full scan pins a page per level down
+	 * to the first leaf and then the other leaves, which gives the number
+	 * of leaves.
+	 */
+	private boolean packed() {
+		System.out.println("\n  Packed integer pages (user-021)");
+		try {
+			open(new DB(), 20000);
+			int n = 100000;
+			int[] keys = new int[n];
+			Random random = new Random(3);
+			for (int i = 0; i < n; i++)
+				keys[i] = random.nextInt(1 << 30);
+			// twice over, the first round warming up the JIT
+			for (int round = 0; round < 2; round++)
+				for (int format : new int[] { LeafFormat.PLAIN,
+						LeafFormat.PACKED_INT }) {
+					LocalBufferPool pool = new LocalBufferPool(4000);
+					BTreeFile file = new BTreeFile(pool, "PACKED" + format
+							+ round, AttrType.attrInteger, 4,
+							DeleteFashion.FULL_DELETE, format);
+					for (int i = 0; i < n; i++)
+						file.insert(new IntegerKey(keys[i]), new RID(
+								new PageId(keys[i]), i));
+					int height = file.getMetrics().getTreeHeight();
+					long before = pins(pool);
+					if (scan(file, null, null, ScanHint.NORMAL) != n) {
+						System.out.println("  *** A full scan missed entries");
+						return FAIL;
+					}
+					long leaves = pins(pool) - before - (height - 1);
+					long start = System.nanoTime();
+					for (int rep = 0; rep < 3; rep++)
+						for (int i = 0; i < n; i++)
+							if (!lookup(file, new IntegerKey(keys[i]))) {
+								System.out.println("  *** A lookup missed "
+										+ "its key");
+								return FAIL;
+							}
+					long ns = (System.nanoTime() - start) / (3 * n);
+					if (round == 1)
+						System.out.println("  - "
+								+ (format == LeafFormat.PLAIN ? "plain "
+										: "packed") + ": " + leaves
+								+ " leaves, " + height + " levels, " + ns
+								+ " ns per lookup");
+					file.close();
+				}
+			close();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * user-022: the top 10 of 100000 keys through a descending scan,
+	 * against a full ascending scan.
+	 */
+	private boolean descending() {
+		System.out.println("\n  Descending scans (user-022)");
+		try {
+			open(new DB(), 20000);
+			int n = 100000;
+			LocalBufferPool pool = new LocalBufferPool(4000);
+			BTreeFile file = new BTreeFile(pool, "DESC", AttrType.attrInteger,
+					4, DeleteFashion.FULL_DELETE, LeafFormat.PLAIN);
+			for (int k = 0; k < n; k++)
+				file.insert(new IntegerKey(k), new RID(new PageId(k), k));
+
+			int tops = 2000, scans = 20;
+			long top = 0, full = 0;
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < tops; i++) {
+					BTFileScan scan = file.new_scan(null, null,
+							ScanHint.NORMAL, ScanOrder.DESCENDING);
+					for (int j = 0; j < 10; j++) {
+						KeyDataEntry entry = scan.get_next();
+						if (entry == null
+								|| ((IntegerKey) entry.key).getKey() != n - 1 - j) {
+							System.out.println("  *** The descending scan "
+									+ "returned " + entry);
+							return FAIL;
+						}
+					}
+					scan.DestroyBTreeFileScan();
+				}
+				top = (System.nanoTime() - start) / tops;
+				start = System.nanoTime();
+				for (int i = 0; i < scans; i++)
+					if (scan(file, null, null, ScanHint.NORMAL) != n) {
+						System.out.println("  *** A full scan missed entries");
+						return FAIL;
+					}
+				full = (System.nanoTime() - start) / scans;
+			}
+			System.out.println("  - top 10 descending: " + top / 1000
+					+ " us, full ascending scan: " + full / 1000000 + " ms");
+			file.close();
+			close();
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+}
+
+public class BTMeasureTest {
+
+	public static void main(String argv[]) {
+		MeasureDriver driver = new MeasureDriver(argv);
+		if (!driver.runTests()) {
+			System.err.println("Error encountered during B+ tree "
+					+ "measurements:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,384 @@
+package tests;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of BTreeFile.stream and of the spliterators of BTreeRange: a
+ * parallel stream of a range must return what a scan of it returns, in
+ * the same order, whatever the ranges it splits into, and the size the
+ * spliterators estimate must be near the size of the range. The results of
+ * BTreeFile.aggregate must be those of a fold of a scan, on any pool.
+ */
+class StreamDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUMBUF = 300;
+
+	private final Random random = new Random(23);
+
+	private int postfix = 0;
+
+	public StreamDriver() {
+		super("btstream");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 30000, NUMBUF, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "B+ tree stream";
+	}
+
+	private BTreeFile file(boolean counted) throws Exception {
+		return new BTreeFile(new SystemBufferPool(), "STREAM" + postfix++,
+				AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+				LeafFormat.PLAIN, counted);
+	}
+
+	/*
+	 * Insert `entries' entries with keys below `keys', so that each key has
+	 * about entries / keys duplicates.
+	 */
+	private void fill(BTreeFile file, int entries, int keys) throws Exception {
+		for (int i = 0; i < entries; i++)
+			file.insert(new IntegerKey(random.nextInt(keys)), new RID(
+					new PageId(i / 50), i % 50));
+	}
+
+	/*
+	 * The entries of a range as a scan returns them, without those equal to
+	 * a hi_key the range excludes.
+	 */
+	private static List<String> scanned(BTreeFile file, BTreeRange range)
+			throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (KeyDataEntry entry : TreeModel.scan(file, range.getLoKey(),
+				range.getHiKey()))
+			if (range.includesHiKey()
+					|| BT.keyCompare(entry.key, range.getHiKey()) < 0)
+				names.add(TreeModel.name(entry));
+		return names;
+	}
+
+	private static List<String> streamed(BTreeRange range) {
+		List<String> names = new ArrayList<String>();
+		for (KeyDataEntry entry : StreamSupport.stream(range.spliterator(),
+				true).collect(Collectors.<KeyDataEntry> toList()))
+			names.add(TreeModel.name(entry));
+		return names;
+	}
+
+	/*
+	 * Check a parallel stream of a range against a scan of it.
+	 *
+	 * @return null if they return the same entries in the same order, or
+	 * where they part.
+	 */
+	private static String compare(BTreeFile file, BTreeRange range)
+			throws Exception {
+		List<String> expected = scanned(file, range);
+		List<String> found = streamed(range);
+		String bounds = "[" + range.getLoKey() + ", " + range.getHiKey()
+				+ (range.includesHiKey() ? "]" : ")");
+		for (int i = 0; i < Math.min(expected.size(), found.size()); i++)
+			if (!found.get(i).equals(expected.get(i)))
+				return "stream of " + bounds + " returned " + found.get(i)
+						+ " where the scan returned " + expected.get(i);
+		if (found.size() != expected.size())
+			return "stream of " + bounds + " returned " + found.size()
+					+ " entries instead of " + expected.size();
+		return null;
+	}
+
+	private static boolean report(String error) {
+		if (error == null)
+			return OK;
+		System.out.println("  *** " + error);
+		return FAIL;
+	}
+
+	/**
+	 * A tree whose root is a leaf, with and without bounds.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: stream of a tree of one leaf");
+		try {
+			BTreeFile file = file(false);
+			fill(file, 30, 10);
+			if (file.range(null, null).split(4).size() != 1)
+				return report("range of one leaf split");
+			String error = compare(file, file.range(null, null));
+			if (error == null)
+				error = compare(file, file.range(new IntegerKey(3),
+						new IntegerKey(6)));
+			if (error == null)
+				error = compare(file, file.range(null, new IntegerKey(4)));
+			if (error == null)
+				error = compare(file, file.range(new IntegerKey(4), null));
+			if (error == null
+					&& file.range(null, null).spliterator().estimateSize() != 30)
+				error = "estimate of a leaf of 30 entries is "
+						+ file.range(null, null).spliterator().estimateSize();
+			file.destroyFile();
+			return report(error);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * Keys with runs of duplicates longer than a leaf, so that every cut of
+	 * a parallel stream falls in a run, with null bounds, random bounds,
+	 * and the parts of a split, each of which excludes the cut above it.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: stream of runs of duplicates");
+		try {
+			BTreeFile file = file(false);
+			fill(file, 20000, 40);
+			String error = compare(file, file.range(null, null));
+			for (int i = 0; i < 10 && error == null; i++) {
+				int lo = random.nextInt(40), hi = random.nextInt(40);
+				error = compare(file, file.range(
+						new IntegerKey(Math.min(lo, hi)),
+						new IntegerKey(Math.max(lo, hi))));
+			}
+			if (error == null)
+				error = compare(file, file.range(null, new IntegerKey(20)));
+			if (error == null)
+				error = compare(file, file.range(new IntegerKey(20), null));
+
+			List<BTreeRange> parts = file.range(null, null).split(8);
+			if (error == null && parts.size() < 2)
+				error = "range of " + file.getMetrics().getTreeHeight()
+						+ " levels not split";
+			List<String> all = new ArrayList<String>();
+			for (int i = 0; i < parts.size() && error == null; i++) {
+				BTreeRange part = parts.get(i);
+				if (i < parts.size() - 1 && part.includesHiKey())
+					error = "part " + i + " includes the cut above it";
+				else
+					error = compare(file, part);
+				all.addAll(streamed(part));
+			}
+			if (error == null && !all.equals(scanned(file,
+					file.range(null, null))))
+				error = "parts of the split do not add up to the range";
+			System.out.println("  - " + parts.size() + " parts of "
+					+ all.size() + " entries");
+			file.destroyFile();
+			return report(error);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/**
+	 * The size the spliterators estimate: the count of the range on a
+	 * counted tree, and within a factor of two of it on another, for the
+	 * range and for the parts it splits into.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: estimated sizes");
+		try {
+			for (boolean counted : new boolean[] { true, false }) {
+				BTreeFile file = file(counted);
+				fill(file, 20000, 5000);
+				Spliterator<KeyDataEntry> upper = file.range(null, null)
+						.spliterator();
+				List<Spliterator<KeyDataEntry>> parts = new ArrayList<Spliterator<KeyDataEntry>>();
+				Spliterator<KeyDataEntry> lower;
+				while (parts.size() < 3 && (lower = upper.trySplit()) != null)
+					parts.add(lower);
+				parts.add(upper);
+				for (Spliterator<KeyDataEntry> part : parts) {
+					long estimate = part.estimateSize();
+					long size = 0;
+					while (part.tryAdvance(new Consumer<KeyDataEntry>() {
+						public void accept(KeyDataEntry entry) {
+						}
+					}))
+						size++;
+					if (counted ? estimate != size : estimate > 2 * size
+							|| 2 * estimate < size)
+						return report("estimate of " + estimate + " for "
+								+ size + " entries"
+								+ (counted ? " of a counted tree" : ""));
+				}
+				file.destroyFile();
+			}
+			return OK;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+	}
+
+	/*
+	 * Sums the page numbers of the rids of the entries.
+	 */
+	private static class PageSum extends BTreeAggregator<Long> {
+
+		public Long start() {
+			return 0L;
+		}
+
+		public Long add(Long partial, KeyDataEntry entry) {
+			return partial + ((LeafData) entry.data).getData().pageNo.pid;
+		}
+
+		public Long combine(Long left, Long right) {
+			return left + right;
+		}
+	}
+
+	/*
+	 * Fails on the entries with key `failKey'.
+	 */
+	private static class Failing extends PageSum {
+
+		private final KeyClass failKey;
+
+		Failing(KeyClass failKey) {
+			this.failKey = failKey;
+		}
+
+		public Long add(Long partial, KeyDataEntry entry) {
+			try {
+				if (BT.keyCompare(entry.key, failKey) == 0)
+					throw new IllegalStateException("part failed at "
+							+ TreeModel.name(entry));
+			} catch (KeyNotMatchException e) {
+				throw new IllegalArgumentException(e);
+			}
+			return super.add(partial, entry);
+		}
+	}
+
+	/*
+	 * Check count, the sum of the rid pages and distinctPages aggregated
+	 * over [lo_key, hi_key] on a pool against a fold of a scan.
+	 *
+	 * @return null if they agree, or what does not.
+	 */
+	private static String aggregate(BTreeFile file, KeyClass lo_key,
+			KeyClass hi_key, ForkJoinPool pool, String name) throws Exception {
+		long count = 0, sum = 0;
+		Set<Integer> pages = new HashSet<Integer>();
+		for (KeyDataEntry entry : TreeModel.scan(file, lo_key, hi_key)) {
+			int pid = ((LeafData) entry.data).getData().pageNo.pid;
+			count++;
+			sum += pid;
+			pages.add(pid);
+		}
+		String bounds = " of [" + lo_key + ", " + hi_key + "] on " + name;
+		long found = file.aggregate(lo_key, hi_key,
+				BTreeAggregator.count(), pool);
+		if (found != count)
+			return "count" + bounds + " is " + found + " instead of " + count;
+		found = file.aggregate(lo_key, hi_key, new PageSum(), pool);
+		if (found != sum)
+			return "page sum" + bounds + " is " + found + " instead of " + sum;
+		Set<Integer> distinct = file.aggregate(lo_key, hi_key,
+				BTreeAggregator.distinctPages(), pool);
+		if (!distinct.equals(pages))
+			return "distinct pages" + bounds + " are " + distinct.size()
+					+ " instead of " + pages.size();
+		return null;
+	}
+
+	/**
+	 * Aggregates on a small pool of its own and on the common pool, of the
+	 * whole tree, of bounded ranges, and of a tree whose root is a leaf.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: aggregates against a fold of a scan");
+		ForkJoinPool small = new ForkJoinPool(3);
+		try {
+			BTreeFile file = file(false);
+			fill(file, 20000, 400);
+			BTreeFile leaf = file(false);
+			fill(leaf, 30, 10);
+			String error = null;
+			for (ForkJoinPool pool : new ForkJoinPool[] { small,
+					ForkJoinPool.commonPool() }) {
+				String name = pool == small ? "a pool of 3" : "the common pool";
+				if (error == null)
+					error = aggregate(file, null, null, pool, name);
+				for (int i = 0; i < 5 && error == null; i++) {
+					int lo = random.nextInt(400), hi = random.nextInt(400);
+					error = aggregate(file, new IntegerKey(Math.min(lo, hi)),
+							new IntegerKey(Math.max(lo, hi)), pool, name);
+				}
+				if (error == null)
+					error = aggregate(leaf, null, null, pool, name);
+			}
+			if (error == null
+					&& file.aggregate(null, null, BTreeAggregator.count()) != 20000)
+				error = "count on the default pool is not 20000";
+			file.destroyFile();
+			leaf.destroyFile();
+			return report(error);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			small.shutdown();
+		}
+	}
+
+	/**
+	 * An aggregate with a part that fails throws a ScanIteratorException,
+	 * wherever in the range the part is, and the tree and the pool go on
+	 * working after it.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: aggregate with a failing part");
+		ForkJoinPool small = new ForkJoinPool(3);
+		try {
+			BTreeFile file = file(false);
+			fill(file, 20000, 400);
+			for (int failKey : new int[] { 0, 200, 399 }) {
+				try {
+					file.aggregate(null, null, new Failing(new IntegerKey(
+							failKey)), small);
+					return report("aggregate failing at key " + failKey
+							+ " returned");
+				} catch (ScanIteratorException e) {
+					// expected
+				}
+			}
+			String error = aggregate(file, null, null, small, "a pool of 3");
+			file.destroyFile();
+			return report(error);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			small.shutdown();
+		}
+	}
+}
+
+public class BTStreamTest {
+
+	public static void main(String argv[]) {
+		StreamDriver driver = new StreamDriver();
+		if (!driver.runTests()) {
+			System.err.println("Error encountered during B+ tree stream "
+					+ "tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,131 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * TreeModel holds the <key, rid> entries a BTreeFile under test should
+ * hold, and checks the file against them through its scans: the keys must
+ * come out in order, and each entry exactly as often as it was put in.
+ * Entries of equal keys may come out in any order.
+ */
+class TreeModel {
+
+	private final ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+
+	void add(KeyClass key, RID rid) {
+		entries.add(new KeyDataEntry(key, rid));
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	KeyDataEntry get(int i) {
+		return entries.get(i);
+	}
+
+	/**
+	 * Take out the entry at `i', moving the last one into its place.
+	 *
+	 * @return the entry taken out.
+	 */
+	KeyDataEntry remove(int i) {
+		KeyDataEntry entry = entries.get(i);
+		entries.set(i, entries.get(entries.size() - 1));
+		entries.remove(entries.size() - 1);
+		return entry;
+	}
+
+	void shuffle(Random random) {
+		Collections.shuffle(entries, random);
+	}
+
+	/**
+	 * @return the entries with lo_key <= key <= hi_key, null standing for
+	 *         no bound, sorted on their key.
+	 */
+	List<KeyDataEntry> sorted(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		ArrayList<KeyDataEntry> in = new ArrayList<KeyDataEntry>();
+		for (int i = 0; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			if ((lo_key == null || BT.keyCompare(entry.key, lo_key) >= 0)
+					&& (hi_key == null || BT.keyCompare(entry.key, hi_key) <= 0))
+				in.add(entry);
+		}
+		Collections.sort(in, new Comparator<KeyDataEntry>() {
+			public int compare(KeyDataEntry a, KeyDataEntry b) {
+				try {
+					return BT.keyCompare(a.key, b.key);
+				} catch (KeyNotMatchException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}
+		});
+		return in;
+	}
+
+	/**
+	 * Scan the entries of a file from lo_key up to hi_key.
+	 *
+	 * @return the entries in the order the scan returned them.
+	 */
+	static List<KeyDataEntry> scan(BTreeFile file, KeyClass lo_key,
+			KeyClass hi_key) throws Exception {
+		ArrayList<KeyDataEntry> found = new ArrayList<KeyDataEntry>();
+		BTFileScan scan = file.new_scan(lo_key, hi_key);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			found.add(entry);
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/**
+	 * Check a scan of the file from lo_key up to hi_key against the model.
+	 *
+	 * @return null if the file holds what it should, or what is wrong.
+	 */
+	String check(BTreeFile file, KeyClass lo_key, KeyClass hi_key)
+			throws Exception {
+		List<KeyDataEntry> found = scan(file, lo_key, hi_key);
+		List<KeyDataEntry> expected = sorted(lo_key, hi_key);
+		if (found.size() != expected.size())
+			return "scan returned " + found.size() + " entries instead of "
+					+ expected.size();
+
+		ArrayList<String> foundNames = new ArrayList<String>();
+		ArrayList<String> expectedNames = new ArrayList<String>();
+		for (int i = 0; i < found.size(); i++) {
+			if (i > 0 && BT.keyCompare(found.get(i - 1).key, found.get(i).key) > 0)
+				return "scan out of order at " + name(found.get(i));
+			if (BT.keyCompare(found.get(i).key, expected.get(i).key) != 0)
+				return "scan returned " + name(found.get(i)) + " where "
+						+ name(expected.get(i)) + " belongs";
+			foundNames.add(name(found.get(i)));
+			expectedNames.add(name(expected.get(i)));
+		}
+		Collections.sort(foundNames);
+		Collections.sort(expectedNames);
+		for (int i = 0; i < foundNames.size(); i++)
+			if (!foundNames.get(i).equals(expectedNames.get(i)))
+				return "scan returned " + foundNames.get(i) + " instead of "
+						+ expectedNames.get(i);
+		return null;
+	}
+
+	String check(BTreeFile file) throws Exception {
+		return check(file, null, null);
+	}
+
+	/**
+	 * @return the key and the rid of an entry, as text.
+	 */
+	static String name(KeyDataEntry entry) {
+		RID rid = ((LeafData) entry.data).getData();
+		return entry.key + " [" + rid.pageNo.pid + "," + rid.slotNo + "]";
+	}
+}